@@ -0,0 +1,68 @@
+package itdelatrisu.mailserver.bench;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import itdelatrisu.mailserver.EmbeddedMailDB;
+import itdelatrisu.mailserver.Request;
+
+/**
+ * Embedded mail database used by the load generator, which also counts the
+ * rows written and reports new link groups.
+ */
+public class BenchMailDB extends EmbeddedMailDB {
+	/** Row counters. */
+	private final AtomicInteger inboxRows = new AtomicInteger(), leakRows = new AtomicInteger(), redirectRows = new AtomicInteger();
+
+	/** Listener invoked with the sender address whenever a link group is added. */
+	private volatile Consumer<String> linkGroupListener;
+
+	/** Creates the database, backed by the given journal file. */
+	public BenchMailDB(File journalFile) {
+		super(journalFile);
+	}
+
+	/** Sets the listener invoked with the sender address whenever a link group is added. */
+	public void setLinkGroupListener(Consumer<String> listener) { this.linkGroupListener = listener; }
+
+	/** Returns the number of inbox rows written. */
+	public int getInboxRowCount() { return inboxRows.get(); }
+
+	/** Returns the number of leaked email rows written. */
+	public int getLeakRowCount() { return leakRows.get(); }
+
+	/** Returns the number of redirect rows written. */
+	public int getRedirectRowCount() { return redirectRows.get(); }
+
+	@Override
+	public void addMailEntries(List<MailEntry> entries) throws SQLException {
+		super.addMailEntries(entries);
+		inboxRows.addAndGet(entries.size());
+	}
+
+	@Override
+	public void addRedirects(Request req, String senderDomain, String senderAddress, int recipientId) throws SQLException {
+		super.addRedirects(req, senderDomain, senderAddress, recipientId);
+		redirectRows.addAndGet(req.getRedirects().size());
+	}
+
+	@Override
+	public void addLeakedEmailAddress(
+		String url, String type, String encoding, boolean isRedirect, boolean isIntentional,
+		String senderDomain, String senderAddress, int recipientId
+	) throws SQLException {
+		super.addLeakedEmailAddress(url, type, encoding, isRedirect, isIntentional, senderDomain, senderAddress, recipientId);
+		leakRows.incrementAndGet();
+	}
+
+	@Override
+	public void addLinkGroup(List<String> urls, String senderDomain, String senderAddress, int recipientId) throws SQLException {
+		super.addLinkGroup(urls, senderDomain, senderAddress, recipientId);
+		Consumer<String> listener = linkGroupListener;
+		if (listener != null)
+			listener.accept(senderAddress);
+	}
+}
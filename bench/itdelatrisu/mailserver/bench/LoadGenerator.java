@@ -0,0 +1,559 @@
+package itdelatrisu.mailserver.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Level;
+
+import com.sun.net.httpserver.HttpServer;
+
+import itdelatrisu.mailserver.HashChecker;
+import itdelatrisu.mailserver.MailHandler;
+import itdelatrisu.mailserver.MailServer;
+import itdelatrisu.mailserver.MailSpool;
+import itdelatrisu.mailserver.MailStorage;
+
+/**
+ * SMTP load generator for the mail pipeline.
+ * <p>
+ * Starts a {@link MailServer} in-process on a loopback port, backed by an
+ * embedded {@link BenchMailDB}, and drives it with concurrent SMTP
+ * clients. Reports throughput, SMTP and end-to-end (delivery through
+ * analysis) latency, and allocation rate.
+ * <p>
+ * Some messages embed encodings of their recipients' addresses (plain, MD5
+ * and SHA-256) in links and in a tracking image, like real newsletters, so
+ * the leak detection path is exercised too. The tracking image is served by
+ * a local HTTP server, which redirects it once (keeping the encoding).
+ * <p>
+ * Options are given as {@code key=value} arguments:
+ * <ul>
+ * <li>{@code clients}: number of concurrent SMTP clients (default 8)
+ * <li>{@code messages}: total number of messages to send (default 2000)
+ * <li>{@code users}: number of registered recipients (default 1000)
+ * <li>{@code maxRecipients}: maximum recipients per message (default 3)
+ * <li>{@code mix}: weights of message types (default {@code small:6,medium:3,large:1})
+ * <li>{@code attachmentKb}: attachment size for large messages (default 512)
+ * <li>{@code leakRate}: fraction of messages embedding recipient address encodings (default 0.5)
+ * <li>{@code storeThreads}, {@code analyzeThreads}: pipeline stage threads (default 2)
+ * <li>{@code virtual}: whether to run SMTP sessions on virtual threads (default false)
+ * <li>{@code port}: SMTP port (default 2525)
+ * </ul>
+ */
+public class LoadGenerator {
+	/** Message types. */
+	private enum MessageType {
+		/** Single-part HTML, a few KB. */
+		SMALL,
+
+		/** multipart/alternative with text and HTML, tens of KB. */
+		MEDIUM,
+
+		/** multipart/mixed with an alternative body and a binary attachment. */
+		LARGE
+	}
+
+	/** Maximum time (in ms) to wait for the pipeline to drain. */
+	private static final long DRAIN_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+
+	/** Interval (in ms) between allocation samples. */
+	private static final long ALLOCATION_SAMPLE_INTERVAL = 50;
+
+	/** Time (in ms) without new tracking image requests after which they are considered done. */
+	private static final long TRACKER_QUIET_PERIOD = 3000;
+
+	/** Marker in the HTML bodies, replaced with the per-recipient tracking links and images. */
+	private static final String TRACKING_MARKER = "<!-- tracking -->";
+
+	/** Options. */
+	private final int clients, messages, users, maxRecipients, attachmentKb, storeThreads, analyzeThreads, port;
+	private final boolean virtual;
+	private final double leakRate;
+	private final Map<MessageType, Integer> mix;
+
+	/**
+	 * Message bodies (everything after the per-message headers), by type,
+	 * split at the tracking marker.
+	 */
+	private final Map<MessageType, byte[][]> bodies = new HashMap<MessageType, byte[][]>();
+
+	/** Port of the local tracking server. */
+	private int trackerPort;
+
+	/** Number of requests served by the local tracking server. */
+	private final AtomicInteger trackerRequests = new AtomicInteger();
+
+	/** Weighted list of message types to pick from. */
+	private final List<MessageType> weightedTypes = new ArrayList<MessageType>();
+
+	/** Send start times (in ns) and outstanding recipients, by sender address. */
+	private final Map<String, Long> startTimes = new ConcurrentHashMap<String, Long>();
+	private final Map<String, AtomicInteger> outstanding = new ConcurrentHashMap<String, AtomicInteger>();
+
+	/** Latency samples (in ns). */
+	private final List<Long> smtpLatencies = Collections.synchronizedList(new ArrayList<Long>());
+	private final List<Long> endToEndLatencies = Collections.synchronizedList(new ArrayList<Long>());
+
+	/** Counters. */
+	private final AtomicInteger completed = new AtomicInteger(), failed = new AtomicInteger(), deliveries = new AtomicInteger();
+
+	/** Per-thread allocated bytes (max seen), by thread ID. */
+	private final Map<Long, Long> allocated = new ConcurrentHashMap<Long, Long>();
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int i = arg.indexOf('=');
+			if (i == -1)
+				throw new IllegalArgumentException(String.format("Invalid argument '%s' (expected key=value).", arg));
+			options.put(arg.substring(0, i), arg.substring(i + 1));
+		}
+		new LoadGenerator(options).run();
+	}
+
+	/** Creates the load generator. */
+	public LoadGenerator(Map<String, String> options) {
+		this.clients = intOption(options, "clients", 8);
+		this.messages = intOption(options, "messages", 2000);
+		this.users = intOption(options, "users", 1000);
+		this.maxRecipients = intOption(options, "maxRecipients", 3);
+		this.attachmentKb = intOption(options, "attachmentKb", 512);
+		this.storeThreads = intOption(options, "storeThreads", MailHandler.DEFAULT_STAGE_THREADS);
+		this.analyzeThreads = intOption(options, "analyzeThreads", MailHandler.DEFAULT_STAGE_THREADS);
+		this.port = intOption(options, "port", 2525);
+		this.virtual = Boolean.parseBoolean(options.getOrDefault("virtual", "false"));
+		this.leakRate = Double.parseDouble(options.getOrDefault("leakRate", "0.5"));
+		this.mix = parseMix(options.getOrDefault("mix", "small:6,medium:3,large:1"));
+		for (Map.Entry<MessageType, Integer> e : mix.entrySet()) {
+			for (int i = 0; i < e.getValue(); i++)
+				weightedTypes.add(e.getKey());
+		}
+		if (weightedTypes.isEmpty())
+			throw new IllegalArgumentException("Message mix is empty.");
+	}
+
+	/** Runs the benchmark. */
+	public void run() throws Exception {
+		org.apache.log4j.Logger.getLogger("itdelatrisu.mailserver").setLevel(Level.WARN);
+		File dir = Files.createTempDirectory("mailbench").toFile();
+		try {
+			run(dir);
+		} finally {
+			deleteRecursively(dir);
+		}
+	}
+
+	/** Runs the benchmark using the given data directory. */
+	private void run(File dir) throws Exception {
+		// set up the tracking server
+		HttpServer tracker = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		tracker.createContext("/pixel", exchange -> {
+			trackerRequests.incrementAndGet();
+			exchange.getResponseHeaders().set("Location", "/sync?" + exchange.getRequestURI().getRawQuery());
+			exchange.sendResponseHeaders(302, -1);
+			exchange.close();
+		});
+		tracker.createContext("/sync", exchange -> {
+			trackerRequests.incrementAndGet();
+			exchange.sendResponseHeaders(200, -1);
+			exchange.close();
+		});
+		tracker.start();
+		trackerPort = tracker.getAddress().getPort();
+
+		// set up the server
+		BenchMailDB db = new BenchMailDB(new File(dir, "db/mail.journal"));
+		db.init();
+		for (int i = 0; i < users; i++)
+			db.addMailUser(userAddress(i), "Bench Site " + (i % 50), String.format("http://site%d.bench.example/signup", i % 50));
+		db.setLinkGroupListener(this::onLinkGroup);
+		MailHandler handler = new MailHandler(
+			db, new MailStorage(db, new File(dir, "mail")), new MailSpool(new File(dir, "spool")),
+			storeThreads, analyzeThreads
+		);
+		MailServer server = new MailServer(handler, virtual);
+		server.setBindAddress(InetAddress.getLoopbackAddress());
+		server.setPort(port);
+		server.setMaxConnections(Math.max(clients * 2, 100));
+		server.start();
+
+		for (MessageType type : MessageType.values()) {
+			String body = buildBody(type);
+			int i = body.indexOf(TRACKING_MARKER);
+			bodies.put(type, new byte[][] {
+				body.substring(0, i).getBytes(StandardCharsets.US_ASCII),
+				body.substring(i + TRACKING_MARKER.length()).getBytes(StandardCharsets.US_ASCII)
+			});
+		}
+
+		System.out.printf(
+			"Sending %d messages from %d clients (mix %s, up to %d recipients, %s threads)...%n",
+			messages, clients, mix, maxRecipients, virtual ? "virtual" : "platform"
+		);
+
+		// send messages
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long allocatedBefore = sampleAllocations(threads);
+		ExecutorService sampler = Executors.newSingleThreadExecutor();
+		AtomicInteger sampling = new AtomicInteger(1);
+		sampler.execute(() -> {
+			while (sampling.get() == 1) {
+				sampleAllocations(threads);
+				try {
+					Thread.sleep(ALLOCATION_SAMPLE_INTERVAL);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		});
+		long start = System.nanoTime();
+		AtomicInteger next = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(clients);
+		for (int i = 0; i < clients; i++) {
+			pool.execute(() -> {
+				int n;
+				while ((n = next.getAndIncrement()) < messages)
+					send(n);
+			});
+		}
+		pool.shutdown();
+		pool.awaitTermination(1, TimeUnit.HOURS);
+		long sent = System.nanoTime();
+
+		// wait for the pipeline to drain
+		long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+		while ((completed.get() + failed.get() < messages || handler.getPendingCount() > 0) &&
+		       System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		long end = System.nanoTime();
+		sampling.set(0);
+		sampler.shutdown();
+		sampler.awaitTermination(1, TimeUnit.SECONDS);
+		long allocatedBytes = sampleAllocations(threads) - allocatedBefore;
+
+		// wait for the tracking image requests (made after a delay by the analyzer)
+		long quietSince = System.currentTimeMillis();
+		for (int seen = -1; System.currentTimeMillis() - quietSince < TRACKER_QUIET_PERIOD; Thread.sleep(10)) {
+			int n = trackerRequests.get() + db.getRedirectRowCount();
+			if (n != seen) {
+				seen = n;
+				quietSince = System.currentTimeMillis();
+			}
+		}
+
+		server.stop();
+		tracker.stop(0);
+		db.close();
+
+		// report
+		double sendSeconds = (sent - start) / 1e9, totalSeconds = (end - start) / 1e9;
+		int done = completed.get();
+		System.out.printf("Messages:          %d completed, %d failed, %d incomplete%n", done, failed.get(), messages - done - failed.get());
+		System.out.printf(
+			"Deliveries:        %d (%d inbox rows, %d leaks, %d redirects)%n",
+			deliveries.get(), db.getInboxRowCount(), db.getLeakRowCount(), db.getRedirectRowCount()
+		);
+		System.out.printf("SMTP throughput:   %.1f msgs/sec (%.2fs)%n", messages / sendSeconds, sendSeconds);
+		System.out.printf("E2E throughput:    %.1f msgs/sec (%.2fs)%n", done / totalSeconds, totalSeconds);
+		System.out.printf("SMTP latency:      p50 %.2f ms, p99 %.2f ms%n", percentile(smtpLatencies, 50), percentile(smtpLatencies, 99));
+		System.out.printf("E2E latency:       p50 %.2f ms, p99 %.2f ms%n", percentile(endToEndLatencies, 50), percentile(endToEndLatencies, 99));
+		System.out.printf(
+			"Allocation:        %.1f MB/sec, %.1f KB/msg%n",
+			allocatedBytes / totalSeconds / (1024 * 1024), (double) allocatedBytes / Math.max(done, 1) / 1024
+		);
+		if (virtual)
+			System.out.println("(allocation by virtual threads is not included)");
+	}
+
+	/** Sends message {@code n}. */
+	private void send(int n) {
+		Random random = ThreadLocalRandom.current();
+		MessageType type = weightedTypes.get(random.nextInt(weightedTypes.size()));
+		List<String> recipients = new ArrayList<String>();
+		int count = 1 + random.nextInt(maxRecipients);
+		while (recipients.size() < count) {
+			String recipient = userAddress(random.nextInt(users));
+			if (!recipients.contains(recipient))
+				recipients.add(recipient);
+		}
+		String from = String.format("bench-%d@sender.bench.example", n);
+		String headers = String.format(
+			"From: Bench Sender <%s>\r\nTo: %s\r\nSubject: Weekly digest #%d\r\nDate: %s\r\nMessage-ID: <%d@sender.bench.example>\r\n",
+			from, String.join(", ", recipients), n, new Date(), n
+		);
+		byte[] headerBytes = headers.getBytes(StandardCharsets.US_ASCII);
+		byte[][] body = bodies.get(type);
+		byte[] tracking = (random.nextDouble() < leakRate) ? buildTracking(recipients) : new byte[0];
+
+		outstanding.put(from, new AtomicInteger(recipients.size()));
+		long start = System.nanoTime();
+		startTimes.put(from, start);
+		boolean accepted = false;
+		try (SmtpClient client = new SmtpClient("127.0.0.1", port)) {
+			client.command(null, 220);
+			client.command("EHLO client.bench.example", 250);
+			client.command("MAIL FROM:<" + from + ">", 250);
+			for (String recipient : recipients)
+				client.command("RCPT TO:<" + recipient + ">", 250);
+			client.command("DATA", 354);
+			client.data(headerBytes);
+			client.data(body[0]);
+			client.data(tracking);
+			client.data(body[1]);
+			client.command(".", 250);
+			smtpLatencies.add(System.nanoTime() - start);
+			deliveries.addAndGet(recipients.size());
+			accepted = true;
+			client.command("QUIT", 221);
+		} catch (Exception e) {
+			if (accepted)
+				return;  // only the QUIT failed
+			failed.incrementAndGet();
+			outstanding.remove(from);
+			startTimes.remove(from);
+			System.err.printf("Message %d failed: %s%n", n, e);
+		}
+	}
+
+	/** Records the analysis of a message for one recipient. */
+	private void onLinkGroup(String from) {
+		AtomicInteger remaining = outstanding.get(from);
+		if (remaining == null || remaining.decrementAndGet() != 0)
+			return;
+		Long start = startTimes.remove(from);
+		outstanding.remove(from);
+		if (start != null)
+			endToEndLatencies.add(System.nanoTime() - start);
+		completed.incrementAndGet();
+	}
+
+	/**
+	 * Builds the HTML embedding encodings of the recipients' addresses: a
+	 * link with the plain (URL-encoded) address, a link with its MD5 hash,
+	 * and a 1x1 tracking image with its SHA-256 hash.
+	 */
+	private byte[] buildTracking(List<String> recipients) {
+		StringBuilder sb = new StringBuilder();
+		for (String recipient : recipients) {
+			Map<String, String> encodings = new HashMap<String, String>();
+			for (HashChecker.NamedValue<String> enc : HashChecker.getEncodings(recipient))
+				encodings.put(enc.getName(), enc.getValue());
+			try {
+				sb.append(String.format(
+					"<p><a href=\"http://news.bench.example/unsubscribe?email=%s\">Unsubscribe</a> " +
+					"<a href=\"http://click.tracker.bench.example/c?uid=%s\">View online</a></p>\r\n" +
+					"<img src=\"http://127.0.0.1:%d/pixel?h=%s\" width=\"1\" height=\"1\">\r\n",
+					URLEncoder.encode(recipient, "UTF-8"), encodings.get("md5"), trackerPort, encodings.get("sha256")
+				));
+			} catch (UnsupportedEncodingException e) {}
+		}
+		return sb.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/** Builds the body (remaining headers and content) for a message type. */
+	private String buildBody(MessageType type) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("MIME-Version: 1.0\r\n");
+		switch (type) {
+		case SMALL:
+			sb.append("Content-Type: text/html; charset=UTF-8\r\n\r\n");
+			sb.append(buildHtml(20));
+			break;
+		case MEDIUM:
+			sb.append("Content-Type: multipart/alternative; boundary=\"alt-boundary\"\r\n\r\n");
+			appendAlternative(sb, 300);
+			break;
+		case LARGE:
+			sb.append("Content-Type: multipart/mixed; boundary=\"mixed-boundary\"\r\n\r\n");
+			sb.append("--mixed-boundary\r\n");
+			sb.append("Content-Type: multipart/alternative; boundary=\"alt-boundary\"\r\n\r\n");
+			appendAlternative(sb, 100);
+			sb.append("--mixed-boundary\r\n");
+			sb.append("Content-Type: application/pdf; name=\"report.pdf\"\r\n");
+			sb.append("Content-Disposition: attachment; filename=\"report.pdf\"\r\n");
+			sb.append("Content-Transfer-Encoding: base64\r\n\r\n");
+			byte[] attachment = new byte[attachmentKb * 1024];
+			new Random(0).nextBytes(attachment);
+			String encoded = Base64.getMimeEncoder().encodeToString(attachment);
+			sb.append(encoded).append("\r\n");
+			sb.append("--mixed-boundary--\r\n");
+			break;
+		}
+		return sb.toString();
+	}
+
+	/** Appends a multipart/alternative body with text and HTML parts. */
+	private void appendAlternative(StringBuilder sb, int paragraphs) {
+		sb.append("--alt-boundary\r\n");
+		sb.append("Content-Type: text/plain; charset=UTF-8\r\n\r\n");
+		for (int i = 0; i < paragraphs; i++)
+			sb.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor.\r\n");
+		sb.append("--alt-boundary\r\n");
+		sb.append("Content-Type: text/html; charset=UTF-8\r\n\r\n");
+		sb.append(buildHtml(paragraphs));
+		sb.append("--alt-boundary--\r\n");
+	}
+
+	/** Builds a newsletter-like HTML body. */
+	private String buildHtml(int paragraphs) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<html><head><style>.hero { color: #333; }</style></head><body>\r\n");
+		for (int i = 0; i < paragraphs; i++) {
+			sb.append(String.format(
+				"<p>Lorem ipsum dolor sit amet <a href=\"http://news.bench.example/story/%d?src=email&amp;pos=%d\">story %d</a>, " +
+				"consectetur adipiscing elit.</p>\r\n", i, i, i
+			));
+		}
+		sb.append("<p><a href=\"http://news.bench.example/account/preferences\">Email preferences</a></p>\r\n");
+		sb.append(TRACKING_MARKER).append("\r\n");
+		sb.append("</body></html>\r\n");
+		return sb.toString();
+	}
+
+	/** Samples per-thread allocated bytes, and returns the total over all threads seen. */
+	private long sampleAllocations(com.sun.management.ThreadMXBean threads) {
+		long[] ids = threads.getAllThreadIds();
+		long[] bytes = threads.getThreadAllocatedBytes(ids);
+		for (int i = 0; i < ids.length; i++) {
+			if (bytes[i] > 0)
+				allocated.merge(ids[i], bytes[i], Math::max);
+		}
+		long total = 0;
+		for (long b : allocated.values())
+			total += b;
+		return total;
+	}
+
+	/** Returns the given percentile (in ms) of latency samples (in ns). */
+	private static double percentile(List<Long> samples, int p) {
+		List<Long> sorted;
+		synchronized (samples) {
+			sorted = new ArrayList<Long>(samples);
+		}
+		if (sorted.isEmpty())
+			return 0;
+		Collections.sort(sorted);
+		int index = (int) Math.ceil(p / 100.0 * sorted.size()) - 1;
+		return sorted.get(Math.max(index, 0)) / 1e6;
+	}
+
+	/** Returns the address of recipient {@code i}. */
+	private static String userAddress(int i) { return String.format("user%d@bench.example", i); }
+
+	/** Parses an integer option. */
+	private static int intOption(Map<String, String> options, String key, int defaultValue) {
+		String value = options.get(key);
+		return (value == null) ? defaultValue : Integer.parseInt(value);
+	}
+
+	/** Parses a message mix, e.g. "small:6,medium:3,large:1". */
+	private static Map<MessageType, Integer> parseMix(String s) {
+		Map<MessageType, Integer> mix = new EnumMap<MessageType, Integer>(MessageType.class);
+		for (String entry : s.split(",")) {
+			String[] kv = entry.split(":");
+			mix.put(MessageType.valueOf(kv[0].trim().toUpperCase()), (kv.length > 1) ? Integer.parseInt(kv[1].trim()) : 1);
+		}
+		return mix;
+	}
+
+	/** Deletes a file or directory tree. */
+	private static void deleteRecursively(File file) throws IOException {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children)
+				deleteRecursively(child);
+		}
+		Files.deleteIfExists(file.toPath());
+	}
+
+	/**
+	 * Minimal buffered SMTP client.
+	 * SmartClient writes message data to the socket in small chunks, which
+	 * makes the client, not the server, the bottleneck.
+	 */
+	private static class SmtpClient implements AutoCloseable {
+		private final Socket socket;
+		private final InputStream in;
+		private final OutputStream out;
+
+		/** Whether the last byte of message data written was a line feed. */
+		private boolean atLineStart = true;
+
+		/** Connects to the server. */
+		public SmtpClient(String host, int port) throws IOException {
+			this.socket = new Socket(host, port);
+			socket.setTcpNoDelay(true);
+			this.in = new BufferedInputStream(socket.getInputStream());
+			this.out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+		}
+
+		/** Sends a command (if not null) and checks the reply code. */
+		public void command(String command, int expectedCode) throws IOException {
+			if (command != null) {
+				out.write(command.getBytes(StandardCharsets.US_ASCII));
+				out.write('\r');
+				out.write('\n');
+				out.flush();
+			}
+			String line;
+			do {
+				line = readLine();
+			} while (line.length() > 3 && line.charAt(3) == '-');
+			if (!line.startsWith(Integer.toString(expectedCode)))
+				throw new IOException(String.format("Unexpected reply to '%s': %s", command, line));
+		}
+
+		/** Writes message data (with CRLF line endings), dot-stuffing lines as needed. */
+		public void data(byte[] data) throws IOException {
+			for (byte b : data) {
+				if (atLineStart && b == '.')
+					out.write('.');
+				out.write(b);
+				atLineStart = (b == '\n');
+			}
+		}
+
+		/** Reads a reply line. */
+		private String readLine() throws IOException {
+			StringBuilder sb = new StringBuilder();
+			int c;
+			while ((c = in.read()) != '\n') {
+				if (c == -1)
+					throw new IOException("Connection closed.");
+				if (c != '\r')
+					sb.append((char) c);
+			}
+			return sb.toString();
+		}
+
+		@Override
+		public void close() throws IOException { socket.close(); }
+	}
+}
@@ -1,3 +1,12 @@
+--
+-- Note: these queries read the summary tables (`leak_rollup`,
+-- `redirect_rollup`), which are kept up to date as rows are written, and
+-- resolve domain IDs through the `domains` table. Third-party rows are
+-- those whose sender and URL domain IDs differ. The full rows are in
+-- `leaked_emails` and `redirects` (or the `leaked_emails_named` and
+-- `redirects_named` views, with domain names resolved).
+--
+
 --
 -- Basic stats
 --
@@ -13,180 +22,177 @@ FROM `users`
 WHERE `tp_leak_count` > 0;
 
 /* Distinct third parties that received a leaked email address */
-SELECT DISTINCT(`url_domain`)
-FROM `leaked_emails`
-WHERE `url_domain` != `sender_domain`
+SELECT DISTINCT(`du`.`name`) AS `url_domain`
+FROM `leak_rollup` `r` JOIN `domains` `du` ON `du`.`id` = `r`.`url_domain_id`
+WHERE `r`.`url_domain_id` != `r`.`sender_domain_id`
 ORDER BY `url_domain` ASC;
 
 /* Distinct first parties that contact a third party in an image redirect */
-SELECT DISTINCT(`sender_domain`)
-FROM `redirects`
-WHERE `sender_domain` != `redirect_domain`
+SELECT DISTINCT(`ds`.`name`) AS `sender_domain`
+FROM `redirect_rollup` `r` JOIN `domains` `ds` ON `ds`.`id` = `r`.`sender_domain_id`
+WHERE `r`.`redirect_domain_id` != `r`.`sender_domain_id`
 ORDER BY `sender_domain` ASC;
 
 /* Distinct third parties that were contacted in an image redirect */
-SELECT DISTINCT(`redirect_domain`)
-FROM `redirects`
-WHERE `sender_domain` != `redirect_domain`
+SELECT DISTINCT(`dr`.`name`) AS `redirect_domain`
+FROM `redirect_rollup` `r` JOIN `domains` `dr` ON `dr`.`id` = `r`.`redirect_domain_id`
+WHERE `r`.`redirect_domain_id` != `r`.`sender_domain_id`
 ORDER BY `redirect_domain` ASC;
 
 /* Distinct first parties with email links embedding an email address */
-SELECT DISTINCT(`sender_domain`)
-FROM `leaked_emails`
-WHERE `url_type` = 'link' AND (`encoding` = 'raw' OR `encoding` = 'base64' OR `encoding` = 'urlencoded')
+SELECT DISTINCT(`ds`.`name`) AS `sender_domain`
+FROM `leak_rollup` `r` JOIN `domains` `ds` ON `ds`.`id` = `r`.`sender_domain_id`
+WHERE `r`.`url_type` = 'link' AND `r`.`encoding` IN ('raw', 'base64', 'urlencoded')
 ORDER BY `sender_domain` ASC;
 
 /* Distinct third parties that received a plain email address via URL/referrer/POST */
-SELECT DISTINCT(`url_domain`)
-FROM `leaked_emails`
-WHERE `sender_domain` != `url_domain` AND `url_type` LIKE 'link-%' AND (`encoding` = 'raw' OR `encoding` = 'base64' OR `encoding` = 'urlencoded')
+SELECT DISTINCT(`du`.`name`) AS `url_domain`
+FROM `leak_rollup` `r` JOIN `domains` `du` ON `du`.`id` = `r`.`url_domain_id`
+WHERE `r`.`url_domain_id` != `r`.`sender_domain_id` AND `r`.`url_type` LIKE 'link-%' AND `r`.`encoding` IN ('raw', 'base64', 'urlencoded')
 ORDER BY `url_domain` ASC;
 
 /* Distinct third parties that received a plain email address via email images */
-SELECT DISTINCT(`url_domain`)
-FROM `leaked_emails`
-WHERE `sender_domain` != `url_domain` AND `url_type` = 'image' AND (`encoding` = 'raw' OR `encoding` = 'base64' OR `encoding` = 'urlencoded')
+SELECT DISTINCT(`du`.`name`) AS `url_domain`
+FROM `leak_rollup` `r` JOIN `domains` `du` ON `du`.`id` = `r`.`url_domain_id`
+WHERE `r`.`url_domain_id` != `r`.`sender_domain_id` AND `r`.`url_type` = 'image' AND `r`.`encoding` IN ('raw', 'base64', 'urlencoded')
 ORDER BY `url_domain` ASC;
 
-/* Distinct third parties that received a plain email address via URL/referrer/POST (separately) */
-SELECT DISTINCT(`sender_domain`)
-FROM `leaked_emails`
-WHERE `sender_domain` != `url_domain` AND `url_type` = 'link-request' AND (`encoding` = 'raw' OR `encoding` = 'base64' OR `encoding` = 'urlencoded')
-ORDER BY `sender_domain` ASC;
-SELECT DISTINCT(`sender_domain`)
-FROM `leaked_emails`
-WHERE `sender_domain` != `url_domain` AND `url_type` = 'link-referrer' AND (`encoding` = 'raw' OR `encoding` = 'base64' OR `encoding` = 'urlencoded')
-ORDER BY `sender_domain` ASC;
-SELECT DISTINCT(`sender_domain`)
-FROM `leaked_emails`
-WHERE `sender_domain` != `url_domain` AND `url_type` = 'link-post' AND (`encoding` = 'raw' OR `encoding` = 'base64' OR `encoding` = 'urlencoded')
-ORDER BY `sender_domain` ASC;
-
 /* Distinct first parties that leak a plain email address via URL/referrer/POST (separately) */
-SELECT DISTINCT(`url_domain`)
-FROM `leaked_emails`
-WHERE `sender_domain` != `url_domain` AND `url_type` = 'link-request' AND (`encoding` = 'raw' OR `encoding` = 'base64' OR `encoding` = 'urlencoded')
-ORDER BY `url_domain` ASC;
-SELECT DISTINCT(`url_domain`)
-FROM `leaked_emails`
-WHERE `sender_domain` != `url_domain` AND `url_type` = 'link-referrer' AND (`encoding` = 'raw' OR `encoding` = 'base64' OR `encoding` = 'urlencoded')
-ORDER BY `url_domain` ASC;
-SELECT DISTINCT(`url_domain`)
-FROM `leaked_emails`
-WHERE `sender_domain` != `url_domain` AND `url_type` = 'link-post' AND (`encoding` = 'raw' OR `encoding` = 'base64' OR `encoding` = 'urlencoded')
-ORDER BY `url_domain` ASC;
+SELECT `r`.`url_type`, `ds`.`name` AS `sender_domain`
+FROM `leak_rollup` `r` JOIN `domains` `ds` ON `ds`.`id` = `r`.`sender_domain_id`
+WHERE `r`.`url_domain_id` != `r`.`sender_domain_id` AND `r`.`url_type` IN ('link-request', 'link-referrer', 'link-post') AND `r`.`encoding` IN ('raw', 'base64', 'urlencoded')
+GROUP BY `r`.`url_type`, `r`.`sender_domain_id`
+ORDER BY `r`.`url_type` ASC, `sender_domain` ASC;
+
+/* Distinct third parties that received a plain email address via URL/referrer/POST (separately) */
+SELECT `r`.`url_type`, `du`.`name` AS `url_domain`
+FROM `leak_rollup` `r` JOIN `domains` `du` ON `du`.`id` = `r`.`url_domain_id`
+WHERE `r`.`url_domain_id` != `r`.`sender_domain_id` AND `r`.`url_type` IN ('link-request', 'link-referrer', 'link-post') AND `r`.`encoding` IN ('raw', 'base64', 'urlencoded')
+GROUP BY `r`.`url_type`, `r`.`url_domain_id`
+ORDER BY `r`.`url_type` ASC, `url_domain` ASC;
 
 /* Types of email address encoding used */
 SELECT DISTINCT(`encoding`)
-FROM `leaked_emails`
-WHERE `sender_domain` != `url_domain`
+FROM `leak_rollup`
+WHERE `url_domain_id` != `sender_domain_id`
 ORDER BY `encoding` ASC;
 
 /* Distinct first parties that leak a hashed email address */
-SELECT DISTINCT(`sender_domain`)
-FROM `leaked_emails`
-WHERE `sender_domain` != `url_domain` AND `encoding` != 'raw' AND `encoding` != 'base64' AND `encoding` != 'urlencoded'
+SELECT DISTINCT(`ds`.`name`) AS `sender_domain`
+FROM `leak_rollup` `r` JOIN `domains` `ds` ON `ds`.`id` = `r`.`sender_domain_id`
+WHERE `r`.`url_domain_id` != `r`.`sender_domain_id` AND `r`.`encoding` NOT IN ('raw', 'base64', 'urlencoded')
 ORDER BY `sender_domain` ASC;
 
 /* Distinct third parties that received a hashed email address */
-SELECT DISTINCT(`url_domain`)
-FROM `leaked_emails`
-WHERE `sender_domain` != `url_domain` AND `encoding` != 'raw' AND `encoding` != 'base64' AND `encoding` != 'urlencoded'
+SELECT DISTINCT(`du`.`name`) AS `url_domain`
+FROM `leak_rollup` `r` JOIN `domains` `du` ON `du`.`id` = `r`.`url_domain_id`
+WHERE `r`.`url_domain_id` != `r`.`sender_domain_id` AND `r`.`encoding` NOT IN ('raw', 'base64', 'urlencoded')
 ORDER BY `url_domain` ASC;
 
 /* Distinct third parties that received a hashed email address, not counting referrer */
-SELECT DISTINCT(`url_domain`)
-FROM `leaked_emails`
-WHERE `sender_domain` != `url_domain` AND `encoding` != 'raw' AND `encoding` != 'base64' AND `encoding` != 'urlencoded' AND `url_type` != 'link-referrer'
+SELECT DISTINCT(`du`.`name`) AS `url_domain`
+FROM `leak_rollup` `r` JOIN `domains` `du` ON `du`.`id` = `r`.`url_domain_id`
+WHERE `r`.`url_domain_id` != `r`.`sender_domain_id` AND `r`.`encoding` NOT IN ('raw', 'base64', 'urlencoded') AND `r`.`url_type` != 'link-referrer'
 ORDER BY `url_domain` ASC;
 
-/* Distinct third parties that received a hashed email address using MD5/SHA1/SHA256/SHA384 (separately) */
-SELECT DISTINCT(`sender_domain`)
-FROM `leaked_emails`
-WHERE `sender_domain` != `url_domain` AND `encoding` = 'md5'
-ORDER BY `sender_domain` ASC;
-SELECT DISTINCT(`sender_domain`)
-FROM `leaked_emails`
-WHERE `sender_domain` != `url_domain` AND `encoding` = 'sha1'
-ORDER BY `sender_domain` ASC;
-SELECT DISTINCT(`sender_domain`)
-FROM `leaked_emails`
-WHERE `sender_domain` != `url_domain` AND `encoding` = 'sha256'
-ORDER BY `sender_domain` ASC;
-SELECT DISTINCT(`sender_domain`)
-FROM `leaked_emails`
-WHERE `sender_domain` != `url_domain` AND `encoding` = 'sha384'
-ORDER BY `sender_domain` ASC;
-
 /* Distinct first parties that leak a hashed email address using MD5/SHA1/SHA256/SHA384 (separately) */
-SELECT DISTINCT(`url_domain`)
-FROM `leaked_emails`
-WHERE `sender_domain` != `url_domain` AND `encoding` = 'md5'
-ORDER BY `url_domain` ASC;
-SELECT DISTINCT(`url_domain`)
-FROM `leaked_emails`
-WHERE `sender_domain` != `url_domain` AND `encoding` = 'sha1'
-ORDER BY `url_domain` ASC;
-SELECT DISTINCT(`url_domain`)
-FROM `leaked_emails`
-WHERE `sender_domain` != `url_domain` AND `encoding` = 'sha256'
-ORDER BY `url_domain` ASC;
-SELECT DISTINCT(`url_domain`)
-FROM `leaked_emails`
-WHERE `sender_domain` != `url_domain` AND `encoding` = 'sha384'
-ORDER BY `url_domain` ASC;
+SELECT `r`.`encoding`, `ds`.`name` AS `sender_domain`
+FROM `leak_rollup` `r` JOIN `domains` `ds` ON `ds`.`id` = `r`.`sender_domain_id`
+WHERE `r`.`url_domain_id` != `r`.`sender_domain_id` AND `r`.`encoding` IN ('md5', 'sha1', 'sha256', 'sha384')
+GROUP BY `r`.`encoding`, `r`.`sender_domain_id`
+ORDER BY `r`.`encoding` ASC, `sender_domain` ASC;
+
+/* Distinct third parties that received a hashed email address using MD5/SHA1/SHA256/SHA384 (separately) */
+SELECT `r`.`encoding`, `du`.`name` AS `url_domain`
+FROM `leak_rollup` `r` JOIN `domains` `du` ON `du`.`id` = `r`.`url_domain_id`
+WHERE `r`.`url_domain_id` != `r`.`sender_domain_id` AND `r`.`encoding` IN ('md5', 'sha1', 'sha256', 'sha384')
+GROUP BY `r`.`encoding`, `r`.`url_domain_id`
+ORDER BY `r`.`encoding` ASC, `url_domain` ASC;
 
 --
 -- Rankings
 --
 
-/* Create a new table to speed up queries... */
-CREATE TABLE `leaked_emails_3p` AS (SELECT * FROM `leaked_emails` WHERE `url_domain` != `sender_domain`);
-ALTER TABLE `leaked_emails_3p` ADD INDEX `domain` (`url_domain`);
-ALTER TABLE `leaked_emails_3p` ADD INDEX `domain_type` (`url_domain`, `url_type`);
-ALTER TABLE `leaked_emails_3p` ADD INDEX `org` (`url_organization`);
-ALTER TABLE `leaked_emails_3p` ADD INDEX `org_type` (`url_organization`, `url_type`);
-
 /* Overall top third parties receiving leaked email addresses */
-CREATE TEMPORARY TABLE `tmp1` AS (SELECT DISTINCT(`url_domain`) FROM `leaked_emails_3p` ORDER BY `url_domain` ASC);
-SELECT `tmp1`.`url_domain`, (SELECT COUNT(DISTINCT(`sender_domain`)) FROM `leaked_emails_3p` WHERE `url_domain` = `tmp1`.`url_domain`) AS `cnt` FROM `tmp1` ORDER BY `cnt` DESC;
+SELECT `du`.`name` AS `url_domain`, COUNT(DISTINCT `r`.`sender_domain_id`) AS `cnt`
+FROM `leak_rollup` `r` JOIN `domains` `du` ON `du`.`id` = `r`.`url_domain_id`
+WHERE `r`.`url_domain_id` != `r`.`sender_domain_id`
+GROUP BY `r`.`url_domain_id`
+ORDER BY `cnt` DESC;
 
 /* Overall top organizations receiving leaked email addresses */
-CREATE TEMPORARY TABLE `tmp2` AS (SELECT DISTINCT(`url_organization`) FROM `leaked_emails_3p` WHERE `url_organization` IS NOT NULL ORDER BY `url_organization` ASC);
-SELECT `tmp2`.`url_organization`, (SELECT COUNT(DISTINCT(`sender_domain`)) FROM `leaked_emails_3p` WHERE `url_organization` IS NOT NULL AND `url_organization` = `tmp2`.`url_organization`) AS `cnt` FROM `tmp2` ORDER BY `cnt` DESC;
+SELECT `du`.`organization` AS `url_organization`, COUNT(DISTINCT `r`.`sender_domain_id`) AS `cnt`
+FROM `leak_rollup` `r` JOIN `domains` `du` ON `du`.`id` = `r`.`url_domain_id`
+WHERE `r`.`url_domain_id` != `r`.`sender_domain_id` AND `du`.`organization` IS NOT NULL
+GROUP BY `du`.`organization`
+ORDER BY `cnt` DESC;
 
 /* Top third parties contacted during image redirects */
-CREATE TEMPORARY TABLE `tmp3` AS (SELECT DISTINCT(`redirect_domain`) FROM `redirects` WHERE `redirect_domain` != `sender_domain` ORDER BY `redirect_domain` ASC);
-SELECT `tmp3`.`redirect_domain`, (SELECT COUNT(DISTINCT(`sender_domain`)) FROM `redirects` WHERE `redirect_domain` != `sender_domain` AND `redirect_domain` = `tmp3`.`redirect_domain`) AS `cnt` FROM `tmp3` ORDER BY `cnt` DESC;
+SELECT `dr`.`name` AS `redirect_domain`, COUNT(DISTINCT `r`.`sender_domain_id`) AS `cnt`
+FROM `redirect_rollup` `r` JOIN `domains` `dr` ON `dr`.`id` = `r`.`redirect_domain_id`
+WHERE `r`.`redirect_domain_id` != `r`.`sender_domain_id`
+GROUP BY `r`.`redirect_domain_id`
+ORDER BY `cnt` DESC;
 
 /* Top first parties contacting third parties during image redirects */
-CREATE TEMPORARY TABLE `tmp4` AS (SELECT DISTINCT(`sender_domain`) FROM `redirects` ORDER BY `sender_domain` ASC);
-SELECT `tmp4`.`sender_domain`, (SELECT COUNT(DISTINCT(`redirect_domain`)) FROM `redirects` WHERE `redirect_domain` != `sender_domain` AND `sender_domain` = `tmp4`.`sender_domain`) AS `cnt` FROM `tmp4` ORDER BY `cnt` DESC;
+SELECT `ds`.`name` AS `sender_domain`, COUNT(DISTINCT `r`.`redirect_domain_id`) AS `cnt`
+FROM `redirect_rollup` `r` JOIN `domains` `ds` ON `ds`.`id` = `r`.`sender_domain_id`
+WHERE `r`.`redirect_domain_id` != `r`.`sender_domain_id`
+GROUP BY `r`.`sender_domain_id`
+ORDER BY `cnt` DESC;
 
 /* Top third parties receiving plain email addresses via referrer */
-CREATE TEMPORARY TABLE `tmp5` AS (SELECT DISTINCT(`url_domain`) FROM `leaked_emails_3p` WHERE `url_type` = 'link-referrer' ORDER BY `url_domain` ASC);
-SELECT `tmp5`.`url_domain`, (SELECT COUNT(DISTINCT(`sender_domain`)) FROM `leaked_emails_3p` WHERE `url_domain` = `tmp5`.`url_domain` AND `url_type` = 'link-referrer') AS `cnt` FROM `tmp5` ORDER BY `cnt` DESC;
+SELECT `du`.`name` AS `url_domain`, COUNT(DISTINCT `r`.`sender_domain_id`) AS `cnt`
+FROM `leak_rollup` `r` JOIN `domains` `du` ON `du`.`id` = `r`.`url_domain_id`
+WHERE `r`.`url_domain_id` != `r`.`sender_domain_id` AND `r`.`url_type` = 'link-referrer'
+GROUP BY `r`.`url_domain_id`
+ORDER BY `cnt` DESC;
 
 /* Top organizations receiving plain email addresses via referrer */
-CREATE TEMPORARY TABLE `tmp6` AS (SELECT DISTINCT(`url_organization`) FROM `leaked_emails_3p` WHERE `url_organization` IS NOT NULL AND `url_type` = 'link-referrer' ORDER BY `url_organization` ASC);
-SELECT `tmp6`.`url_organization`, (SELECT COUNT(DISTINCT(`sender_domain`)) FROM `leaked_emails_3p` WHERE `url_organization` IS NOT NULL AND `url_organization` = `tmp6`.`url_organization` AND `url_type` = 'link-referrer') AS `cnt` FROM `tmp6` ORDER BY `cnt` DESC;
+SELECT `du`.`organization` AS `url_organization`, COUNT(DISTINCT `r`.`sender_domain_id`) AS `cnt`
+FROM `leak_rollup` `r` JOIN `domains` `du` ON `du`.`id` = `r`.`url_domain_id`
+WHERE `r`.`url_domain_id` != `r`.`sender_domain_id` AND `du`.`organization` IS NOT NULL AND `r`.`url_type` = 'link-referrer'
+GROUP BY `du`.`organization`
+ORDER BY `cnt` DESC;
 
 /* Top third parties receiving plain email addresses via URL/post */
-CREATE TEMPORARY TABLE `tmp7` AS (SELECT DISTINCT(`url_domain`) FROM `leaked_emails_3p` WHERE `url_type` = 'link-request' OR `url_type` = 'link-post' ORDER BY `url_domain` ASC);
-SELECT `tmp7`.`url_domain`, (SELECT COUNT(DISTINCT(`sender_domain`)) FROM `leaked_emails_3p` WHERE `url_domain` = `tmp7`.`url_domain` AND (`url_type` = 'link-request' OR `url_type` = 'link-post')) AS `cnt` FROM `tmp7` ORDER BY `cnt` DESC;
+SELECT `du`.`name` AS `url_domain`, COUNT(DISTINCT `r`.`sender_domain_id`) AS `cnt`
+FROM `leak_rollup` `r` JOIN `domains` `du` ON `du`.`id` = `r`.`url_domain_id`
+WHERE `r`.`url_domain_id` != `r`.`sender_domain_id` AND `r`.`url_type` IN ('link-request', 'link-post')
+GROUP BY `r`.`url_domain_id`
+ORDER BY `cnt` DESC;
 
 /* Top organizations receiving plain email addresses via URL/post */
-CREATE TEMPORARY TABLE `tmp8` AS (SELECT DISTINCT(`url_organization`) FROM `leaked_emails_3p` WHERE `url_organization` IS NOT NULL AND (`url_type` = 'link-request' OR `url_type` = 'link-post') ORDER BY `url_organization` ASC);
-SELECT `tmp8`.`url_organization`, (SELECT COUNT(DISTINCT(`sender_domain`)) FROM `leaked_emails_3p` WHERE `url_organization` IS NOT NULL AND `url_organization` = `tmp8`.`url_organization` AND (`url_type` = 'link-request' OR `url_type` = 'link-post')) AS `cnt` FROM `tmp8` ORDER BY `cnt` DESC;
+SELECT `du`.`organization` AS `url_organization`, COUNT(DISTINCT `r`.`sender_domain_id`) AS `cnt`
+FROM `leak_rollup` `r` JOIN `domains` `du` ON `du`.`id` = `r`.`url_domain_id`
+WHERE `r`.`url_domain_id` != `r`.`sender_domain_id` AND `du`.`organization` IS NOT NULL AND `r`.`url_type` IN ('link-request', 'link-post')
+GROUP BY `du`.`organization`
+ORDER BY `cnt` DESC;
 
 /* Top third parties receiving hashed email addresses, not counting referrer */
-CREATE TEMPORARY TABLE `tmp9` AS (SELECT DISTINCT(`url_domain`) FROM `leaked_emails_3p` WHERE `encoding` != 'raw' AND `encoding` != 'base64' AND `encoding` != 'urlencoded' AND `url_type` != 'link-referrer' ORDER BY `url_domain` ASC);
-SELECT `tmp9`.`url_domain`, (SELECT COUNT(DISTINCT(`sender_domain`)) FROM `leaked_emails_3p` WHERE `url_domain` = `tmp9`.`url_domain` AND `encoding` != 'raw' AND `encoding` != 'base64' AND `encoding` != 'urlencoded' AND `url_type` != 'link-referrer') AS `cnt` FROM `tmp9` ORDER BY `cnt` DESC;
+SELECT `du`.`name` AS `url_domain`, COUNT(DISTINCT `r`.`sender_domain_id`) AS `cnt`
+FROM `leak_rollup` `r` JOIN `domains` `du` ON `du`.`id` = `r`.`url_domain_id`
+WHERE `r`.`url_domain_id` != `r`.`sender_domain_id` AND `r`.`encoding` NOT IN ('raw', 'base64', 'urlencoded') AND `r`.`url_type` != 'link-referrer'
+GROUP BY `r`.`url_domain_id`
+ORDER BY `cnt` DESC;
 
 /* Top organizations receiving hashed email addresses, not counting referrer */
-CREATE TEMPORARY TABLE `tmp10` AS (SELECT DISTINCT(`url_organization`) FROM `leaked_emails_3p` WHERE `url_organization` IS NOT NULL AND `encoding` != 'raw' AND `encoding` != 'base64' AND `encoding` != 'urlencoded' AND `url_type` != 'link-referrer' ORDER BY `url_organization` ASC);
-SELECT `tmp10`.`url_organization`, (SELECT COUNT(DISTINCT(`sender_domain`)) FROM `leaked_emails_3p` WHERE `url_organization` IS NOT NULL AND `url_organization` = `tmp10`.`url_organization` AND `encoding` != 'raw' AND `encoding` != 'base64' AND `encoding` != 'urlencoded' AND `url_type` != 'link-referrer') AS `cnt` FROM `tmp10` ORDER BY `cnt` DESC;
+SELECT `du`.`organization` AS `url_organization`, COUNT(DISTINCT `r`.`sender_domain_id`) AS `cnt`
+FROM `leak_rollup` `r` JOIN `domains` `du` ON `du`.`id` = `r`.`url_domain_id`
+WHERE `r`.`url_domain_id` != `r`.`sender_domain_id` AND `du`.`organization` IS NOT NULL AND `r`.`encoding` NOT IN ('raw', 'base64', 'urlencoded') AND `r`.`url_type` != 'link-referrer'
+GROUP BY `du`.`organization`
+ORDER BY `cnt` DESC;
 
 /* Top first parties sending hashed email addresses, not counting referrer */
-CREATE TEMPORARY TABLE `tmp11` AS (SELECT DISTINCT(`sender_domain`) FROM `leaked_emails_3p` WHERE `encoding` != 'raw' AND `encoding` != 'base64' AND `encoding` != 'urlencoded' AND `url_type` != 'link-referrer' ORDER BY `sender_domain` ASC);
-SELECT `tmp11`.`sender_domain`, (SELECT COUNT(DISTINCT(`url_domain`)) FROM `leaked_emails_3p` WHERE `sender_domain` = `tmp11`.`sender_domain` AND `encoding` != 'raw' AND `encoding` != 'base64' AND `encoding` != 'urlencoded' AND `url_type` != 'link-referrer') AS `cnt` FROM `tmp11` ORDER BY `cnt` DESC;
+SELECT `ds`.`name` AS `sender_domain`, COUNT(DISTINCT `r`.`url_domain_id`) AS `cnt`
+FROM `leak_rollup` `r` JOIN `domains` `ds` ON `ds`.`id` = `r`.`sender_domain_id`
+WHERE `r`.`url_domain_id` != `r`.`sender_domain_id` AND `r`.`encoding` NOT IN ('raw', 'base64', 'urlencoded') AND `r`.`url_type` != 'link-referrer'
+GROUP BY `r`.`sender_domain_id`
+ORDER BY `cnt` DESC;
+
+/* Top third parties by number of distinct recipient addresses received */
+SELECT `du`.`name` AS `url_domain`, COUNT(DISTINCT `r`.`recipient_id`) AS `cnt`
+FROM `leak_rollup_recipients` `r` JOIN `domains` `du` ON `du`.`id` = `r`.`url_domain_id`
+WHERE `r`.`url_domain_id` != `r`.`sender_domain_id`
+GROUP BY `r`.`url_domain_id`
+ORDER BY `cnt` DESC;
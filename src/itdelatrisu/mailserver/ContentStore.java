@@ -0,0 +1,461 @@
+package itdelatrisu.mailserver;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Content-addressed message store with body deduplication.
+ * <p>
+ * Each message is split into its MIME leaf bodies (using {@link MimeScanner}).
+ * Bodies of at least {@link #MIN_BLOB_SIZE} bytes are stored once as blobs,
+ * keyed by their SHA-256 hash; the message itself is stored as a small
+ * manifest of literal chunks (headers and boundaries) and blob references
+ * (the blob record IDs), from which the original bytes are rebuilt exactly.
+ * Both blobs and manifests are records in the underlying {@link SegmentStore}.
+ * <p>
+ * The blob index, used to find bodies already stored, is kept in memory and
+ * persisted in an append-only log ({@code blobs.log}), which is compacted on
+ * startup. New blobs are only logged by {@link #sync()}, after their records
+ * are on disk, so the log never refers to a lost record; a blob missing from
+ * the log after a crash is just stored again by the next message using it.
+ */
+public class ContentStore {
+	private static final Logger logger = LoggerFactory.getLogger(ContentStore.class);
+
+	/** Minimum body size (in bytes) to store as a blob, rather than inline in the manifest. */
+	public static final int MIN_BLOB_SIZE = 1024;
+
+	/** Magic bytes at the start of a manifest (raw messages never start with a NUL byte), followed by a version byte. */
+	private static final byte[] MANIFEST_MAGIC = { 0, 'M', 'F' };
+
+	/** Manifest version referencing blobs by record ID. */
+	private static final byte MANIFEST_VERSION = 2;
+
+	/** Manifest version referencing blobs by hash, looked up in the blob index. */
+	private static final byte LEGACY_MANIFEST_VERSION = 1;
+
+	/** Manifest header length (magic and version). */
+	private static final int MANIFEST_HEADER_LENGTH = MANIFEST_MAGIC.length + 1;
+
+	/** Manifest chunk types. */
+	private static final byte CHUNK_LITERAL = 0, CHUNK_BLOB = 1;
+
+	/** Hash algorithm for blobs. */
+	private static final String HASH_ALGORITHM = "SHA-256";
+
+	/** Hash length (in bytes). */
+	private static final int HASH_LENGTH = 32;
+
+	/** Magic bytes at the start of the blob log (logs without them hold legacy entries). */
+	private static final byte[] LOG_MAGIC = { 'B', 'L', 'O', 'B', 'L', 'O', 'G', 2 };
+
+	/** Size of a blob log entry (hash, segment, offset, and length). */
+	private static final int LOG_ENTRY_SIZE = HASH_LENGTH + 16;
+
+	/** Blob log file name. */
+	private static final String LOG_FILE = "blobs.log";
+
+	/** The underlying store. */
+	private final SegmentStore segments;
+
+	/** The blob log file. */
+	private final File logFile;
+
+	/** The blob log channel. */
+	private FileChannel log;
+
+	/** The blob index, by hash. */
+	private final Map<ByteBuffer, SegmentStore.MessageId> blobs = new HashMap<ByteBuffer, SegmentStore.MessageId>();
+
+	/** Log entries for blobs stored since the last sync. */
+	private List<ByteBuffer> unlogged = new ArrayList<ByteBuffer>();
+
+	/** Per-thread message digests. */
+	private final ThreadLocal<MessageDigest> digest = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance(HASH_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
+	/** A blob reference in a manifest. */
+	private static class BlobRef {
+		/** The blob record. */
+		public final SegmentStore.MessageId id;
+
+		/** The body length. */
+		public final int length;
+
+		/** Constructor. */
+		public BlobRef(SegmentStore.MessageId id, int length) {
+			this.id = id;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * A stored message, as a sequence of chunks: file regions for records
+	 * stored uncompressed, compressed records (decoded while transferred),
+	 * and in-memory manifest literals.
+	 */
+	public static class MessageContent {
+		private final List<Object> chunks = new ArrayList<Object>();
+		private long length = 0;
+
+		/** Adds a file region. */
+		private void add(SegmentStore.Region region) {
+			chunks.add(region);
+			length += region.getLength();
+		}
+
+		/** Adds a record. */
+		private void add(SegmentStore.Record record) {
+			chunks.add(record);
+			length += record.getLength();
+		}
+
+		/** Adds an in-memory chunk. */
+		private void add(byte[] data) {
+			chunks.add(data);
+			length += data.length;
+		}
+
+		/** Returns the message length. */
+		public long getLength() { return length; }
+
+		/**
+		 * Writes a range of the message to the target channel. File regions
+		 * are transferred directly from disk, and records are only decoded
+		 * as far as the end of the range.
+		 * @param start the start offset in the message
+		 * @param count the number of bytes to write
+		 * @param target the target channel
+		 */
+		public void transferTo(long start, long count, WritableByteChannel target) throws IOException {
+			long end = start + count, pos = 0;
+			for (Object chunk : chunks) {
+				long chunkLength = (chunk instanceof byte[]) ? ((byte[]) chunk).length :
+					(chunk instanceof SegmentStore.Region) ? ((SegmentStore.Region) chunk).getLength() : ((SegmentStore.Record) chunk).getLength();
+				long from = Math.max(start, pos), to = Math.min(end, pos + chunkLength);
+				if (from < to) {
+					if (chunk instanceof byte[]) {
+						ByteBuffer buf = ByteBuffer.wrap((byte[]) chunk, (int) (from - pos), (int) (to - from));
+						while (buf.hasRemaining())
+							target.write(buf);
+					} else if (chunk instanceof SegmentStore.Region)
+						((SegmentStore.Region) chunk).transferTo(from - pos, to - from, target);
+					else
+						((SegmentStore.Record) chunk).transferTo(from - pos, to - from, target);
+				}
+				pos += chunkLength;
+				if (pos >= end)
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Opens the content store.
+	 * @param segments the underlying store
+	 * @param dir the directory for the blob log
+	 * @throws IOException if the blob log could not be read
+	 */
+	public ContentStore(SegmentStore segments, File dir) throws IOException {
+		this.segments = segments;
+		this.logFile = new File(dir, LOG_FILE);
+		loadLog();
+	}
+
+	/** Loads the blob log into the index, then rewrites it with one entry per blob. */
+	private void loadLog() throws IOException {
+		if (logFile.isFile()) {
+			try (BufferedInputStream buffered = new BufferedInputStream(Files.newInputStream(logFile.toPath()));
+			     DataInputStream in = new DataInputStream(buffered)) {
+				// legacy logs have no header, and also record reference count changes
+				byte[] magic = new byte[LOG_MAGIC.length];
+				buffered.mark(magic.length);
+				boolean legacy = in.read(magic) < magic.length || !Arrays.equals(magic, LOG_MAGIC);
+				if (legacy)
+					buffered.reset();
+				byte[] hash = new byte[HASH_LENGTH];
+				while (true) {
+					try {
+						in.readFully(hash);
+						SegmentStore.MessageId id = new SegmentStore.MessageId(in.readInt(), in.readLong(), in.readInt());
+						if (legacy)
+							in.readInt();
+						blobs.putIfAbsent(ByteBuffer.wrap(hash.clone()), id);
+					} catch (EOFException e) {
+						break;  // end of log (or incomplete last entry)
+					}
+				}
+			}
+		}
+
+		// compact
+		File temp = new File(logFile.getParentFile(), LOG_FILE + ".tmp");
+		try (FileChannel out = FileChannel.open(temp.toPath(),
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			write(out, ByteBuffer.wrap(LOG_MAGIC));
+			for (Map.Entry<ByteBuffer, SegmentStore.MessageId> e : blobs.entrySet())
+				write(out, logEntry(e.getKey().array(), e.getValue()));
+			out.force(false);
+		}
+		Files.move(temp.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		this.log = FileChannel.open(logFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		logger.info("Loaded {} blobs from the content store index.", blobs.size());
+	}
+
+	/** Returns a blob log entry. */
+	private static ByteBuffer logEntry(byte[] hash, SegmentStore.MessageId id) {
+		ByteBuffer buf = ByteBuffer.allocate(LOG_ENTRY_SIZE);
+		buf.put(hash).putInt(id.getSegment()).putLong(id.getOffset()).putInt(id.getLength()).flip();
+		return buf;
+	}
+
+	/** Writes a buffer to a channel. */
+	private static void write(FileChannel channel, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining())
+			channel.write(buf);
+	}
+
+	/**
+	 * Stores a message, deduplicating its bodies against previously stored ones.
+	 * @param data the message data
+	 * @return the ID of the message manifest
+	 * @throws IOException if the message could not be written
+	 */
+	public SegmentStore.MessageId put(byte[] data) throws IOException {
+		List<MimeScanner.Part> leaves = new ArrayList<MimeScanner.Part>();
+		MimeScanner.scan(data).collectLeaves(leaves);
+
+		// build the manifest: literal chunks between blob bodies
+		ByteArrayOutputStream manifest = new ByteArrayOutputStream(1024);
+		DataOutputStream out = new DataOutputStream(manifest);
+		out.write(MANIFEST_MAGIC);
+		out.writeByte(MANIFEST_VERSION);
+		int pos = 0;
+		boolean shared = false;
+		for (MimeScanner.Part leaf : leaves) {
+			int start = leaf.getBodyStart(), end = leaf.getEnd();
+			if (end - start < MIN_BLOB_SIZE)
+				continue;
+			writeLiteral(out, data, pos, start);
+			SegmentStore.MessageId blob = putBlob(data, start, end);
+			out.writeByte(CHUNK_BLOB);
+			out.writeInt(blob.getSegment());
+			out.writeLong(blob.getOffset());
+			out.writeInt(blob.getLength());
+			out.writeInt(end - start);
+			shared = true;
+			pos = end;
+		}
+		if (!shared)
+			return segments.append(data);  // nothing to share
+		writeLiteral(out, data, pos, data.length);
+		out.flush();
+		return segments.append(manifest.toByteArray());
+	}
+
+	/** Writes a literal chunk to a manifest, if not empty. */
+	private static void writeLiteral(DataOutputStream out, byte[] data, int start, int end) throws IOException {
+		if (end <= start)
+			return;
+		out.writeByte(CHUNK_LITERAL);
+		out.writeInt(end - start);
+		out.write(data, start, end - start);
+	}
+
+	/** Stores a blob (if not already stored), returning its record ID. */
+	private SegmentStore.MessageId putBlob(byte[] data, int start, int end) throws IOException {
+		MessageDigest md = digest.get();
+		md.reset();
+		md.update(data, start, end - start);
+		byte[] hash = md.digest();
+		ByteBuffer key = ByteBuffer.wrap(hash);
+		synchronized (this) {
+			SegmentStore.MessageId id = blobs.get(key);
+			if (id == null) {
+				id = segments.append(Arrays.copyOfRange(data, start, end));
+				blobs.put(key, id);
+				unlogged.add(logEntry(hash, id));
+			}
+			return id;
+		}
+	}
+
+	/** Returns the blob record for a hash. */
+	private synchronized SegmentStore.MessageId getBlob(byte[] hash) throws IOException {
+		SegmentStore.MessageId id = blobs.get(ByteBuffer.wrap(hash));
+		if (id == null)
+			throw new IOException("Manifest references an unknown blob.");
+		return id;
+	}
+
+	/**
+	 * Parses a manifest into its chunks: literals (as byte arrays) and blob
+	 * references (as {@link BlobRef} objects).
+	 */
+	private List<Object> readManifest(SegmentStore.MessageId id, byte[] record) throws IOException {
+		boolean legacy = record[MANIFEST_MAGIC.length] == LEGACY_MANIFEST_VERSION;
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record, MANIFEST_HEADER_LENGTH, record.length - MANIFEST_HEADER_LENGTH));
+		List<Object> chunks = new ArrayList<Object>();
+		byte[] hash = new byte[HASH_LENGTH];
+		while (in.available() > 0) {
+			byte type = in.readByte();
+			if (type == CHUNK_LITERAL) {
+				int length = in.readInt();
+				if (length < 0 || length > in.available())
+					throw new IOException(String.format("Corrupt manifest for message %s.", id));
+				byte[] literal = new byte[length];
+				in.readFully(literal);
+				chunks.add(literal);
+			} else if (type == CHUNK_BLOB) {
+				SegmentStore.MessageId blob;
+				if (legacy) {
+					in.readFully(hash);
+					blob = getBlob(hash);
+				} else
+					blob = new SegmentStore.MessageId(in.readInt(), in.readLong(), in.readInt());
+				chunks.add(new BlobRef(blob, in.readInt()));
+			} else
+				throw new IOException(String.format("Corrupt manifest for message %s.", id));
+		}
+		return chunks;
+	}
+
+	/** Reads a blob referenced by a manifest. */
+	private byte[] readBlob(SegmentStore.MessageId id, BlobRef ref) throws IOException {
+		byte[] body = segments.read(ref.id);
+		if (body.length != ref.length)
+			throw new IOException(String.format("Blob length mismatch in message %s.", id));
+		return body;
+	}
+
+	/**
+	 * Reads a message, rebuilding it from its manifest if needed.
+	 * @param id the message ID
+	 * @throws IOException if the message could not be read
+	 */
+	public byte[] get(SegmentStore.MessageId id) throws IOException {
+		byte[] record = segments.read(id);
+		if (!isManifest(record))
+			return record;
+
+		ByteArrayOutputStream message = new ByteArrayOutputStream(record.length * 4);
+		for (Object chunk : readManifest(id, record))
+			message.write((chunk instanceof byte[]) ? (byte[]) chunk : readBlob(id, (BlobRef) chunk));
+		return message.toByteArray();
+	}
+
+	/**
+	 * Opens a message for streaming. Uncompressed records (whole messages or
+	 * shared bodies) are referenced in place on disk; compressed records are
+	 * read into memory as stored, and inflated only while transferred (up to
+	 * the end of the requested range). Manifests are decoded into memory.
+	 * @param id the message ID
+	 * @throws IOException if the message could not be read
+	 */
+	public MessageContent open(SegmentStore.MessageId id) throws IOException {
+		MessageContent content = new MessageContent();
+		SegmentStore.Region region = segments.getUncompressedRegion(id);
+		byte[] record;
+		if (region != null) {
+			if (region.getLength() < MANIFEST_HEADER_LENGTH || !isManifest(region.read(0, MANIFEST_HEADER_LENGTH))) {
+				content.add(region);
+				return content;
+			}
+			record = region.read(0, (int) region.getLength());
+		} else {
+			SegmentStore.Record encoded = segments.readRecord(id);
+			if (encoded.getLength() < MANIFEST_HEADER_LENGTH || !isManifest(encoded.read(0, MANIFEST_HEADER_LENGTH))) {
+				content.add(encoded);
+				return content;
+			}
+			record = encoded.decode();
+		}
+
+		for (Object chunk : readManifest(id, record)) {
+			if (chunk instanceof byte[]) {
+				content.add((byte[]) chunk);
+				continue;
+			}
+			BlobRef ref = (BlobRef) chunk;
+			SegmentStore.Region blob = segments.getUncompressedRegion(ref.id);
+			if (blob != null && blob.getLength() == ref.length) {
+				content.add(blob);
+				continue;
+			}
+			SegmentStore.Record encoded = segments.readRecord(ref.id);
+			if (encoded.getLength() != ref.length)
+				throw new IOException(String.format("Blob length mismatch in message %s.", id));
+			content.add(encoded);
+		}
+		return content;
+	}
+
+	/** Returns whether a record is a manifest. */
+	private static boolean isManifest(byte[] record) {
+		if (record.length < MANIFEST_HEADER_LENGTH)
+			return false;
+		for (int i = 0; i < MANIFEST_MAGIC.length; i++) {
+			if (record[i] != MANIFEST_MAGIC[i])
+				return false;
+		}
+		byte version = record[MANIFEST_MAGIC.length];
+		return version == MANIFEST_VERSION || version == LEGACY_MANIFEST_VERSION;
+	}
+
+	/** Returns the number of distinct blobs stored. */
+	public synchronized int getBlobCount() { return blobs.size(); }
+
+	/**
+	 * Forces the underlying store to disk, then logs the blobs stored since
+	 * the last sync and forces the blob log.
+	 */
+	public void sync() throws IOException {
+		List<ByteBuffer> entries;
+		synchronized (this) {
+			entries = unlogged;
+			unlogged = new ArrayList<ByteBuffer>();
+		}
+		segments.sync();
+		synchronized (this) {
+			for (ByteBuffer entry : entries)
+				write(log, entry);
+			log.force(false);
+		}
+	}
+
+	/** Closes the blob log. */
+	public synchronized void close() {
+		try {
+			log.close();
+		} catch (IOException e) {
+			logger.error("Failed to close blob log.", e);
+		}
+	}
+}
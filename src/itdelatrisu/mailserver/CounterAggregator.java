@@ -0,0 +1,279 @@
+package itdelatrisu.mailserver;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces increments of the per-user counters in the {@code users} table
+ * ({@code emails_received}, {@code leak_count}, {@code tp_leak_count}).
+ * <p>
+ * Increments are accumulated in memory per user and flushed every
+ * {@link #FLUSH_INTERVAL} ms with one batched update, so a busy user costs
+ * one row update per flush instead of one per message or leak. Deltas are
+ * only subtracted once the update has committed, so a failed flush is
+ * retried on the next one.
+ * <p>
+ * Increments from journaled records (see {@link JournaledMailDB}) are held
+ * separately and not flushed: the transaction applying the records writes
+ * them, together with the journal checkpoint (see {@link #commitJournaled}).
+ * <p>
+ * Until written, the database values lag behind: code reading the counters
+ * must do so through {@link #read(Query)} and add {@link #getPending(int)}.
+ */
+public class CounterAggregator {
+	private static final Logger logger = LoggerFactory.getLogger(CounterAggregator.class);
+
+	/** Interval (in ms) between flushes. */
+	private static final int FLUSH_INTERVAL = 1000;
+
+	/** The data source. */
+	private final DataSource dataSource;
+
+	/**
+	 * Pending deltas, keyed by user ID.
+	 * Entries are never removed (that would race with concurrent increments),
+	 * so the map is bounded by the number of users that received mail.
+	 */
+	private final ConcurrentHashMap<Integer, Deltas> pending = new ConcurrentHashMap<Integer, Deltas>();
+
+	/** Deltas of journaled records not applied yet, keyed by user ID (never removed either). */
+	private final ConcurrentHashMap<Integer, Deltas> journaled = new ConcurrentHashMap<Integer, Deltas>();
+
+	/** Excludes flush commits while counters are being read from the database. */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/** The flush thread. */
+	private final ScheduledExecutorService flusher;
+
+	/** Statistics. */
+	private final AtomicLong flushes = new AtomicLong(), rowsWritten = new AtomicLong();
+	private final AtomicLong totalFlushNanos = new AtomicLong(), maxFlushNanos = new AtomicLong();
+
+	/** A database query reading counters. */
+	@FunctionalInterface
+	public interface Query<T> {
+		T run() throws SQLException;
+	}
+
+	/** Commits a transaction writing counters. */
+	@FunctionalInterface
+	public interface Commit {
+		void commit() throws SQLException;
+	}
+
+	/** Pending counter deltas for a user. */
+	private static class Deltas {
+		private final LongAdder emails = new LongAdder(), leaks = new LongAdder(), tpLeaks = new LongAdder();
+	}
+
+	/** Creates and starts the aggregator. */
+	public CounterAggregator(DataSource dataSource) {
+		this.dataSource = dataSource;
+		this.flusher = Executors.newSingleThreadScheduledExecutor();
+		flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/** Adds to a user's received email count. */
+	public void addEmails(int userId, int count) {
+		pending.computeIfAbsent(userId, k -> new Deltas()).emails.add(count);
+	}
+
+	/** Adds a leak to a user's leak counts. */
+	public void addLeak(int userId, boolean isThirdParty) {
+		Deltas d = pending.computeIfAbsent(userId, k -> new Deltas());
+		d.leaks.increment();
+		if (isThirdParty)
+			d.tpLeaks.increment();
+	}
+
+	/**
+	 * Adds the deltas of a journaled record, as
+	 * {received emails, leaks, third-party leaks} (negative to remove them).
+	 */
+	public void addJournaled(int userId, long[] deltas) {
+		Deltas d = journaled.computeIfAbsent(userId, k -> new Deltas());
+		d.emails.add(deltas[0]);
+		d.leaks.add(deltas[1]);
+		d.tpLeaks.add(deltas[2]);
+	}
+
+	/**
+	 * Returns the unwritten deltas for a user (including journaled ones), as
+	 * {received emails, leaks, third-party leaks}.
+	 */
+	public int[] getPending(int userId) {
+		int[] v = new int[3];
+		for (Deltas d : Arrays.asList(pending.get(userId), journaled.get(userId))) {
+			if (d != null) {
+				v[0] += d.emails.intValue();
+				v[1] += d.leaks.intValue();
+				v[2] += d.tpLeaks.intValue();
+			}
+		}
+		return v;
+	}
+
+	/**
+	 * Runs a query reading counters from the database with flushes excluded,
+	 * so that the values read plus {@link #getPending(int)} (called within
+	 * the query) count every increment exactly once.
+	 */
+	public <T> T read(Query<T> query) throws SQLException {
+		lock.readLock().lock();
+		try {
+			return query.run();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** Writes all pending deltas. */
+	private void flush() {
+		List<Integer> ids = new ArrayList<Integer>();
+		List<long[]> values = new ArrayList<long[]>();
+		for (Map.Entry<Integer, Deltas> e : pending.entrySet()) {
+			Deltas d = e.getValue();
+			long[] v = { d.emails.sum(), d.leaks.sum(), d.tpLeaks.sum() };
+			if (v[0] == 0 && v[1] == 0 && v[2] == 0)
+				continue;
+			ids.add(e.getKey());
+			values.add(v);
+		}
+		if (ids.isEmpty())
+			return;
+
+		long start = System.nanoTime();
+		try {
+			write(ids, values);
+		} catch (SQLException e) {
+			// keep the deltas for the next flush
+			logger.error(String.format("Failed to flush counters for %d users, will retry.", ids.size()), e);
+			return;
+		}
+		long elapsed = System.nanoTime() - start;
+		flushes.incrementAndGet();
+		rowsWritten.addAndGet(ids.size());
+		totalFlushNanos.addAndGet(elapsed);
+		maxFlushNanos.accumulateAndGet(elapsed, Math::max);
+	}
+
+	/** Applies the deltas in a single transaction. */
+	private void write(List<Integer> ids, List<long[]> values) throws SQLException {
+		try (Connection connection = dataSource.getConnection()) {
+			connection.setAutoCommit(false);
+			try {
+				update(connection, ids, values);
+				commit(connection::commit, ids, values, pending);
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(true);
+			}
+		}
+	}
+
+	/**
+	 * Writes the deltas of journaled records (as added by
+	 * {@link #addJournaled(int, long[])}) within the caller's transaction,
+	 * without committing it.
+	 */
+	public void updateJournaled(Connection connection, Map<Integer, long[]> deltas) throws SQLException {
+		update(connection, new ArrayList<Integer>(deltas.keySet()), new ArrayList<long[]>(deltas.values()));
+	}
+
+	/**
+	 * Runs the caller's commit of a transaction written with
+	 * {@link #updateJournaled(Connection, Map)}, with reads excluded, and
+	 * then stops counting the written deltas as pending.
+	 */
+	public void commitJournaled(Map<Integer, long[]> deltas, Commit commit) throws SQLException {
+		commit(commit, new ArrayList<Integer>(deltas.keySet()), new ArrayList<long[]>(deltas.values()), journaled);
+	}
+
+	/** Applies deltas within the caller's transaction. */
+	private void update(Connection connection, List<Integer> ids, List<long[]> values) throws SQLException {
+		if (!ids.isEmpty()) {
+			try (PreparedStatement stmt = connection.prepareStatement(
+				"UPDATE `users` SET `emails_received` = `emails_received` + ?, `leak_count` = `leak_count` + ?, `tp_leak_count` = `tp_leak_count` + ? WHERE `id` = ?"
+			)) {
+				for (int i = 0; i < ids.size(); i++) {
+					long[] v = values.get(i);
+					stmt.setLong(1, v[0]);
+					stmt.setLong(2, v[1]);
+					stmt.setLong(3, v[2]);
+					stmt.setInt(4, ids.get(i));
+					stmt.addBatch();
+				}
+				stmt.executeBatch();
+			}
+		}
+	}
+
+	/**
+	 * Commits a transaction written with {@link #update(Connection, List, List)}
+	 * with reads excluded, together with subtracting the written deltas from
+	 * the given pending ones (increments made since then stay pending).
+	 */
+	private void commit(
+		Commit commit, List<Integer> ids, List<long[]> values, ConcurrentHashMap<Integer, Deltas> deltas
+	) throws SQLException {
+		lock.writeLock().lock();
+		try {
+			commit.commit();
+			for (int i = 0; i < ids.size(); i++) {
+				Deltas d = deltas.computeIfAbsent(ids.get(i), k -> new Deltas());
+				long[] v = values.get(i);
+				d.emails.add(-v[0]);
+				d.leaks.add(-v[1]);
+				d.tpLeaks.add(-v[2]);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		long n = flushes.get();
+		return String.format(
+			"flushes=%d, rowsWritten=%d, avgFlushMs=%.1f, maxFlushMs=%.1f",
+			n, rowsWritten.get(), (n == 0) ? 0 : totalFlushNanos.get() / 1e6 / n, maxFlushNanos.get() / 1e6
+		);
+	}
+
+	/** Flushes all pending deltas, then stops the aggregator. */
+	public void close() {
+		flusher.shutdown();
+		try {
+			flusher.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+		for (Deltas d : pending.values()) {
+			if (d.emails.sum() != 0 || d.leaks.sum() != 0 || d.tpLeaks.sum() != 0) {
+				logger.error("Some user counters could not be written before shutdown.");
+				break;
+			}
+		}
+	}
+}
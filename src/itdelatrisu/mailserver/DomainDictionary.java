@@ -0,0 +1,108 @@
+package itdelatrisu.mailserver;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.sql.DataSource;
+
+/**
+ * Dictionary of domain names, mapping each name to its ID in the
+ * {@code domains} table.
+ * <p>
+ * The leak tables store domain IDs instead of names, and a domain's
+ * organization is stored once in its {@code domains} row. IDs are cached
+ * in memory, so a domain is only looked up in the database the first time
+ * it is seen.
+ */
+public class DomainDictionary {
+	/** The data source. */
+	private final DataSource dataSource;
+
+	/** The organization domains manager. */
+	private final OrganizationDomains orgs;
+
+	/** Domain IDs, keyed by name. */
+	private final Map<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+	/** Constructor. */
+	public DomainDictionary(DataSource dataSource, OrganizationDomains orgs) {
+		this.dataSource = dataSource;
+		this.orgs = orgs;
+	}
+
+	/**
+	 * Loads all domains into the cache, and updates any organization that no
+	 * longer matches the organization domains mapping.
+	 */
+	public void load() throws SQLException {
+		try (
+			Connection connection = dataSource.getConnection();
+			Statement stmt = connection.createStatement();
+			PreparedStatement stmtUpdate = connection.prepareStatement(
+				"UPDATE `domains` SET `organization` = ? WHERE `id` = ?"
+			);
+		) {
+			boolean updated = false;
+			try (ResultSet rs = stmt.executeQuery("SELECT `id`, `name`, `organization` FROM `domains`")) {
+				while (rs.next()) {
+					int id = rs.getInt(1);
+					String name = rs.getString(2);
+					ids.put(name, id);
+					String org = getOrganization(name);
+					if (!Objects.equals(org, rs.getString(3))) {
+						stmtUpdate.setString(1, org);
+						stmtUpdate.setInt(2, id);
+						stmtUpdate.addBatch();
+						updated = true;
+					}
+				}
+			}
+			if (updated)
+				stmtUpdate.executeBatch();
+		}
+	}
+
+	/** Returns the ID of a domain name, adding it to the dictionary if needed. */
+	public int getId(String name) throws SQLException {
+		Integer id = ids.get(name);
+		if (id != null)
+			return id;
+
+		try (
+			Connection connection = dataSource.getConnection();
+			PreparedStatement stmtInsert = connection.prepareStatement(
+				"INSERT IGNORE INTO `domains` (`name`, `organization`) VALUES(?, ?)"
+			);
+			PreparedStatement stmt = connection.prepareStatement(
+				"SELECT `id` FROM `domains` WHERE `name` = ?"
+			);
+		) {
+			stmtInsert.setString(1, name);
+			stmtInsert.setString(2, getOrganization(name));
+			stmtInsert.executeUpdate();
+
+			stmt.setString(1, name);
+			try (ResultSet rs = stmt.executeQuery()) {
+				if (!rs.next())
+					throw new SQLException("Failed to add domain: " + name);
+				id = rs.getInt(1);
+			}
+		}
+		ids.put(name, id);
+		return id;
+	}
+
+	/** Returns the organization for a domain name, or null if none. */
+	private String getOrganization(String name) {
+		return name.isEmpty() ? null : orgs.getOrganizationForDomain(name);
+	}
+
+	/** Returns the number of cached domains. */
+	public int size() { return ids.size(); }
+}
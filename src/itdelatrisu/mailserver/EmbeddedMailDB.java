@@ -0,0 +1,632 @@
+package itdelatrisu.mailserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Mail database running in-process, without a database server.
+ * <p>
+ * Users and link groups are held in memory, so every operation is local.
+ * Each mutation is appended to a {@link MailJournal} before it is applied,
+ * and the in-memory state is rebuilt by replaying the journal on startup.
+ * Once the journal has doubled in size since it was last compacted (and is
+ * over {@link #COMPACT_SIZE}), it is replaced by a snapshot of the state.
+ * Users, inbox entries and link groups are synced to disk before returning;
+ * analysis results (leaks and redirects) are not, like the write-behind rows
+ * of {@link MySQLMailDB}, and may be lost if the machine crashes.
+ * <p>
+ * Inbox entries and analysis results are only counted in memory. Compaction
+ * first appends their rows to tab-separated files next to the journal
+ * ({@code inbox.tsv}, {@code leaked_emails.tsv} and {@code redirects.tsv},
+ * in the format read by MySQL's {@code LOAD DATA INFILE}), and the snapshot
+ * records the file lengths, so rows appended by an interrupted compaction are
+ * truncated on startup and exported again. Columns are those of the MySQL
+ * tables, without organizations, and with domain names instead of IDs:
+ * <ul>
+ * <li>inbox: recipient, sender, sent_date, subject, filename
+ * <li>leaked_emails: sender_domain, sender_address, recipient_id, encoding,
+ *     url, url_domain, url_type, is_redirect, is_intentional
+ * <li>redirects: sender_domain, sender_address, recipient_id, request_url,
+ *     redirect_domain, redirect_url, redirect_index
+ * </ul>
+ */
+public class EmbeddedMailDB implements MailDB {
+	private static final Logger logger = LoggerFactory.getLogger(EmbeddedMailDB.class);
+
+	/** Journal record types. */
+	private static final byte
+		RECORD_USER = 1,
+		RECORD_MAIL_ENTRIES = 2,
+		RECORD_LEAK = 3,
+		RECORD_REDIRECTS = 4,
+		RECORD_LINK_GROUP = 5,
+		RECORD_LINK_GROUP_REMOVED = 6,
+		RECORD_USER_SNAPSHOT = 7,
+		RECORD_COUNTERS = 8;
+
+	/** Maximum allowed length of a URL. */
+	private static final int MAX_URL_LENGTH = 2048;
+
+	/** Minimum journal size (in bytes) before it is compacted. */
+	private static final long COMPACT_SIZE = 16L * 1024 * 1024;
+
+	/** Tables whose rows are exported by compaction, indexed by the TABLE_* constants. */
+	private static final String[] ROW_TABLES = { "inbox", "leaked_emails", "redirects" };
+	private static final int TABLE_INBOX = 0, TABLE_LEAKED_EMAILS = 1, TABLE_REDIRECTS = 2;
+
+	/** Suffix of the row files. */
+	private static final String ROW_FILE_SUFFIX = ".tsv";
+
+	/** The journal. */
+	private final MailJournal journal;
+
+	/** Row files, indexed like {@link #ROW_TABLES}. */
+	private final File[] rowFiles = new File[ROW_TABLES.length];
+
+	/** Row file lengths (in bytes) recorded by the last compaction (guarded by the journal lock). */
+	private final long[] rowFileLengths = new long[ROW_TABLES.length];
+
+	/** Journal size (in bytes) above which it is compacted next. */
+	private volatile long compactSize = COMPACT_SIZE;
+
+	/** Users, keyed by lowercase email address and by ID. */
+	private final Map<String, MailUser> usersByEmail = new ConcurrentHashMap<String, MailUser>();
+	private final Map<Integer, MailUser> usersById = new ConcurrentHashMap<Integer, MailUser>();
+
+	/** Link groups, keyed by ID. */
+	private final Map<Integer, LinkGroup> linkGroups = new ConcurrentHashMap<Integer, LinkGroup>();
+
+	/** Work queue of link groups to visit. */
+	private final LinkGroupQueue linkGroupQueue = new LinkGroupQueue();
+
+	/** The next user and link group IDs (guarded by this). */
+	private int nextUserId = 1, nextLinkGroupId = 1;
+
+	/** Row counters. */
+	private final AtomicLong inboxRows = new AtomicLong(), leakRows = new AtomicLong(), redirectRows = new AtomicLong();
+
+	/** Creates the database, backed by the given journal file. */
+	public EmbeddedMailDB(File journalFile) {
+		this.journal = new MailJournal(journalFile);
+		File dir = journalFile.getAbsoluteFile().getParentFile();
+		for (int i = 0; i < ROW_TABLES.length; i++)
+			rowFiles[i] = new File(dir, ROW_TABLES[i] + ROW_FILE_SUFFIX);
+	}
+
+	/** Replays the journal, and opens it for new records. */
+	@Override
+	public void init() throws SQLException {
+		try {
+			journal.open(this::apply);
+			synchronized (journal) {
+				truncateRowFiles();
+			}
+		} catch (IOException e) {
+			throw new SQLException("Failed to open mail database journal.", e);
+		}
+		compactIfNeeded();
+		logger.info(
+			"Loaded embedded mail database ({} users, {} inbox entries, {} link groups).",
+			usersById.size(), inboxRows.get(), linkGroups.size()
+		);
+	}
+
+	/**
+	 * Appends a record to the journal, then applies it.
+	 * Both happen under the journal lock, so a snapshot (see
+	 * {@link #compactIfNeeded()}) holds exactly the records appended so far.
+	 */
+	private void write(byte[] record, boolean sync) throws SQLException {
+		try {
+			synchronized (journal) {
+				journal.append(record, sync);
+				apply(record);
+			}
+		} catch (IOException e) {
+			throw new SQLException("Failed to write mail database journal.", e);
+		}
+		compactIfNeeded();
+	}
+
+	/** Replaces the journal with a snapshot of the in-memory state, if it has grown enough. */
+	private void compactIfNeeded() throws SQLException {
+		if (journal.size() <= compactSize)
+			return;
+		synchronized (this) {
+			synchronized (journal) {
+				long size = journal.size();
+				if (size <= compactSize)
+					return;
+				try {
+					long[] lengths = exportRows();
+					journal.rewrite(snapshot(lengths));
+					System.arraycopy(lengths, 0, rowFileLengths, 0, lengths.length);
+				} catch (IOException e) {
+					throw new SQLException("Failed to compact mail database journal.", e);
+				}
+				compactSize = Math.max(COMPACT_SIZE, journal.size() * 2);
+				logger.info("Compacted mail database journal from {} to {} bytes.", size, journal.size());
+			}
+		}
+	}
+
+	/**
+	 * Truncates the row files to the lengths recorded by the last compaction,
+	 * discarding rows appended by a compaction that did not complete
+	 * (called holding the journal lock).
+	 */
+	private void truncateRowFiles() throws IOException {
+		for (int i = 0; i < rowFiles.length; i++) {
+			long length = rowFiles[i].length();
+			if (length > rowFileLengths[i]) {
+				try (FileChannel channel = FileChannel.open(rowFiles[i].toPath(), StandardOpenOption.WRITE)) {
+					channel.truncate(rowFileLengths[i]);
+					channel.force(true);
+				}
+				logger.warn(
+					"Truncated '{}' from {} to {} bytes (rows of an interrupted compaction, exported again by the next one).",
+					rowFiles[i], length, rowFileLengths[i]
+				);
+			} else if (length < rowFileLengths[i])
+				logger.warn("'{}' is shorter than expected ({} of {} bytes): rows are missing.", rowFiles[i], length, rowFileLengths[i]);
+		}
+	}
+
+	/**
+	 * Appends the rows of all inbox, leak and redirect records in the journal
+	 * to the row files, syncs them, and returns their new lengths
+	 * (called holding the journal lock).
+	 */
+	private long[] exportRows() throws IOException {
+		truncateRowFiles();
+		FileOutputStream[] files = new FileOutputStream[rowFiles.length];
+		Writer[] writers = new Writer[rowFiles.length];
+		try {
+			for (int i = 0; i < rowFiles.length; i++) {
+				files[i] = new FileOutputStream(rowFiles[i], true);
+				writers[i] = new BufferedWriter(new OutputStreamWriter(files[i], StandardCharsets.UTF_8));
+			}
+			journal.read(0, Integer.MAX_VALUE, record -> exportRows(record, writers));
+			long[] lengths = new long[rowFiles.length];
+			for (int i = 0; i < rowFiles.length; i++) {
+				writers[i].flush();
+				files[i].getChannel().force(true);
+				lengths[i] = files[i].getChannel().size();
+			}
+			return lengths;
+		} finally {
+			for (int i = 0; i < rowFiles.length; i++) {
+				try {
+					if (writers[i] != null)
+						writers[i].close();
+					else if (files[i] != null)
+						files[i].close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+	/** Writes the rows of an inbox, leak or redirect journal record. */
+	private static void exportRows(byte[] record, Writer[] writers) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		switch (in.readByte()) {
+		case RECORD_MAIL_ENTRIES: {
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String recipient = MailJournal.readString(in), sender = MailJournal.readString(in);
+				long sentDate = in.readLong();
+				writeRow(writers[TABLE_INBOX],
+					recipient, sender, sentDate == -1 ? null : new Timestamp(sentDate).toString(),
+					MailJournal.readString(in), MailJournal.readString(in)
+				);
+			}
+			break;
+		}
+		case RECORD_LEAK: {
+			int recipientId = in.readInt();
+			in.readBoolean();  // third-party leak
+			String url = MailJournal.readString(in), type = MailJournal.readString(in), encoding = MailJournal.readString(in);
+			boolean isRedirect = in.readBoolean(), isIntentional = in.readBoolean();
+			writeRow(writers[TABLE_LEAKED_EMAILS],
+				MailJournal.readString(in), MailJournal.readString(in), Integer.toString(recipientId), encoding,
+				url, getUrlDomain(url), type, isRedirect ? "1" : "0", isIntentional ? "1" : "0"
+			);
+			break;
+		}
+		case RECORD_REDIRECTS: {
+			int recipientId = in.readInt();
+			String senderDomain = MailJournal.readString(in), senderAddress = MailJournal.readString(in);
+			String requestUrl = MailJournal.readString(in);
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String url = MailJournal.readString(in);
+				writeRow(writers[TABLE_REDIRECTS],
+					senderDomain, senderAddress, Integer.toString(recipientId), requestUrl,
+					getUrlDomain(url), url, Integer.toString(i + 1)
+				);
+			}
+			break;
+		}
+		default:
+			break;
+		}
+	}
+
+	/** Writes a tab-separated row, escaped like MySQL's {@code SELECT ... INTO OUTFILE} ({@code \N} for null). */
+	private static void writeRow(Writer out, String... values) throws IOException {
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0)
+				out.write('\t');
+			String value = values[i];
+			if (value == null) {
+				out.write("\\N");
+				continue;
+			}
+			for (int j = 0; j < value.length(); j++) {
+				char c = value.charAt(j);
+				switch (c) {
+				case '\\': out.write("\\\\"); break;
+				case '\t': out.write("\\t"); break;
+				case '\n': out.write("\\n"); break;
+				case '\r': out.write("\\r"); break;
+				case '\0': out.write("\\0"); break;
+				default: out.write(c);
+				}
+			}
+		}
+		out.write('\n');
+	}
+
+	/**
+	 * Returns journal records rebuilding the current state, with the given row
+	 * file lengths (called holding the journal lock and this).
+	 */
+	private List<byte[]> snapshot(long[] lengths) {
+		List<byte[]> records = new ArrayList<byte[]>(usersById.size() + linkGroups.size() + 1);
+		records.add(record(RECORD_COUNTERS, out -> {
+			out.writeLong(inboxRows.get());
+			out.writeLong(leakRows.get());
+			out.writeLong(redirectRows.get());
+			out.writeInt(nextUserId);
+			out.writeInt(nextLinkGroupId);
+			for (long length : lengths)
+				out.writeLong(length);
+		}));
+		for (MailUser user : usersById.values()) {
+			records.add(record(RECORD_USER_SNAPSHOT, out -> {
+				writeUser(out, user.getId(), user.getEmail(), user.getRegistrationSiteTitle(), user.getRegistrationSiteUrl(),
+					user.getRegistrationSiteDomain(), user.getRegistrationDate().getTime());
+				out.writeInt(user.getReceivedEmailCount());
+				out.writeInt(user.getLeakCount());
+				out.writeInt(user.getThirdPartyLeakCount());
+			}));
+		}
+		for (LinkGroup group : linkGroups.values()) {
+			records.add(record(RECORD_LINK_GROUP, out -> writeLinkGroup(
+				out, group.getId(), group.getRecipientId(), group.getSenderDomain(), group.getSenderAddress(), Arrays.asList(group.getUrls())
+			)));
+		}
+		return records;
+	}
+
+	/** Applies a journal record to the in-memory state. */
+	private void apply(byte[] record) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		byte type = in.readByte();
+		switch (type) {
+		case RECORD_USER:
+		case RECORD_USER_SNAPSHOT: {
+			int id = in.readInt();
+			String email = MailJournal.readString(in), site = MailJournal.readString(in), url = MailJournal.readString(in), urlDomain = MailJournal.readString(in);
+			Date ts = new Date(in.readLong());
+			MailUser user = (type == RECORD_USER) ?
+				new MailUser(id, email, site, url, urlDomain, ts, 0, 0, 0) :
+				new MailUser(id, email, site, url, urlDomain, ts, in.readInt(), in.readInt(), in.readInt());
+			usersByEmail.put(email.toLowerCase(), user);
+			usersById.put(id, user);
+			synchronized (this) {
+				nextUserId = Math.max(nextUserId, id + 1);
+			}
+			break;
+		}
+		case RECORD_MAIL_ENTRIES: {
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String recipient = MailJournal.readString(in);
+				MailJournal.readString(in);  // sender
+				in.readLong();   // sent date
+				MailJournal.readString(in);  // subject
+				MailJournal.readString(in);  // filename
+				MailUser user = usersByEmail.get(recipient.toLowerCase());
+				if (user != null)
+					user.addReceivedEmails(1);
+			}
+			inboxRows.addAndGet(count);
+			break;
+		}
+		case RECORD_LEAK: {
+			int recipientId = in.readInt();
+			boolean isThirdParty = in.readBoolean();
+			MailUser user = usersById.get(recipientId);
+			if (user != null)
+				user.addLeak(isThirdParty);
+			leakRows.incrementAndGet();
+			break;
+		}
+		case RECORD_REDIRECTS: {
+			in.readInt();  // recipient ID
+			MailJournal.readString(in);  // sender domain
+			MailJournal.readString(in);  // sender address
+			MailJournal.readString(in);  // request URL
+			redirectRows.addAndGet(in.readInt());
+			break;
+		}
+		case RECORD_LINK_GROUP: {
+			int id = in.readInt();
+			int recipientId = in.readInt();
+			String senderDomain = MailJournal.readString(in), senderAddress = MailJournal.readString(in);
+			String[] urls = new String[in.readInt()];
+			for (int i = 0; i < urls.length; i++)
+				urls[i] = MailJournal.readString(in);
+			linkGroups.put(id, new LinkGroup(id, senderDomain, senderAddress, recipientId, urls));
+			linkGroupQueue.add(id);
+			synchronized (this) {
+				nextLinkGroupId = Math.max(nextLinkGroupId, id + 1);
+			}
+			break;
+		}
+		case RECORD_LINK_GROUP_REMOVED: {
+			int id = in.readInt();
+			linkGroups.remove(id);
+			linkGroupQueue.complete(id);
+			break;
+		}
+		case RECORD_COUNTERS: {
+			inboxRows.addAndGet(in.readLong());
+			leakRows.addAndGet(in.readLong());
+			redirectRows.addAndGet(in.readLong());
+			int userId = in.readInt(), linkGroupId = in.readInt();
+			synchronized (this) {
+				nextUserId = Math.max(nextUserId, userId);
+				nextLinkGroupId = Math.max(nextLinkGroupId, linkGroupId);
+			}
+			for (int i = 0; i < rowFileLengths.length; i++)
+				rowFileLengths[i] = in.readLong();
+			break;
+		}
+		default:
+			throw new IOException("Unknown journal record type: " + type);
+		}
+	}
+
+	/** Writes a journal record. */
+	@FunctionalInterface
+	private interface RecordWriter {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	/** Encodes a journal record of the given type. */
+	private static byte[] record(byte type, RecordWriter writer) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(type);
+			writer.write(out);
+			out.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);  // not thrown by in-memory streams
+		}
+		return bytes.toByteArray();
+	}
+
+	/** Writes the fields of a user record. */
+	private static void writeUser(
+		DataOutputStream out, int id, String email, String site, String url, String urlDomain, long ts
+	) throws IOException {
+		out.writeInt(id);
+		MailJournal.writeString(out, email);
+		MailJournal.writeString(out, site);
+		MailJournal.writeString(out, url);
+		MailJournal.writeString(out, urlDomain);
+		out.writeLong(ts);
+	}
+
+	/** Writes the fields of a link group record. */
+	private static void writeLinkGroup(
+		DataOutputStream out, int id, int recipientId, String senderDomain, String senderAddress, List<String> urls
+	) throws IOException {
+		out.writeInt(id);
+		out.writeInt(recipientId);
+		MailJournal.writeString(out, senderDomain);
+		MailJournal.writeString(out, senderAddress);
+		out.writeInt(urls.size());
+		for (String url : urls)
+			MailJournal.writeString(out, url);
+	}
+
+	/** Truncates the given URL if it is too long. */
+	private static String truncateUrl(String url) {
+		if (url.length() <= MAX_URL_LENGTH)
+			return url;
+
+		String marker = "[TRUNCATED]";
+		return url.substring(0, MAX_URL_LENGTH - marker.length()) + marker;
+	}
+
+	/** Returns the domain of a URL, or an empty string if invalid. */
+	private static String getUrlDomain(String url) {
+		try {
+			String domain = Utils.getDomainName(url);
+			return (domain == null) ? "" : domain;
+		} catch (Exception e) {
+			return "";
+		}
+	}
+
+	@Override
+	public synchronized boolean addMailUser(String email, String site, String url) throws SQLException {
+		if (usersByEmail.containsKey(email.toLowerCase()))
+			return false;
+		int id = nextUserId;
+		write(record(RECORD_USER, out -> writeUser(
+			out, id, email, site, truncateUrl(url), getUrlDomain(url), System.currentTimeMillis()
+		)), true);
+		return true;
+	}
+
+	@Override
+	public boolean userExists(String email) {
+		return usersByEmail.containsKey(email.toLowerCase());
+	}
+
+	@Override
+	public MailUser getUserInfo(String email) {
+		return usersByEmail.get(email.toLowerCase());
+	}
+
+	@Override
+	public MailUser getUserInfo(int id) {
+		return usersById.get(id);
+	}
+
+	@Override
+	public List<MailUser> getUsers() {
+		return new ArrayList<MailUser>(usersById.values());
+	}
+
+	/** Adds mail entries as a single journal record, synced to disk. */
+	@Override
+	public void addMailEntries(List<MailEntry> entries) throws SQLException {
+		if (entries.isEmpty())
+			return;
+		write(record(RECORD_MAIL_ENTRIES, out -> {
+			out.writeInt(entries.size());
+			for (MailEntry entry : entries) {
+				MailJournal.writeString(out, entry.getRecipient());
+				MailJournal.writeString(out, entry.getSender());
+				out.writeLong(entry.getSentDate() == null ? -1 : entry.getSentDate().getTime());
+				MailJournal.writeString(out, entry.getSubject());
+				MailJournal.writeString(out, entry.getFilename());
+			}
+		}), true);
+	}
+
+	@Override
+	public void addRedirects(Request req, String senderDomain, String senderAddress, int recipientId) throws SQLException {
+		List<URL> redirects = req.getRedirects();
+		if (redirects.isEmpty())
+			return;
+		write(record(RECORD_REDIRECTS, out -> {
+			out.writeInt(recipientId);
+			MailJournal.writeString(out, senderDomain);
+			MailJournal.writeString(out, senderAddress);
+			MailJournal.writeString(out, truncateUrl(req.getURL().toString()));
+			out.writeInt(redirects.size());
+			for (URL redirect : redirects)
+				MailJournal.writeString(out, truncateUrl(redirect.toString()));
+		}), false);
+	}
+
+	@Override
+	public void addLeakedEmailAddress(
+		String url,
+		String type,
+		String encoding,
+		boolean isRedirect,
+		boolean isIntentional,
+		String senderDomain,
+		String senderAddress,
+		int recipientId
+	) throws SQLException {
+		String urlDomain = getUrlDomain(url);
+		boolean isThirdParty = !urlDomain.isEmpty() && !senderDomain.equals(urlDomain);
+		write(record(RECORD_LEAK, out -> {
+			out.writeInt(recipientId);
+			out.writeBoolean(isThirdParty);
+			MailJournal.writeString(out, truncateUrl(url));
+			MailJournal.writeString(out, type);
+			MailJournal.writeString(out, encoding);
+			out.writeBoolean(isRedirect);
+			out.writeBoolean(isIntentional);
+			MailJournal.writeString(out, senderDomain);
+			MailJournal.writeString(out, senderAddress);
+		}), false);
+	}
+
+	@Override
+	public synchronized void addLinkGroup(
+		List<String> urls,
+		String senderDomain,
+		String senderAddress,
+		int recipientId
+	) throws SQLException {
+		int id = nextLinkGroupId;
+		write(record(RECORD_LINK_GROUP, out -> writeLinkGroup(out, id, recipientId, senderDomain, senderAddress, urls)), true);
+	}
+
+	@Override
+	public LinkGroup getLinkGroup() {
+		for (int id; (id = linkGroupQueue.lease()) != -1; ) {
+			LinkGroup group = linkGroups.get(id);
+			if (group != null)
+				return group;
+			linkGroupQueue.complete(id);  // already removed
+		}
+		return null;
+	}
+
+	@Override
+	public LinkGroup getLinkGroup(int id) {
+		return linkGroups.get(id);
+	}
+
+	@Override
+	public void removeLinkGroup(int id) throws SQLException {
+		if (!linkGroups.containsKey(id))
+			return;
+		write(record(RECORD_LINK_GROUP_REMOVED, out -> out.writeInt(id)), true);
+	}
+
+	@Override
+	public Map<String, String> getStats() {
+		Map<String, String> stats = new LinkedHashMap<String, String>();
+		stats.put("Embedded database", String.format(
+			"users=%d, inboxRows=%d, leakRows=%d, redirectRows=%d, journalBytes=%d",
+			usersById.size(), inboxRows.get(), leakRows.get(), redirectRows.get(), journal.size()
+		));
+		stats.put("Link group queue", linkGroupQueue.toString());
+		return stats;
+	}
+
+	/** Forces the journal to disk, and closes it. */
+	@Override
+	public void close() {
+		journal.close();
+	}
+}
@@ -0,0 +1,300 @@
+package itdelatrisu.mailserver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Finds the encodings of a string (see {@link HashChecker#getEncodings})
+ * within a text, in a single pass over the text.
+ * <p>
+ * The encodings are compiled into an Aho-Corasick automaton, so scanning a
+ * text costs O(text length + matches) regardless of the number of
+ * encodings. Encodings made only of hex digits (hashes and hex checksums)
+ * match in either case; all other encodings are case-sensitive.
+ * <p>
+ * A matcher is immutable, and can be shared between threads. Matchers for
+ * email addresses are cached (see {@link #forEmail(String)}), since a
+ * recipient's encodings never change.
+ */
+public class EncodingMatcher {
+	/** Maximum number of cached matchers (each takes roughly 20 KB). */
+	private static final int CACHE_SIZE = 1000;
+
+	/** Matchers for the encodings of email addresses, keyed by address. */
+	private static final LoadingCache<String, EncodingMatcher> cache = CacheBuilder.newBuilder()
+		.maximumSize(CACHE_SIZE)
+		.recordStats()
+		.build(CacheLoader.from(email -> new EncodingMatcher(HashChecker.getEncodings(email))));
+
+	/** An occurrence of an encoding in a text. */
+	public static class Match {
+		private final HashChecker.NamedValue<String> encoding;
+		private final int start, end;
+
+		/** Constructor. */
+		private Match(HashChecker.NamedValue<String> encoding, int start, int end) {
+			this.encoding = encoding;
+			this.start = start;
+			this.end = end;
+		}
+
+		/** Returns the matched encoding. */
+		public HashChecker.NamedValue<String> getEncoding() { return encoding; }
+
+		/** Returns the index of the first matched character. */
+		public int getStart() { return start; }
+
+		/** Returns the index after the last matched character. */
+		public int getEnd() { return end; }
+	}
+
+	/** Receives matches during a scan. */
+	@FunctionalInterface
+	private interface MatchVisitor {
+		/** Handles a match of the given encoding index, and returns whether to continue scanning. */
+		boolean visit(int encoding, int start, int end);
+	}
+
+	/** The encodings. */
+	private final List<HashChecker.NamedValue<String>> encodings;
+
+	/** Whether each encoding must match case-sensitively (i.e. is not hex). */
+	private final boolean[] caseSensitive;
+
+	/**
+	 * Transitions: the transitions of state s are at indexes
+	 * [edgeStart[s], edgeStart[s + 1]) of edgeChars (sorted) and edgeTargets.
+	 */
+	private final int[] edgeStart;
+	private final char[] edgeChars;
+	private final int[] edgeTargets;
+
+	/** Transitions from the root state on ASCII characters (0 if none). */
+	private final int[] rootTargets = new int[128];
+
+	/** Failure link per state (longest proper suffix that is also a trie path). */
+	private final int[] fail;
+
+	/**
+	 * First state on the failure chain (including the state itself) that
+	 * ends an encoding, or 0 if none, per state.
+	 */
+	private final int[] report;
+
+	/** Nearest state strictly on the failure chain that ends an encoding (or 0 if none), per state. */
+	private final int[] dictionary;
+
+	/** Indexes of the encodings ending at each state (or null if none). */
+	private final int[][] outputs;
+
+	/** Returns the (cached) matcher for the encodings of an email address. */
+	public static EncodingMatcher forEmail(String email) {
+		return cache.getUnchecked(email);
+	}
+
+	/** Returns the statistics of the matcher cache. */
+	public static CacheStats getCacheStats() { return cache.stats(); }
+
+	/** Compiles a matcher for the given encodings (empty values are ignored). */
+	public EncodingMatcher(List<HashChecker.NamedValue<String>> encodings) {
+		this.encodings = Collections.unmodifiableList(new ArrayList<HashChecker.NamedValue<String>>(encodings));
+		int n = this.encodings.size();
+		this.caseSensitive = new boolean[n];
+
+		// build the trie (on case-folded values)
+		List<Map<Character, Integer>> trie = new ArrayList<Map<Character, Integer>>();
+		List<List<Integer>> ends = new ArrayList<List<Integer>>();
+		trie.add(new TreeMap<Character, Integer>());
+		ends.add(null);
+		for (int i = 0; i < n; i++) {
+			String value = this.encodings.get(i).getValue();
+			if (value == null || value.isEmpty())
+				continue;
+			caseSensitive[i] = !isHex(value);
+			int state = 0;
+			for (int j = 0; j < value.length(); j++) {
+				char c = fold(value.charAt(j));
+				Integer next = trie.get(state).get(c);
+				if (next == null) {
+					next = trie.size();
+					trie.add(new TreeMap<Character, Integer>());
+					ends.add(null);
+					trie.get(state).put(c, next);
+				}
+				state = next;
+			}
+			if (ends.get(state) == null)
+				ends.set(state, new ArrayList<Integer>(1));
+			ends.get(state).add(i);
+		}
+
+		int states = trie.size();
+		this.edgeStart = new int[states + 1];
+		this.edgeChars = new char[states - 1];
+		this.edgeTargets = new int[states - 1];
+		this.fail = new int[states];
+		this.report = new int[states];
+		this.dictionary = new int[states];
+		this.outputs = new int[states][];
+		int edge = 0;
+		for (int s = 0; s < states; s++) {
+			edgeStart[s] = edge;
+			for (Map.Entry<Character, Integer> e : trie.get(s).entrySet()) {
+				edgeChars[edge] = e.getKey();
+				edgeTargets[edge++] = e.getValue();
+			}
+			List<Integer> end = ends.get(s);
+			if (end != null) {
+				outputs[s] = new int[end.size()];
+				for (int k = 0; k < end.size(); k++)
+					outputs[s][k] = end.get(k);
+			}
+		}
+		edgeStart[states] = edge;
+		for (int k = edgeStart[0]; k < edgeStart[1]; k++) {
+			if (edgeChars[k] < rootTargets.length)
+				rootTargets[edgeChars[k]] = edgeTargets[k];
+		}
+
+		// compute failure and dictionary links, breadth-first
+		Queue<Integer> queue = new ArrayDeque<Integer>();
+		for (int k = edgeStart[0]; k < edgeStart[1]; k++) {
+			int child = edgeTargets[k];  // depth 1: fail to root
+			report[child] = (outputs[child] != null) ? child : 0;
+			queue.add(child);
+		}
+		while (!queue.isEmpty()) {
+			int s = queue.poll();
+			for (int k = edgeStart[s]; k < edgeStart[s + 1]; k++) {
+				char c = edgeChars[k];
+				int child = edgeTargets[k];
+				int f = fail[s], t;
+				while ((t = next(f, c)) < 0 && f != 0)
+					f = fail[f];
+				fail[child] = (t < 0) ? 0 : t;
+				dictionary[child] = report[fail[child]];
+				report[child] = (outputs[child] != null) ? child : dictionary[child];
+				queue.add(child);
+			}
+		}
+	}
+
+	/** Returns whether the string consists only of lowercase hex digits. */
+	private static boolean isHex(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f')))
+				return false;
+		}
+		return true;
+	}
+
+	/** Folds ASCII uppercase letters to lowercase. */
+	private static char fold(char c) {
+		return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+	}
+
+	/** Returns the state reached from the given state on a character, or -1 if there is no transition. */
+	private int next(int state, char c) {
+		if (state == 0) {
+			if (c < rootTargets.length)
+				return (rootTargets[c] == 0) ? -1 : rootTargets[c];
+			int k = Arrays.binarySearch(edgeChars, edgeStart[0], edgeStart[1], c);
+			return (k < 0) ? -1 : edgeTargets[k];
+		}
+		for (int k = edgeStart[state], end = edgeStart[state + 1]; k < end; k++) {
+			if (edgeChars[k] == c)
+				return edgeTargets[k];
+		}
+		return -1;
+	}
+
+	/** Scans the text, passing each match to the visitor. */
+	private void scan(String text, MatchVisitor visitor) {
+		if (text == null)
+			return;
+		int state = 0;
+		for (int i = 0, len = text.length(); i < len; i++) {
+			char c = fold(text.charAt(i));
+			int t;
+			while ((t = next(state, c)) < 0 && state != 0)
+				state = fail[state];
+			state = (t < 0) ? 0 : t;
+			for (int s = report[state]; s != 0; s = dictionary[s]) {
+				for (int encoding : outputs[s]) {
+					String value = encodings.get(encoding).getValue();
+					int start = i + 1 - value.length();
+					if (caseSensitive[encoding] && !text.regionMatches(start, value, 0, value.length()))
+						continue;
+					if (!visitor.visit(encoding, start, i + 1))
+						return;
+				}
+			}
+		}
+	}
+
+	/** Returns every occurrence of every encoding in the text, ordered by end position. */
+	public List<Match> findAll(String text) {
+		List<Match> matches = new ArrayList<Match>();
+		scan(text, (encoding, start, end) -> {
+			matches.add(new Match(encodings.get(encoding), start, end));
+			return true;
+		});
+		return matches;
+	}
+
+	/** Returns the encodings occurring in the text, in the order they were given to the matcher. */
+	public List<HashChecker.NamedValue<String>> findEncodings(String text) {
+		boolean[] found = new boolean[encodings.size()];
+		int[] count = new int[1];
+		scan(text, (encoding, start, end) -> {
+			if (!found[encoding]) {
+				found[encoding] = true;
+				count[0]++;
+			}
+			return count[0] < found.length;
+		});
+		List<HashChecker.NamedValue<String>> list = new ArrayList<HashChecker.NamedValue<String>>(count[0]);
+		for (int i = 0; i < found.length; i++) {
+			if (found[i])
+				list.add(encodings.get(i));
+		}
+		return list;
+	}
+
+	/** Returns whether any encoding occurs in the text. */
+	public boolean containsAny(String text) {
+		boolean[] found = new boolean[1];
+		scan(text, (encoding, start, end) -> {
+			found[0] = true;
+			return false;
+		});
+		return found[0];
+	}
+
+	/** Returns whether the given encoding (one of this matcher's) occurs in the text. */
+	public boolean contains(String text, HashChecker.NamedValue<String> encoding) {
+		boolean[] found = new boolean[1];
+		scan(text, (i, start, end) -> {
+			if (encodings.get(i) != encoding)
+				return true;
+			found[0] = true;
+			return false;
+		});
+		return found[0];
+	}
+
+	/** Returns the encodings. */
+	public List<HashChecker.NamedValue<String>> getEncodings() { return encodings; }
+}
@@ -0,0 +1,618 @@
+package itdelatrisu.mailserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write-ahead journal in front of the MySQL mail database.
+ * <p>
+ * Mutations on the mail processing paths (inbox entries, analysis results,
+ * link groups) are appended to a local {@link MailJournal} and return
+ * immediately, so a slow or unavailable MySQL server no longer blocks (or
+ * loses) them. A background replayer applies the records to MySQL in
+ * order, in batches, each batch in one transaction that also records the
+ * sequence number of its last record (see {@link MySQLMailDB#apply}); on
+ * startup, records at or below the recorded sequence number are skipped,
+ * so a record is applied exactly once even if the server crashes mid-way.
+ * <p>
+ * After a transient failure the replayer retries every {@link #RETRY_DELAY} ms
+ * and switches to catch-up mode, applying up to {@link #CATCH_UP_BATCH_SIZE}
+ * records per transaction until the backlog is drained. A batch failing for
+ * any other reason is split in halves until the records that cannot be
+ * applied are isolated; those (and records that cannot be decoded) are
+ * moved to a dead-letter journal ({@link #DEAD_LETTER_SUFFIX}) and skipped.
+ * Once everything is applied, a journal larger than {@link #COMPACT_SIZE}
+ * is emptied.
+ * <p>
+ * Reads and user registration go to MySQL directly. The users' counters
+ * include journaled records as soon as they are journaled (and are written
+ * to MySQL in the transaction applying them); other journaled mutations
+ * become visible to reads once replayed.
+ */
+public class JournaledMailDB implements MailDB {
+	private static final Logger logger = LoggerFactory.getLogger(JournaledMailDB.class);
+
+	/** Journal record types. */
+	private static final byte
+		RECORD_MAIL_ENTRIES = 1,
+		RECORD_LEAK = 2,
+		RECORD_REDIRECTS = 3,
+		RECORD_LINK_GROUP = 4,
+		RECORD_LINK_GROUP_REMOVED = 5;
+
+	/** Interval (in ms) between replays when caught up. */
+	private static final int REPLAY_INTERVAL = 100;
+
+	/** Delay (in ms) before retrying a failed batch. */
+	private static final int RETRY_DELAY = 2000;
+
+	/** Maximum number of records applied per transaction. */
+	private static final int BATCH_SIZE = 500;
+
+	/** Maximum number of records applied per transaction in catch-up mode. */
+	private static final int CATCH_UP_BATCH_SIZE = 10000;
+
+	/** Journal size (in bytes) above which a fully applied journal is emptied. */
+	private static final long COMPACT_SIZE = 64L * 1024 * 1024;
+
+	/** Suffix of the dead-letter journal, holding records that could not be applied. */
+	private static final String DEAD_LETTER_SUFFIX = ".dead";
+
+	/** Size (in bytes) of a record header (sequence number, time and type). */
+	private static final int RECORD_HEADER_SIZE = 17;
+
+	/** The MySQL database. */
+	private final MySQLMailDB db;
+
+	/** The journal. */
+	private final MailJournal journal;
+
+	/** The dead-letter journal. */
+	private final MailJournal deadLetters;
+
+	/** The replay thread. */
+	private final ScheduledExecutorService replayer = Executors.newSingleThreadScheduledExecutor();
+
+	/** Sequence number of the last appended record (guarded by the journal append lock). */
+	private long appendedSequence;
+
+	/** Sequence number of the last applied record. */
+	private volatile long appliedSequence;
+
+	/** Journal position after the last applied record (replay thread only). */
+	private long position = 0;
+
+	/**
+	 * Indexes of the records in the batch at {@link #position} already moved
+	 * to the dead-letter journal, so that retrying the batch after a transient
+	 * failure does not move them again (replayer thread only).
+	 */
+	private final Set<Integer> deadLettered = new HashSet<Integer>();
+
+	/** Time (in ms) the oldest unapplied record was appended, or 0 if none is known. */
+	private volatile long oldestPendingTime = 0;
+
+	/** Whether the journal was opened and replay started. */
+	private volatile boolean started = false;
+
+	/** Whether the replayer is catching up after a failure. */
+	private volatile boolean catchingUp = false;
+
+	/** Time (in ms) of the last failed batch. */
+	private long lastFailureTime = 0;
+
+	/** Statistics. */
+	private final AtomicLong batches = new AtomicLong(), recordsApplied = new AtomicLong(), failures = new AtomicLong(), recordsFailed = new AtomicLong();
+	private final AtomicLong totalBatchNanos = new AtomicLong(), maxBatchNanos = new AtomicLong();
+
+	/** A journal record, with its header decoded. */
+	private static class Record {
+		private final byte[] bytes;
+		private final int index;
+		private final long sequence, time;
+		private final byte type;
+
+		/** Decodes the header of a record, read at the given index in its batch. */
+		private Record(byte[] bytes, int index) throws IOException {
+			if (bytes.length < RECORD_HEADER_SIZE)
+				throw new IOException("Truncated journal record.");
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+			this.bytes = bytes;
+			this.index = index;
+			this.sequence = in.readLong();
+			this.time = in.readLong();
+			this.type = in.readByte();
+		}
+
+		/** Returns a stream reading the record body. */
+		private DataInputStream getBody() {
+			return new DataInputStream(new ByteArrayInputStream(bytes, RECORD_HEADER_SIZE, bytes.length - RECORD_HEADER_SIZE));
+		}
+	}
+
+	/** Writes the body of a journal record. */
+	@FunctionalInterface
+	private interface RecordWriter {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	/** Creates the database, journaling mutations to the given file before they are applied to MySQL. */
+	public JournaledMailDB(MySQLMailDB db, File journalFile) {
+		this.db = db;
+		this.journal = new MailJournal(journalFile);
+		this.deadLetters = new MailJournal(new File(journalFile.getPath() + DEAD_LETTER_SUFFIX));
+	}
+
+	/**
+	 * Initializes the MySQL database, opens the journal, and starts replaying
+	 * the records not applied yet.
+	 */
+	@Override
+	public void init() throws SQLException {
+		db.init();
+		appliedSequence = db.getJournalSequence();
+		long[] last = new long[1];
+		long[] pending = new long[1];
+		MySQLMailDB.JournalBatch counts = db.new JournalBatch(true);
+		try {
+			deadLetters.open(bytes -> {});
+			journal.open(bytes -> {
+				if (bytes.length < RECORD_HEADER_SIZE)
+					return;  // moved to the dead-letter journal on replay
+				Record record = new Record(bytes, -1);  // not in a batch
+				last[0] = record.sequence;
+				if (record.sequence > appliedSequence) {
+					pending[0]++;
+					count(record, counts);
+				}
+			});
+		} catch (IOException e) {
+			throw new SQLException("Failed to open write-ahead journal.", e);
+		}
+		db.addJournaledCounts(counts, false);
+		appendedSequence = Math.max(last[0], appliedSequence);
+		if (pending[0] > 0) {
+			logger.info("Replaying {} journal records not yet applied to the database...", pending[0]);
+			catchingUp = true;
+		}
+		replayer.scheduleWithFixedDelay(this::replay, 0, REPLAY_INTERVAL, TimeUnit.MILLISECONDS);
+		started = true;
+	}
+
+	/** Appends a record to the journal. */
+	private void write(byte type, boolean sync, RecordWriter writer) throws SQLException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeLong(0);  // sequence number, set below
+			out.writeLong(System.currentTimeMillis());
+			out.writeByte(type);
+			writer.write(out);
+			out.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);  // not thrown by in-memory streams
+		}
+		byte[] record = bytes.toByteArray();
+		try {
+			synchronized (journal) {
+				long sequence = ++appendedSequence;
+				for (int i = 0; i < 8; i++)
+					record[i] = (byte) (sequence >>> (56 - 8 * i));
+				journal.append(record, sync);
+			}
+		} catch (IOException e) {
+			throw new SQLException("Failed to write to write-ahead journal.", e);
+		}
+	}
+
+	/** Adds the counter increments of a journaled record to a batch (records that cannot be decoded have none). */
+	private void count(Record record, MySQLMailDB.JournalBatch counts) throws IOException {
+		try {
+			decode(record, counts);
+		} catch (IOException e) {
+			// moved to the dead-letter journal on replay
+		} catch (SQLException e) {
+			throw new IOException("Failed to count journaled records.", e);
+		}
+	}
+
+	/** Applies journal records to the database until caught up, or until a batch fails. */
+	private void replay() {
+		if (lastFailureTime > 0 && System.currentTimeMillis() - lastFailureTime < RETRY_DELAY)
+			return;
+		try {
+			while (replayBatch()) {}
+		} catch (IOException e) {
+			failed("Failed to read write-ahead journal, will retry.", e);
+		}
+	}
+
+	/** Records a failed batch, to be retried after {@link #RETRY_DELAY} ms in catch-up mode. */
+	private void failed(String message, Exception e) {
+		failures.incrementAndGet();
+		lastFailureTime = System.currentTimeMillis();
+		if (!catchingUp) {
+			catchingUp = true;
+			logger.error(message, e);
+		}
+	}
+
+	/**
+	 * Applies the next batch of journal records, in one transaction unless
+	 * it fails for a non-transient reason (see {@link Utils#isTransient}):
+	 * then it is applied in halves, down to single records, which are moved
+	 * to the dead-letter journal if they still fail.
+	 * @return true if records were applied, false if caught up or the batch failed
+	 */
+	private boolean replayBatch() throws IOException {
+		long start = System.nanoTime();
+		List<byte[]> records = new ArrayList<byte[]>();
+		long next = journal.read(position, catchingUp ? CATCH_UP_BATCH_SIZE : BATCH_SIZE, records::add);
+		if (records.isEmpty()) {
+			oldestPendingTime = 0;
+			if (catchingUp) {
+				catchingUp = false;
+				logger.info("Write-ahead journal replay caught up.");
+			}
+			if (position >= COMPACT_SIZE && journal.reset(position))
+				position = 0;
+			return false;
+		}
+
+		List<Record> pending = new ArrayList<Record>(records.size());
+		long deadSequence = 0;  // last record skipped, to be covered by the next checkpoint
+		for (int i = 0; i < records.size(); i++) {
+			Record record;
+			try {
+				record = new Record(records.get(i), i);
+			} catch (IOException e) {
+				deadLetter(i, records.get(i), "an unreadable record", e);
+				continue;
+			}
+			if (record.sequence <= appliedSequence)
+				continue;  // applied before a restart
+			if (pending.isEmpty())
+				oldestPendingTime = record.time;
+			pending.add(record);
+		}
+
+		Deque<List<Record>> parts = new ArrayDeque<List<Record>>();
+		parts.push(pending);
+		int count = 0;
+		while (!parts.isEmpty()) {
+			List<Record> part = parts.peek();
+			long sequence = part.isEmpty() ? deadSequence : part.get(part.size() - 1).sequence;
+			try {
+				MySQLMailDB.JournalBatch batch = db.new JournalBatch();
+				for (Iterator<Record> iter = part.iterator(); iter.hasNext(); ) {
+					Record record = iter.next();
+					try {
+						decode(record, batch);
+					} catch (IOException e) {
+						iter.remove();
+						deadLetter(record.index, record.bytes, String.format("record %d", record.sequence), e);
+						deadSequence = Math.max(deadSequence, record.sequence);
+					}
+				}
+				if (sequence > appliedSequence)
+					db.apply(batch, sequence);
+			} catch (SQLException e) {
+				if (Utils.isTransient(e)) {
+					failed("Failed to apply journal records to the database, will retry.", e);
+					recordStats(start, count);
+					return false;
+				}
+				parts.pop();
+				if (part.size() > 1) {
+					parts.push(new ArrayList<Record>(part.subList(part.size() / 2, part.size())));
+					parts.push(new ArrayList<Record>(part.subList(0, part.size() / 2)));
+				} else if (part.size() == 1) {
+					Record record = part.get(0);
+					uncount(record);
+					deadLetter(record.index, record.bytes, String.format("record %d", record.sequence), e);
+					deadSequence = Math.max(deadSequence, record.sequence);
+				}
+				continue;
+			}
+			parts.pop();
+			count += part.size();
+			if (sequence > appliedSequence)
+				appliedSequence = sequence;
+		}
+
+		// checkpoint past dead letters not followed by an applied record
+		if (deadSequence > appliedSequence) {
+			try {
+				db.apply(db.new JournalBatch(), deadSequence);
+			} catch (SQLException e) {
+				failed("Failed to apply journal records to the database, will retry.", e);
+				recordStats(start, count);
+				return false;
+			}
+			appliedSequence = deadSequence;
+		}
+		lastFailureTime = 0;
+		position = next;
+		deadLettered.clear();
+		recordStats(start, count);
+		return true;
+	}
+
+	/** Removes the counter increments of a record that will not be applied. */
+	private void uncount(Record record) {
+		MySQLMailDB.JournalBatch counts = db.new JournalBatch(true);
+		try {
+			decode(record, counts);
+		} catch (IOException | SQLException e) {
+			return;  // not counted
+		}
+		db.addJournaledCounts(counts, true);
+	}
+
+	/** Moves a record that cannot be applied to the dead-letter journal, unless already moved by an earlier try of the batch. */
+	private void deadLetter(int index, byte[] bytes, String description, Exception e) throws IOException {
+		if (deadLettered.contains(index))
+			return;
+		deadLetters.append(bytes, true);
+		deadLettered.add(index);
+		recordsFailed.incrementAndGet();
+		logger.error(String.format("Moved %s that cannot be applied to the dead-letter journal.", description), e);
+	}
+
+	/** Updates the statistics after applying records. */
+	private void recordStats(long start, int count) {
+		if (count == 0)
+			return;
+		long elapsed = System.nanoTime() - start;
+		batches.incrementAndGet();
+		recordsApplied.addAndGet(count);
+		totalBatchNanos.addAndGet(elapsed);
+		maxBatchNanos.accumulateAndGet(elapsed, Math::max);
+	}
+
+	/** Adds a journal record to a batch. */
+	private void decode(Record record, MySQLMailDB.JournalBatch batch) throws IOException, SQLException {
+		DataInputStream in = record.getBody();
+		switch (record.type) {
+		case RECORD_MAIL_ENTRIES: {
+			int count = in.readInt();
+			List<MailEntry> entries = new ArrayList<MailEntry>(count);
+			for (int i = 0; i < count; i++) {
+				String recipient = MailJournal.readString(in), sender = MailJournal.readString(in);
+				long sentDate = in.readLong();
+				String subject = MailJournal.readString(in), filename = MailJournal.readString(in);
+				entries.add(new MailEntry(recipient, sender, (sentDate == -1) ? null : new Date(sentDate), subject, filename));
+			}
+			batch.addMailEntries(entries);
+			break;
+		}
+		case RECORD_LEAK: {
+			String url = MailJournal.readString(in), type = MailJournal.readString(in), encoding = MailJournal.readString(in);
+			boolean isRedirect = in.readBoolean(), isIntentional = in.readBoolean();
+			String senderDomain = MailJournal.readString(in), senderAddress = MailJournal.readString(in);
+			int recipientId = in.readInt();
+			batch.addLeakedEmailAddress(url, type, encoding, isRedirect, isIntentional, senderDomain, senderAddress, recipientId);
+			break;
+		}
+		case RECORD_REDIRECTS: {
+			String requestUrl = MailJournal.readString(in);
+			List<String> redirectUrls = new ArrayList<String>();
+			for (int i = 0, n = in.readInt(); i < n; i++)
+				redirectUrls.add(MailJournal.readString(in));
+			String senderDomain = MailJournal.readString(in), senderAddress = MailJournal.readString(in);
+			int recipientId = in.readInt();
+			batch.addRedirects(requestUrl, redirectUrls, senderDomain, senderAddress, recipientId);
+			break;
+		}
+		case RECORD_LINK_GROUP: {
+			List<String> urls = new ArrayList<String>();
+			for (int i = 0, n = in.readInt(); i < n; i++)
+				urls.add(MailJournal.readString(in));
+			String senderDomain = MailJournal.readString(in), senderAddress = MailJournal.readString(in);
+			int recipientId = in.readInt();
+			batch.addLinkGroup(urls, senderDomain, senderAddress, recipientId);
+			break;
+		}
+		case RECORD_LINK_GROUP_REMOVED:
+			batch.removeLinkGroup(in.readInt());
+			break;
+		default:
+			throw new IOException("Unknown journal record type: " + record.type);
+		}
+	}
+
+	@Override
+	public boolean addMailUser(String email, String site, String url) throws SQLException {
+		return db.addMailUser(email, site, url);
+	}
+
+	@Override
+	public boolean userExists(String email) throws SQLException {
+		return db.userExists(email);
+	}
+
+	@Override
+	public MailUser getUserInfo(String email) throws SQLException {
+		return db.getUserInfo(email);
+	}
+
+	@Override
+	public MailUser getUserInfo(int id) throws SQLException {
+		return db.getUserInfo(id);
+	}
+
+	@Override
+	public List<MailUser> getUsers() throws SQLException {
+		return db.getUsers();
+	}
+
+	/** Journals mail entries, synced to disk, and counts them for their recipients. */
+	@Override
+	public void addMailEntries(List<MailEntry> entries) throws SQLException {
+		if (entries.isEmpty())
+			return;
+		MySQLMailDB.JournalBatch counts = db.new JournalBatch(true);
+		counts.addMailEntries(entries);  // looks up the recipients, so before journaling
+		write(RECORD_MAIL_ENTRIES, true, out -> {
+			out.writeInt(entries.size());
+			for (MailEntry entry : entries) {
+				MailJournal.writeString(out, entry.getRecipient());
+				MailJournal.writeString(out, entry.getSender());
+				out.writeLong(entry.getSentDate() == null ? -1 : entry.getSentDate().getTime());
+				MailJournal.writeString(out, entry.getSubject());
+				MailJournal.writeString(out, entry.getFilename());
+			}
+		});
+		db.addJournaledCounts(counts, false);
+	}
+
+	/** Journals a redirect chain (not synced, like the write-behind rows). */
+	@Override
+	public void addRedirects(Request req, String senderDomain, String senderAddress, int recipientId) throws SQLException {
+		List<URL> redirects = req.getRedirects();
+		if (redirects.isEmpty())
+			return;
+		write(RECORD_REDIRECTS, false, out -> {
+			MailJournal.writeString(out, req.getURL().toString());
+			out.writeInt(redirects.size());
+			for (URL redirect : redirects)
+				MailJournal.writeString(out, redirect.toString());
+			MailJournal.writeString(out, senderDomain);
+			MailJournal.writeString(out, senderAddress);
+			out.writeInt(recipientId);
+		});
+	}
+
+	/**
+	 * Journals a URL containing an email address (not synced, like the
+	 * write-behind rows), and counts it for the recipient.
+	 */
+	@Override
+	public void addLeakedEmailAddress(
+		String url,
+		String type,
+		String encoding,
+		boolean isRedirect,
+		boolean isIntentional,
+		String senderDomain,
+		String senderAddress,
+		int recipientId
+	) throws SQLException {
+		MySQLMailDB.JournalBatch counts = db.new JournalBatch(true);
+		counts.addLeakedEmailAddress(url, type, encoding, isRedirect, isIntentional, senderDomain, senderAddress, recipientId);
+		write(RECORD_LEAK, false, out -> {
+			MailJournal.writeString(out, url);
+			MailJournal.writeString(out, type);
+			MailJournal.writeString(out, encoding);
+			out.writeBoolean(isRedirect);
+			out.writeBoolean(isIntentional);
+			MailJournal.writeString(out, senderDomain);
+			MailJournal.writeString(out, senderAddress);
+			out.writeInt(recipientId);
+		});
+		db.addJournaledCounts(counts, false);
+	}
+
+	/** Journals a group of links, synced to disk (it is queued for visits once replayed). */
+	@Override
+	public void addLinkGroup(List<String> urls, String senderDomain, String senderAddress, int recipientId) throws SQLException {
+		write(RECORD_LINK_GROUP, true, out -> {
+			out.writeInt(urls.size());
+			for (String url : urls)
+				MailJournal.writeString(out, url);
+			MailJournal.writeString(out, senderDomain);
+			MailJournal.writeString(out, senderAddress);
+			out.writeInt(recipientId);
+		});
+	}
+
+	@Override
+	public LinkGroup getLinkGroup() throws SQLException {
+		return db.getLinkGroup();
+	}
+
+	@Override
+	public LinkGroup getLinkGroup(int id) throws SQLException {
+		return db.getLinkGroup(id);
+	}
+
+	/** Journals the removal of a link group, synced to disk. */
+	@Override
+	public void removeLinkGroup(int id) throws SQLException {
+		write(RECORD_LINK_GROUP_REMOVED, true, out -> out.writeInt(id));
+	}
+
+	/** Returns the number of journal records not yet applied to the database. */
+	public long getBacklog() {
+		synchronized (journal) {
+			return appendedSequence - appliedSequence;
+		}
+	}
+
+	@Override
+	public Map<String, String> getStats() {
+		long n = batches.get(), pendingTime = oldestPendingTime;
+		long backlog = getBacklog();
+		Map<String, String> stats = new LinkedHashMap<String, String>();
+		stats.put("Write-ahead journal", String.format(
+			"backlog=%d, lagMs=%d, journalBytes=%d, mode=%s, batches=%d, recordsApplied=%d, recordsFailed=%d, failures=%d, avgBatchMs=%.1f, maxBatchMs=%.1f",
+			backlog, (backlog == 0 || pendingTime == 0) ? 0 : System.currentTimeMillis() - pendingTime, journal.size(),
+			catchingUp ? "catch-up" : "live", n, recordsApplied.get(), recordsFailed.get(), failures.get(),
+			(n == 0) ? 0 : totalBatchNanos.get() / 1e6 / n, maxBatchNanos.get() / 1e6
+		));
+		stats.putAll(db.getStats());
+		return stats;
+	}
+
+	/**
+	 * Applies as much of the journal as possible, then closes the database
+	 * and the journal. Records left unapplied are replayed on the next startup.
+	 */
+	@Override
+	public void close() {
+		replayer.shutdown();
+		try {
+			replayer.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (started) {
+			try {
+				lastFailureTime = 0;
+				while (replayBatch()) {}
+			} catch (IOException e) {
+				logger.error("Failed to read write-ahead journal.", e);
+			}
+			long backlog = getBacklog();
+			if (backlog > 0)
+				logger.warn("{} journal records were not applied to the database, and will be replayed on restart.", backlog);
+		}
+		db.close();
+		journal.close();
+		deadLetters.close();
+	}
+}
@@ -1,5 +1,9 @@
 package itdelatrisu.mailserver;
 
+import java.io.File;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -10,26 +14,97 @@ public class Launcher {
 	private static final Logger logger = LoggerFactory.getLogger(Launcher.class);
 	private static final String DOMAIN_NAME = "lorveskel.me";
 
+	/** Number of threads for the mail storage stage. */
+	private static final int STORE_THREADS = 2;
+
+	/** Number of threads for the mail analysis stage. */
+	private static final int ANALYZE_THREADS = 4;
+
+	/** Root directory for stored mail. */
+	private static final File MAIL_DIR = new File("mail");
+
+	/** Minimum age (in ms) of stored mail to move to the archive tier. */
+	private static final long MAIL_ARCHIVE_AGE = TimeUnit.DAYS.toMillis(30);
+
+	/** Whether to run SMTP sessions on virtual threads (Java 21+). */
+	private static final boolean SMTP_VIRTUAL_THREADS = true;
+
+	/** Maximum number of concurrent SMTP connections. */
+	private static final int SMTP_MAX_CONNECTIONS = 5000;
+
+	/** SMTP connection timeout (in ms), i.e. how long an idle session is kept open. */
+	private static final int SMTP_CONNECTION_TIMEOUT = 60000;
+
+	/** Bearer token for fetching stored messages from the web server (set with -Dmailserver.message.token; disabled if unset). */
+	private static final String MESSAGE_TOKEN = System.getProperty("mailserver.message.token");
+
+	/** Mail database backend: "mysql" (default) or "embedded" (set with -Dmailserver.db). */
+	private static final String DB_BACKEND = System.getProperty("mailserver.db", "mysql");
+
+	/** MySQL JDBC URL (set with -Dmailserver.db.url). */
+	private static final String DB_URL = System.getProperty(
+		"mailserver.db.url", "jdbc:mysql://localhost:3306/mail?rewriteBatchedStatements=true"
+	);
+
+	/** MySQL user (set with -Dmailserver.db.user). */
+	private static final String DB_USER = System.getProperty("mailserver.db.user", "mailserver");
+
+	/** MySQL password (set with -Dmailserver.db.password, or the MAILSERVER_DB_PASSWORD environment variable). */
+	private static final String DB_PASSWORD = System.getProperty("mailserver.db.password", System.getenv("MAILSERVER_DB_PASSWORD"));
+
+	/** Journal file for the embedded mail database. */
+	private static final File DB_JOURNAL = new File("db", "mail.journal");
+
+	/** Write-ahead journal for the MySQL mail database (mutations not yet applied to MySQL). */
+	private static final File MYSQL_JOURNAL = new File("db", "mysql.journal");
+
 	public static void main(String[] args) {
 		String domain = DOMAIN_NAME;
 		logger.info("Initializing for domain [{}]...", domain);
 
 		// get mail database instance
-		MailDB db = new MailDB(
-			"com.mysql.jdbc.Driver",
-			"jdbc:mysql://localhost:3306/mail",
-			"mailserver",
-			"S6TTAykTfAEMJjqN"
-		);
+		MailDB db;
+		if (DB_BACKEND.equals("embedded")) {
+			db = new EmbeddedMailDB(DB_JOURNAL);
+		} else {
+			if (DB_PASSWORD == null) {
+				logger.error("No MySQL password given (set -Dmailserver.db.password or MAILSERVER_DB_PASSWORD).");
+				return;
+			}
+			MySQLMailDB mysql = new MySQLMailDB("com.mysql.jdbc.Driver", DB_URL, DB_USER, DB_PASSWORD);
+			db = new JournaledMailDB(mysql, MYSQL_JOURNAL);
+		}
+
+		// create or upgrade the database schema, and load its in-memory state
+		try {
+			db.init();
+		} catch (SQLException e) {
+			logger.error("Failed to initialize mail database.", e);
+			db.close();
+			return;
+		}
 
 		// start mail server
-		MailServer mailServer = new MailServer(db);
+		MailStorage mailStorage = new MailStorage(db, MAIL_DIR, MAIL_ARCHIVE_AGE);
+		MailHandler mailHandler = new MailHandler(db, mailStorage, new MailSpool(), STORE_THREADS, ANALYZE_THREADS);
+		MailServer mailServer = new MailServer(mailHandler, SMTP_VIRTUAL_THREADS);
+		mailServer.setMaxConnections(SMTP_MAX_CONNECTIONS);
+		mailServer.setConnectionTimeout(SMTP_CONNECTION_TIMEOUT);
 		mailServer.start();
 		logger.info("Mail server running on port {}.", mailServer.getPort());
 
 		// start web server
-		WebServer webServer = new WebServer(db, domain);
+		WebServer webServer = new WebServer(db, mailStorage, domain);
+		webServer.setMessageToken(MESSAGE_TOKEN);
 		webServer.start();
 		logger.info("Web server running on port {}.", webServer.getPort());
+
+		// finish queued work on shutdown
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			logger.info("Shutting down...");
+			webServer.stop();
+			mailServer.stop();
+			db.close();
+		}));
 	}
 }
@@ -0,0 +1,95 @@
+package itdelatrisu.mailserver;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Work queue of link group IDs awaiting a crawler visit.
+ * <p>
+ * Groups are handed out in FIFO order under a lease: a leased group is not
+ * handed out again until either it is completed (its results arrived) or
+ * the lease times out, in which case it is re-delivered to the next caller.
+ * At most one lease per group is active at any time. All operations are
+ * O(1): the oldest lease is checked for expiry whenever a group is requested.
+ * <p>
+ * The queue only holds IDs, and is rebuilt from the {@code link_groups}
+ * table at startup, so unfinished groups survive a restart.
+ */
+public class LinkGroupQueue {
+	/** Default lease duration (in ms). */
+	public static final long DEFAULT_LEASE_TIMEOUT = TimeUnit.MINUTES.toMillis(15);
+
+	/** The lease duration (in ms). */
+	private final long leaseTimeout;
+
+	/** IDs ready to be leased, in FIFO order. */
+	private final LinkedHashSet<Integer> ready = new LinkedHashSet<Integer>();
+
+	/**
+	 * Active leases (ID -> expiry time), in order of expiry.
+	 * Since all leases have the same duration, insertion order is expiry order.
+	 */
+	private final LinkedHashMap<Integer, Long> leases = new LinkedHashMap<Integer, Long>();
+
+	/** The number of leases that expired and were re-delivered. */
+	private long redeliveries = 0;
+
+	/** Creates a queue with the default lease timeout. */
+	public LinkGroupQueue() { this(DEFAULT_LEASE_TIMEOUT); }
+
+	/** Creates a queue with the given lease timeout (in ms). */
+	public LinkGroupQueue(long leaseTimeout) {
+		this.leaseTimeout = leaseTimeout;
+	}
+
+	/** Adds a group, unless it is already queued or leased. */
+	public synchronized void add(int id) {
+		if (!leases.containsKey(id))
+			ready.add(id);
+	}
+
+	/**
+	 * Leases the next group: an expired lease if any (re-delivery), or else
+	 * the oldest ready group.
+	 * @return the group ID, or -1 if no group is available
+	 */
+	public synchronized int lease() {
+		long now = System.currentTimeMillis();
+		int id;
+		Iterator<Map.Entry<Integer, Long>> leaseIter = leases.entrySet().iterator();
+		Map.Entry<Integer, Long> oldest = leaseIter.hasNext() ? leaseIter.next() : null;
+		if (oldest != null && oldest.getValue() <= now) {
+			id = oldest.getKey();
+			leaseIter.remove();
+			redeliveries++;
+		} else {
+			Iterator<Integer> readyIter = ready.iterator();
+			if (!readyIter.hasNext())
+				return -1;
+			id = readyIter.next();
+			readyIter.remove();
+		}
+		leases.put(id, now + leaseTimeout);
+		return id;
+	}
+
+	/** Removes a group (whether queued or leased), e.g. once its results arrived. */
+	public synchronized void complete(int id) {
+		if (leases.remove(id) == null)
+			ready.remove(id);
+	}
+
+	/** Returns the number of groups waiting to be leased. */
+	public synchronized int getReadyCount() { return ready.size(); }
+
+	/** Returns the number of active (possibly expired) leases. */
+	public synchronized int getLeasedCount() { return leases.size(); }
+
+	@Override
+	public synchronized String toString() {
+		return String.format("ready=%d, leased=%d, redeliveries=%d", ready.size(), leases.size(), redeliveries);
+	}
+}
@@ -18,7 +18,6 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import javax.mail.MessagingException;
-import javax.mail.internet.MimeMessage;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -75,7 +74,7 @@ public class MailAnalyzer {
 		private final String urlType;
 		private final String senderDomain, senderAddress;
 		private final int recipientId;
-		private final List<HashChecker.NamedValue<String>> encodings;
+		private final EncodingMatcher matcher;
 
 		/** Creates a new request task to request the given URL. */
 		public RequestTask(
@@ -84,14 +83,14 @@ public class MailAnalyzer {
 			String senderDomain,
 			String senderAddress,
 			int recipientId,
-			List<HashChecker.NamedValue<String>> encodings
+			EncodingMatcher matcher
 		) throws MalformedURLException {
 			this.req = new Request(url);
 			this.urlType = type;
 			this.senderDomain = senderDomain;
 			this.senderAddress = senderAddress;
 			this.recipientId = recipientId;
-			this.encodings = encodings;
+			this.matcher = matcher;
 		}
 
 		@Override
@@ -104,7 +103,7 @@ public class MailAnalyzer {
 				db.addRedirects(req, senderDomain, senderAddress, recipientId);
 				if (!req.getRedirects().isEmpty()) {
 					for (URL url : req.getRedirects())
-						findLeakedEmailAddress(url.toString(), urlType, encodings, true, recipientId, senderDomain, senderAddress);
+						findLeakedEmailAddress(url.toString(), urlType, matcher, true, recipientId, senderDomain, senderAddress);
 				}
 
 				return req;
@@ -125,62 +124,63 @@ public class MailAnalyzer {
 	/** Shuts down the executor service. */
 	public void shutdown() { pool.shutdown(); }
 
-	/** Analyzes the mail. */
-	public void analyze(String from, MailDB.MailUser user, String data) {
+	/**
+	 * Analyzes the mail.
+	 * @param from the sender address
+	 * @param user the recipient
+	 * @param message the message
+	 * @param isFirstEmail whether this is the first email the recipient received
+	 *        (cached user counters are updated in place as mail is stored,
+	 *        so this must be determined before storing the message)
+	 */
+	public void analyze(String from, MailDB.MailUser user, ParsedMessage message, boolean isFirstEmail) {
 		if (user.getRegistrationSiteDomain() == null || user.getRegistrationSiteDomain().isEmpty())
 			return;
 
-		// extract HTML from the email
-		MimeMessage message;
-		String html;
-		LinkExtractor extractor = null;
+		// extract links from the email's HTML
+		LinkExtractor extractor;
 		try {
-			message = Utils.toMimeMessage(data);
-			html = Utils.getHtmlFromMessage(message);
-			if (html != null)
-				extractor = new LinkExtractor(html);
+			extractor = message.getLinkExtractor();
 		} catch (MessagingException | IOException e) {
 			logger.error("Failed to parse message.", e);
 			return;
 		}
 
 		// is this the first email?
-		if (user.getReceivedEmailCount() == 0)
+		if (isFirstEmail)
 			findConfirmationLinksToVisit(message, extractor, from, user.getId(), user.getRegistrationSiteDomain());
 
-		if (html == null)
+		if (extractor == null)
 			return;  // no HTML, skip everything else
 
 		// find leaked email addresses
-		List<HashChecker.NamedValue<String>> encodings = HashChecker.getEncodings(user.getEmail());
+		EncodingMatcher matcher = EncodingMatcher.forEmail(user.getEmail());
 		for (LinkExtractor.Link link : extractor.getAllLinks())
-			findLeakedEmailAddress(link.url, link.type.toString(), encodings, false, user.getId(), user.getRegistrationSiteDomain(), from);
+			findLeakedEmailAddress(link.url, link.type.toString(), matcher, false, user.getId(), user.getRegistrationSiteDomain(), from);
 
 		// request tracking images
-		requestTrackingImages(extractor, from, user.getId(), user.getRegistrationSiteDomain(), encodings);
+		requestTrackingImages(extractor, from, user.getId(), user.getRegistrationSiteDomain(), matcher);
 
 		// record links to visit
-		recordLinksToVisit(extractor, from, user.getId(), user.getRegistrationSiteDomain(), encodings);
+		recordLinksToVisit(extractor, from, user.getId(), user.getRegistrationSiteDomain(), matcher);
 	}
 
 	/** Finds leaked email addresses in the given URL. */
 	private void findLeakedEmailAddress(
 		String url,
 		String type,
-		List<HashChecker.NamedValue<String>> encodings,
+		EncodingMatcher matcher,
 		boolean isRedirect,
 		int recipientId,
 		String senderDomain,
 		String senderAddress
 	) {
 		try {
-			for (HashChecker.NamedValue<String> enc : encodings) {
-				if (url.contains(enc.getValue())) {
-					db.addLeakedEmailAddress(
-						url, type, enc.getName(), isRedirect, true,
-						senderDomain, senderAddress, recipientId
-					);
-				}
+			for (HashChecker.NamedValue<String> enc : matcher.findEncodings(url)) {
+				db.addLeakedEmailAddress(
+					url, type, enc.getName(), isRedirect, true,
+					senderDomain, senderAddress, recipientId
+				);
 			}
 		} catch (SQLException e) {
 			logger.error("Failed to record leaked email address.", e);
@@ -193,7 +193,7 @@ public class MailAnalyzer {
 		String from,
 		int recipientId,
 		String senderDomain,
-		List<HashChecker.NamedValue<String>> encodings
+		EncodingMatcher matcher
 	) {
 		try {
 			// make requests for:
@@ -205,29 +205,15 @@ public class MailAnalyzer {
 			for (LinkExtractor.Image img : extractor.getInlineImages()) {
 				if (img.width.equals("1") && img.height.equals("1"))
 					requests.add(img.url);
-				else {
-					boolean added = false;
-					for (HashChecker.NamedValue<String> enc : encodings) {
-						if (img.url.contains(enc.getValue())) {
-							requests.add(img.url);
-							added = true;
-							break;
-						}
-					}
-					if (!added)
-						nonRequestedImages.add(img.url);
-				}
+				else if (matcher.containsAny(img.url))
+					requests.add(img.url);
+				else
+					nonRequestedImages.add(img.url);
 			}
 			for (String img : extractor.getInlineCssImages()) {
-				boolean added = false;
-				for (HashChecker.NamedValue<String> enc : encodings) {
-					if (img.contains(enc.getValue())) {
-						requests.add(img);
-						added = true;
-						break;
-					}
-				}
-				if (!added)
+				if (matcher.containsAny(img))
+					requests.add(img);
+				else
 					nonRequestedImages.add(img);
 			}
 			if (!nonRequestedImages.isEmpty()) {
@@ -242,7 +228,7 @@ public class MailAnalyzer {
 				try {
 					RequestTask task = new RequestTask(
 						url, LinkExtractor.LinkType.IMAGE.toString(),
-						senderDomain, from, recipientId, encodings
+						senderDomain, from, recipientId, matcher
 					);
 					pool.schedule(task, TASK_SCHEDULE_DELAY, TimeUnit.MILLISECONDS);
 				} catch (MalformedURLException e) {}
@@ -258,7 +244,7 @@ public class MailAnalyzer {
 		String from,
 		int recipientId,
 		String senderDomain,
-		List<HashChecker.NamedValue<String>> encodings
+		EncodingMatcher matcher
 	) {
 		// visit links:
 		// - up to 2 URLs from the most frequent prefix:
@@ -277,14 +263,10 @@ public class MailAnalyzer {
 		Collections.shuffle(maxList, random);
 		List<String> urls = new ArrayList<String>();
 		for (String url : maxList) {
-			for (HashChecker.NamedValue<String> enc : encodings) {
-				if (url.contains(enc.getValue())) {
-					urls.add(url);
-					break;
-				}
-			}
-			if (!urls.isEmpty())
+			if (matcher.containsAny(url)) {
+				urls.add(url);
 				break;
+			}
 		}
 		if (!urls.isEmpty())
 			maxList.remove(urls.get(0));
@@ -311,15 +293,11 @@ public class MailAnalyzer {
 				continue;
 			boolean added = false;
 			for (String url : list) {
-				for (HashChecker.NamedValue<String> enc : encodings) {
-					if (url.contains(enc.getValue())) {
-						urls.add(url);
-						added = true;
-						break;
-					}
-				}
-				if (added)
+				if (matcher.containsAny(url)) {
+					urls.add(url);
+					added = true;
 					break;
+				}
 			}
 			if (added)
 				break;
@@ -371,7 +349,7 @@ public class MailAnalyzer {
 
 	/** Finds email confirmation links to visit. */
 	private void findConfirmationLinksToVisit(
-		MimeMessage message,
+		ParsedMessage message,
 		LinkExtractor extractor,
 		String from,
 		int recipientId,
@@ -427,7 +405,7 @@ public class MailAnalyzer {
 		} else {
 			// check plain-text
 			try {
-				String text = Utils.getTextFromMessage(message);
+				String text = message.getText();
 				if (text == null)
 					return;
 				if (!subjectMatches && !matches(text.toLowerCase(), EMAIL_CONFIRMATION_KEYWORDS))
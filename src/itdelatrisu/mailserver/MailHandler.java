@@ -1,30 +1,197 @@
 package itdelatrisu.mailserver;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Handler for incoming mail.
+ * <p>
+ * Messages are spooled to disk on delivery, then processed asynchronously
+ * in two stages: storage (disk and database metadata), then analysis.
+ * A message moves on to analysis once its storage batch has committed
+ * (failed commits are retried by the {@link StorageWriter}), and it stays in
+ * the spool (to be retried on restart) if it is still not committed at
+ * shutdown. A message whose recipients cannot be looked up (e.g. while the
+ * database is unavailable) is retried with exponential backoff.
+ * Each message is parsed once per mail transaction, and only the
+ * recipient-specific work is repeated for each recipient.
+ * Each stage has its own bounded queue; when a queue fills up, the
+ * submitting thread runs the task itself, pushing back on senders.
+ * Committed messages are handed to the analysis stage by a separate thread,
+ * so that analysis never runs on (and holds up) the storage writer.
  */
 public class MailHandler {
 	private static final Logger logger = LoggerFactory.getLogger(MailHandler.class);
 
+	/** Default number of threads for each pipeline stage. */
+	public static final int DEFAULT_STAGE_THREADS = 2;
+
+	/** Maximum number of queued tasks for each pipeline stage. */
+	private static final int STAGE_QUEUE_CAPACITY = 1000;
+
+	/** Interval (in ms) between logging pipeline statistics. */
+	private static final int STATS_LOG_INTERVAL = 60000;
+
+	/** Delay (in ms) before the first retry of a message, doubled for each later retry. */
+	private static final long RETRY_INITIAL_DELAY = 1000;
+
+	/** Maximum delay (in ms) between retries of a message. */
+	private static final long RETRY_MAX_DELAY = 60000;
+
 	/** The database instance. */
 	private final MailDB db;
 
+	/** The spool instance. */
+	private final MailSpool spool;
+
 	/** The storage module instance. */
 	private final MailStorage storage;
 
 	/** The analyzer module instance. */
 	private final MailAnalyzer analyzer;
 
+	/** The thread pools for the storage and analysis stages. */
+	private final ThreadPoolExecutor storePool, analyzePool;
+
+	/** The thread handing committed messages to the analysis stage. */
+	private final ExecutorService dispatcher;
+
+	/** The scheduler for logging pipeline statistics and retrying messages. */
+	private final ScheduledExecutorService scheduler;
+
+	/** The number of spooled messages that have not been fully processed. */
+	private final AtomicInteger pending = new AtomicInteger();
+
+	/** A message delivery to a single recipient. */
+	private static class Delivery {
+		/** The recipient. */
+		public final MailDB.MailUser user;
+
+		/** Whether this is the first email the recipient received. */
+		public final boolean isFirstEmail;
+
+		/** Constructor. */
+		public Delivery(MailDB.MailUser user, boolean isFirstEmail) {
+			this.user = user;
+			this.isFirstEmail = isFirstEmail;
+		}
+	}
+
 	/** Creates the mail handler. */
 	public MailHandler(MailDB db) {
+		this(db, DEFAULT_STAGE_THREADS, DEFAULT_STAGE_THREADS);
+	}
+
+	/**
+	 * Creates the mail handler.
+	 * @param db the database instance
+	 * @param storeThreads the number of threads for the storage stage
+	 * @param analyzeThreads the number of threads for the analysis stage
+	 */
+	public MailHandler(MailDB db, int storeThreads, int analyzeThreads) {
+		this(db, new MailStorage(db), new MailSpool(), storeThreads, analyzeThreads);
+	}
+
+	/**
+	 * Creates the mail handler.
+	 * @param db the database instance
+	 * @param storage the storage module
+	 * @param spool the spool for accepted messages
+	 * @param storeThreads the number of threads for the storage stage
+	 * @param analyzeThreads the number of threads for the analysis stage
+	 */
+	public MailHandler(MailDB db, MailStorage storage, MailSpool spool, int storeThreads, int analyzeThreads) {
 		this.db = db;
-		this.storage = new MailStorage(db);
+		this.spool = spool;
+		this.storage = storage;
 		this.analyzer = new MailAnalyzer(db);
+		this.storePool = newStagePool(storeThreads);
+		this.analyzePool = newStagePool(analyzeThreads);
+		this.dispatcher = Executors.newSingleThreadExecutor();
+		this.scheduler = Executors.newSingleThreadScheduledExecutor();
+		scheduler.scheduleAtFixedRate(this::logStats, STATS_LOG_INTERVAL, STATS_LOG_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/** Resumes processing all messages left in the spool (e.g. before the last shutdown). */
+	public void recoverSpool() {
+		for (MailSpool.Entry entry : spool.recover()) {
+			pending.incrementAndGet();
+			logger.info("Recovered spooled message: {} -> {}", entry.getFrom(), entry.getRecipients());
+			storePool.execute(() -> store(entry, 0));
+		}
+	}
+
+	/** Creates a thread pool with a bounded queue for a pipeline stage. */
+	private ThreadPoolExecutor newStagePool(int threads) {
+		return new ThreadPoolExecutor(
+			threads, threads, 0L, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(STAGE_QUEUE_CAPACITY),
+			new ThreadPoolExecutor.CallerRunsPolicy()
+		);
+	}
+
+	/**
+	 * Shuts down the pipeline, finishing all queued messages first.
+	 * Messages waiting to be retried stay in the spool for the next restart.
+	 */
+	public void shutdown() {
+		scheduler.shutdownNow();
+		storePool.shutdown();
+		try {
+			storePool.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		storage.close();  // commits the remaining batches, queueing them for analysis
+		dispatcher.shutdown();
+		try {
+			dispatcher.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		analyzePool.shutdown();
+		try {
+			analyzePool.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		analyzer.shutdown();
+	}
+
+	/** Returns the number of messages waiting for the storage stage. */
+	public int getStoreQueueDepth() { return storePool.getQueue().size(); }
+
+	/** Returns the number of messages waiting for the analysis stage. */
+	public int getAnalyzeQueueDepth() { return analyzePool.getQueue().size(); }
+
+	/** Returns the number of accepted messages that have not been fully processed. */
+	public int getPendingCount() { return pending.get(); }
+
+	/** Logs the pipeline and cache statistics. */
+	private void logStats() {
+		logger.info(
+			"Pipeline queues: pending={}, store={} (active {}), write={}, analyze={} (active {}).",
+			getPendingCount(), getStoreQueueDepth(), storePool.getActiveCount(),
+			storage.getWriteQueueDepth(), getAnalyzeQueueDepth(), analyzePool.getActiveCount()
+		);
+		for (Map.Entry<String, String> stat : db.getStats().entrySet())
+			logger.info("{}: {}", stat.getKey(), stat.getValue());
+		logger.info("Encoding matcher cache: {}", EncodingMatcher.getCacheStats());
 	}
 
 	/** Returns whether to accept or reject this message. */
@@ -38,25 +205,101 @@ public class MailHandler {
 		return true;
 	}
 
-	/** Handles the message. */
-	public void handleMessage(String from, String recipient, String data) {
-		// get user info
-		MailDB.MailUser user;
+	/**
+	 * Handles the message.
+	 * Returns once the message has been durably spooled; processing
+	 * continues in the background.
+	 * @throws IOException if the message could not be spooled
+	 */
+	public void handleMessage(String from, List<String> recipients, byte[] data) throws IOException {
+		MailSpool.Entry entry = spool.spool(from, recipients, data);
+		pending.incrementAndGet();
+		storePool.execute(() -> store(entry, 0));
+	}
+
+	/** Schedules another attempt to store a message, after a delay growing with the number of attempts. */
+	private void retry(MailSpool.Entry entry, int attempt) {
+		long delay = Math.min(RETRY_INITIAL_DELAY << Math.min(attempt, 16), RETRY_MAX_DELAY);
+		logger.warn("Retrying message in {} ms: {} -> {}", delay, entry.getFrom(), entry.getRecipients());
 		try {
-			user = db.getUserInfo(recipient);
-		} catch (SQLException e) {
-			logger.error("Failed to query database.", e);
+			scheduler.schedule(() -> storePool.execute(() -> store(entry, attempt + 1)), delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			pending.decrementAndGet();  // shutting down, the message stays spooled
+		}
+	}
+
+	/**
+	 * Storage stage: stores the message for all recipients, then queues it for analysis.
+	 * @param entry the spooled message
+	 * @param attempt the number of earlier attempts
+	 */
+	private void store(MailSpool.Entry entry, int attempt) {
+		// get user info
+		List<Delivery> deliveries = new ArrayList<Delivery>(entry.getRecipients().size());
+		List<MailDB.MailUser> users = new ArrayList<MailDB.MailUser>(entry.getRecipients().size());
+		for (String recipient : entry.getRecipients()) {
+			MailDB.MailUser user;
+			try {
+				user = db.getUserInfo(recipient);
+			} catch (SQLException e) {
+				logger.error("Failed to query database.", e);
+				retry(entry, attempt);
+				return;
+			}
+			if (user == null) {
+				logger.error("No user entry for email '{}'.", recipient);
+				continue;
+			}
+
+			// claimed now: the received count only changes once the batch is committed
+			deliveries.add(new Delivery(user, user.claimFirstEmail()));
+			users.add(user);
+		}
+		if (deliveries.isEmpty()) {
+			release(entry);
 			return;
 		}
-		if (user == null) {
-			logger.error("No user entry for email '{}'.", recipient);
+
+		// parse the message once for all modules and recipients
+		ParsedMessage message;
+		try {
+			message = new ParsedMessage(entry.getData());
+		} catch (IOException e) {
+			// leave the spool file in place for inspection
+			logger.error("Failed to read spooled message.", e);
+			pending.decrementAndGet();
 			return;
 		}
 
-		// store mail on disk
-		storage.store(from, user, data);
+		// store mail on disk, then analyze once committed
+		storage.store(entry.getFrom(), users, message).whenCompleteAsync((id, e) -> {
+			if (e != null) {
+				// keep the message spooled so it is retried on the next restart
+				logger.error("Failed to store message.", e);
+				return;
+			}
+			analyzePool.execute(() -> analyze(entry, deliveries, message));
+		}, dispatcher);
+	}
+
+	/** Analysis stage: analyzes the message for all recipients, then releases it from the spool. */
+	private void analyze(MailSpool.Entry entry, List<Delivery> deliveries, ParsedMessage message) {
+		try {
+			for (Delivery delivery : deliveries) {
+				try {
+					analyzer.analyze(entry.getFrom(), delivery.user, message, delivery.isFirstEmail);
+				} catch (Exception e) {
+					logger.error("Failed to analyze message.", e);
+				}
+			}
+		} finally {
+			release(entry);
+		}
+	}
 
-		// analyze mail
-		analyzer.analyze(from, user, data);
+	/** Releases a fully processed message from the spool. */
+	private void release(MailSpool.Entry entry) {
+		spool.release(entry);
+		pending.decrementAndGet();
 	}
 }
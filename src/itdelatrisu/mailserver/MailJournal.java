@@ -0,0 +1,300 @@
+package itdelatrisu.mailserver;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal file of opaque records.
+ * <p>
+ * Each record is written with a header holding its length and CRC-32, so a
+ * record torn by a crash is detected when the journal is opened, and the
+ * journal is truncated at the last good record. Only the last record can be
+ * torn (a crash may also leave zeros past it); a bad record followed by a
+ * valid one means the file is corrupt, and opening it fails without
+ * modifying it.
+ * Appended records reach the operating system immediately; only records
+ * appended with {@code sync} set are also forced to disk before returning.
+ */
+public class MailJournal {
+	private static final Logger logger = LoggerFactory.getLogger(MailJournal.class);
+
+	/** Size of a record header (length and CRC-32). */
+	private static final int HEADER_SIZE = 8;
+
+	/** Maximum record length (anything longer is treated as corruption). */
+	private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+
+	/** Number of positions checked per read when looking for a valid record past a bad one. */
+	private static final int SCAN_WINDOW_SIZE = 64 * 1024;
+
+	/** Suffix of the temporary file written by {@link #rewrite(List)}. */
+	private static final String REWRITE_SUFFIX = ".tmp";
+
+	/** The journal file. */
+	private final File file;
+
+	/** The channel for appending, once opened. */
+	private FileChannel channel;
+
+	/** The journal size (in bytes). */
+	private long size;
+
+	/** Handles a record read from the journal. */
+	@FunctionalInterface
+	public interface RecordHandler {
+		void handle(byte[] record) throws IOException;
+	}
+
+	/** Constructor. */
+	public MailJournal(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Reads all records in order, passing each to the handler, then opens the
+	 * journal for appending. A torn last record is truncated.
+	 * @throws IOException if a record before the last one is corrupt (the
+	 *         file is left untouched)
+	 */
+	public synchronized void open(RecordHandler handler) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+			throw new IOException(String.format("Failed to create journal directory '%s'.", dir.getAbsolutePath()));
+		Files.deleteIfExists(getRewriteFile().toPath());  // interrupted rewrite
+
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			size = replay(handler);
+			channel.position(size);
+		} catch (IOException e) {
+			channel.close();
+			channel = null;
+			throw e;
+		}
+	}
+
+	/** Reads all records, truncating a torn last record, and returns the journal size. */
+	private long replay(RecordHandler handler) throws IOException {
+		long fileSize = channel.size(), position = 0;
+		while (position < fileSize) {
+			byte[] record = readRecord(channel, position, fileSize);
+			if (record == null) {
+				// a torn append leaves at most one partial record (and possibly zeros)
+				if (findRecord(channel, position + 1, fileSize) >= 0)
+					throw new IOException(String.format(
+						"Journal '%s' is corrupt at offset %d, with %d bytes after it; the file was left unchanged.",
+						file.getAbsolutePath(), position, fileSize - position
+					));
+				logger.warn("Truncating journal '{}' at offset {} (discarding {} bytes).", file.getAbsolutePath(), position, fileSize - position);
+				channel.truncate(position);
+				channel.force(true);
+				break;
+			}
+			handler.handle(record);
+			position += HEADER_SIZE + record.length;
+		}
+		return position;
+	}
+
+	/** Reads the record at the given position, or returns null if there is no valid record there. */
+	private static byte[] readRecord(FileChannel channel, long position, long end) throws IOException {
+		if (position + HEADER_SIZE > end)
+			return null;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(channel, header, position);
+		int length = header.getInt(0), checksum = header.getInt(4);
+		if (length <= 0 || length > MAX_RECORD_LENGTH || position + HEADER_SIZE + length > end)
+			return null;
+		ByteBuffer record = ByteBuffer.allocate(length);
+		readFully(channel, record, position + HEADER_SIZE);
+		CRC32 crc = new CRC32();
+		crc.update(record.array());
+		return ((int) crc.getValue() == checksum) ? record.array() : null;
+	}
+
+	/** Returns the position of the first valid record at or after the given position, or -1 if none. */
+	private static long findRecord(FileChannel channel, long position, long end) throws IOException {
+		// scan a window at a time, only reading candidates with a plausible length
+		ByteBuffer window = ByteBuffer.allocate(SCAN_WINDOW_SIZE + HEADER_SIZE);
+		while (position + HEADER_SIZE <= end) {
+			window.clear();
+			window.limit((int) Math.min(window.capacity(), end - position));
+			readFully(channel, window, position);
+			int candidates = window.limit() - HEADER_SIZE + 1;
+			for (int i = 0; i < Math.min(candidates, SCAN_WINDOW_SIZE); i++) {
+				int length = window.getInt(i);
+				if (length > 0 && length <= MAX_RECORD_LENGTH && position + i + HEADER_SIZE + length <= end &&
+				    readRecord(channel, position + i, end) != null)
+					return position + i;
+			}
+			position += SCAN_WINDOW_SIZE;
+		}
+		return -1;
+	}
+
+	/** Reads bytes from a channel until the buffer is full. */
+	private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf, position + buf.position());
+			if (n < 0)
+				throw new IOException("Unexpected end of journal.");
+		}
+	}
+
+	/**
+	 * Appends a record.
+	 * @param record the record (not empty)
+	 * @param sync whether to force the record (and all before it) to disk
+	 */
+	public synchronized void append(byte[] record, boolean sync) throws IOException {
+		if (channel == null)
+			throw new IOException("Journal is not open.");
+		size += write(channel, record);
+		if (sync)
+			channel.force(false);
+	}
+
+	/** Writes a record with its header to a channel, and returns the number of bytes written. */
+	private static int write(FileChannel channel, byte[] record) throws IOException {
+		if (record.length == 0 || record.length > MAX_RECORD_LENGTH)
+			throw new IOException(String.format("Invalid journal record length %d.", record.length));
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + record.length);
+		buf.putInt(record.length).putInt((int) crc.getValue()).put(record);
+		buf.flip();
+		while (buf.hasRemaining())
+			channel.write(buf);
+		return HEADER_SIZE + record.length;
+	}
+
+	/**
+	 * Reads up to {@code maxRecords} records appended so far, starting at the
+	 * given position (the end of a record), and returns the position after
+	 * the last record read. Can be called while records are being appended.
+	 */
+	public long read(long position, int maxRecords, RecordHandler handler) throws IOException {
+		FileChannel channel;
+		long end;
+		synchronized (this) {
+			if (this.channel == null)
+				throw new IOException("Journal is not open.");
+			channel = this.channel;
+			end = size;
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		for (int i = 0; i < maxRecords && position < end; i++) {
+			header.clear();
+			readFully(channel, header, position);
+			header.flip();
+			int length = header.getInt();
+			header.getInt();  // checked on open
+			ByteBuffer record = ByteBuffer.allocate(length);
+			readFully(channel, record, position + HEADER_SIZE);
+			handler.handle(record.array());
+			position += HEADER_SIZE + length;
+		}
+		return position;
+	}
+
+	/**
+	 * Empties the journal, unless records were appended past the given size
+	 * (i.e. since the caller last read it).
+	 * @return true if the journal was emptied
+	 */
+	public synchronized boolean reset(long expectedSize) throws IOException {
+		if (channel == null || size != expectedSize)
+			return false;
+		channel.truncate(0);
+		channel.position(0);
+		channel.force(true);
+		size = 0;
+		return true;
+	}
+
+	/**
+	 * Replaces the contents of the journal with the given records (e.g. a
+	 * snapshot of the state built by the old records). The records are
+	 * written to a new file, which is moved over the journal once synced, so
+	 * a crash leaves either the old or the new journal. Must not be called
+	 * concurrently with {@link #read(long, int, RecordHandler)}.
+	 */
+	public synchronized void rewrite(List<byte[]> records) throws IOException {
+		if (channel == null)
+			throw new IOException("Journal is not open.");
+		File tmp = getRewriteFile();
+		long newSize = 0;
+		try (FileChannel out = FileChannel.open(
+			tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE
+		)) {
+			for (byte[] record : records)
+				newSize += write(out, record);
+			out.force(true);
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		channel.close();
+		channel = null;
+		File dir = file.getAbsoluteFile().getParentFile();
+		try (FileChannel dirChannel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+			dirChannel.force(true);  // persist the rename
+		} catch (IOException e) {
+			// not supported on all platforms
+		}
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		size = newSize;
+		channel.position(size);
+	}
+
+	/** Returns the temporary file written by {@link #rewrite(List)}. */
+	private File getRewriteFile() { return new File(file.getPath() + REWRITE_SUFFIX); }
+
+	/** Writes a nullable string to a record (not limited to 64 KB, unlike {@link DataOutputStream#writeUTF}). */
+	public static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	/** Reads a string written by {@link #writeString(DataOutputStream, String)}. */
+	public static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		byte[] b = new byte[length];
+		in.readFully(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	/** Returns the journal size (in bytes). */
+	public synchronized long size() { return size; }
+
+	/** Forces all records to disk, and closes the journal. */
+	public synchronized void close() {
+		if (channel == null)
+			return;
+		try {
+			channel.force(false);
+			channel.close();
+		} catch (IOException e) {
+			logger.error(String.format("Failed to close journal '%s'.", file.getAbsolutePath()), e);
+		}
+		channel = null;
+	}
+}
@@ -2,12 +2,18 @@ package itdelatrisu.mailserver;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.MessageHandlerFactory;
+import org.subethamail.smtp.RejectException;
 import org.subethamail.smtp.TooMuchDataException;
-import org.subethamail.smtp.helper.SimpleMessageListener;
-import org.subethamail.smtp.helper.SimpleMessageListenerAdapter;
 import org.subethamail.smtp.server.SMTPServer;
 
 /**
@@ -16,32 +22,114 @@ import org.subethamail.smtp.server.SMTPServer;
 public class MailServer extends SMTPServer {
 	private static final Logger logger = LoggerFactory.getLogger(MailServer.class);
 
-	/** SMTP message listener. */
-	private static class MessageListener implements SimpleMessageListener {
+	/** The mail handler. */
+	private final MailHandler handler;
+
+	/** SMTP message handler factory. */
+	private static class TransactionHandlerFactory implements MessageHandlerFactory {
+		private final MailHandler handler;
+		public TransactionHandlerFactory(MailHandler handler) { this.handler = handler; }
+
+		@Override
+		public MessageHandler create(MessageContext ctx) { return new TransactionHandler(handler); }
+	}
+
+	/**
+	 * SMTP message handler for a single mail transaction.
+	 * Unlike SimpleMessageListenerAdapter, the message data is read and
+	 * handed off once for all recipients, rather than once per recipient.
+	 */
+	private static class TransactionHandler implements MessageHandler {
 		private final MailHandler handler;
-		public MessageListener(MailDB db) { handler = new MailHandler(db); }
+		private final List<String> recipients = new ArrayList<String>();
+		private String from;
+		public TransactionHandler(MailHandler handler) { this.handler = handler; }
 
 		@Override
-		public boolean accept(String from, String recipient) {
+		public void from(String from) throws RejectException {
+			this.from = from;
+		}
+
+		@Override
+		public void recipient(String recipient) throws RejectException {
 			logger.info("ACCEPT: {} -> {}", from, recipient);
-			return handler.accept(from, recipient);
+			if (!handler.accept(from, recipient))
+				throw new RejectException(553, "<" + recipient + "> address unknown.");
+			recipients.add(recipient);
 		}
 
 		@Override
-		public void deliver(String from, String recipient, InputStream data)
-			throws TooMuchDataException, IOException {
-			String content = Utils.streamToString(data);
-			logger.info("DELIVER: {} -> {}", from, recipient);
-			handler.handleMessage(from, recipient, content);
+		public void data(InputStream data) throws RejectException, TooMuchDataException, IOException {
+			byte[] content = Utils.streamToBytes(data);
+			logger.info("DELIVER: {} -> {}", from, recipients);
+			handler.handleMessage(from, recipients, content);
 		}
+
+		@Override
+		public void done() {}
 	}
 
 	/** Creates the SMTP server. */
 	public MailServer(MailDB db) {
-		super(new SimpleMessageListenerAdapter(new MessageListener(db)));
+		this(new MailHandler(db), false);
+	}
+
+	/**
+	 * Creates the SMTP server.
+	 * @param db the database instance
+	 * @param storeThreads the number of threads for the storage stage
+	 * @param analyzeThreads the number of threads for the analysis stage
+	 * @param useVirtualThreads whether to run SMTP sessions on virtual threads
+	 *        (requires Java 21+, otherwise falls back to platform threads)
+	 */
+	public MailServer(MailDB db, int storeThreads, int analyzeThreads, boolean useVirtualThreads) {
+		this(new MailHandler(db, storeThreads, analyzeThreads), useVirtualThreads);
+	}
+
+	/**
+	 * Creates the SMTP server.
+	 * @param handler the mail handler
+	 * @param useVirtualThreads whether to run SMTP sessions on virtual threads
+	 *        (requires Java 21+, otherwise falls back to platform threads)
+	 */
+	public MailServer(MailHandler handler, boolean useVirtualThreads) {
+		super(new TransactionHandlerFactory(handler), null, newSessionExecutor(useVirtualThreads));
+		this.handler = handler;
 		setSystemProperties();
 	}
 
+	/**
+	 * Returns the executor for SMTP sessions: one virtual thread per session
+	 * if requested and supported by the JVM, otherwise a cached platform
+	 * thread pool (the library default).
+	 */
+	private static ExecutorService newSessionExecutor(boolean useVirtualThreads) {
+		if (useVirtualThreads) {
+			try {
+				// loaded reflectively, since we still target Java 8
+				return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (ReflectiveOperationException e) {
+				logger.warn("Virtual threads are not supported by this JVM, using platform threads.");
+			}
+		}
+		return Executors.newCachedThreadPool();
+	}
+
+	/** Returns the mail handler. */
+	public MailHandler getHandler() { return handler; }
+
+	@Override
+	public synchronized void start() {
+		super.start();
+		handler.recoverSpool();
+	}
+
+	@Override
+	public synchronized void stop() {
+		super.stop();
+		handler.shutdown();
+	}
+
 	/** Sets system properties. */
 	private void setSystemProperties() {
 		// allow multipart messages with no body parts
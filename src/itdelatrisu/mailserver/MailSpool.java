@@ -0,0 +1,160 @@
+package itdelatrisu.mailserver;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Durable on-disk spool for accepted messages that have not been fully
+ * processed yet.
+ */
+public class MailSpool {
+	private static final Logger logger = LoggerFactory.getLogger(MailSpool.class);
+
+	/** Default spool directory. */
+	private static final File DEFAULT_SPOOL_DIR = new File("spool");
+
+	/** File extension for complete spool entries. */
+	private static final String SPOOL_EXT = ".msg";
+
+	/** File extension for spool entries still being written. */
+	private static final String TEMP_EXT = ".tmp";
+
+	/** The spool directory. */
+	private final File spoolDir;
+
+	/** Counter for unique spool file names. */
+	private final AtomicLong counter = new AtomicLong();
+
+	/** Represents a spooled message. */
+	public class Entry {
+		private final File file;
+		private final String from;
+		private final List<String> recipients;
+		private byte[] data;
+
+		/** Constructor. */
+		private Entry(File file, String from, List<String> recipients, byte[] data) {
+			this.file = file;
+			this.from = from;
+			this.recipients = Collections.unmodifiableList(recipients);
+			this.data = data;
+		}
+
+		/** Returns the envelope sender. */
+		public String getFrom() { return from; }
+
+		/** Returns the envelope recipients. */
+		public List<String> getRecipients() { return recipients; }
+
+		/**
+		 * Returns the raw message data.
+		 * The data of a recovered entry is read from the spool file on first use.
+		 */
+		public synchronized byte[] getData() throws IOException {
+			if (data == null) {
+				try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+					readHeader(in, new ArrayList<String>());
+					byte[] b = new byte[in.readInt()];
+					in.readFully(b);
+					data = b;
+				}
+			}
+			return data;
+		}
+	}
+
+	/** Initializes the spool. */
+	public MailSpool() {
+		this(DEFAULT_SPOOL_DIR);
+	}
+
+	/** Initializes the spool. */
+	public MailSpool(File spoolDir) {
+		this.spoolDir = spoolDir;
+		if (!spoolDir.isDirectory() && !spoolDir.mkdirs())
+			logger.error("Failed to create spool directory '{}'.", spoolDir.getAbsolutePath());
+	}
+
+	/**
+	 * Writes the message to the spool and syncs it to disk.
+	 * The entry is only visible to {@link #recover()} once fully written.
+	 */
+	public Entry spool(String from, List<String> recipients, byte[] data) throws IOException {
+		String name = String.format("%d-%09d", System.currentTimeMillis(), counter.incrementAndGet());
+		File temp = new File(spoolDir, name + TEMP_EXT);
+		File file = new File(spoolDir, name + SPOOL_EXT);
+		try (FileOutputStream fos = new FileOutputStream(temp)) {
+			DataOutputStream out = new DataOutputStream(fos);
+			out.writeUTF(from);
+			out.writeInt(recipients.size());
+			for (String recipient : recipients)
+				out.writeUTF(recipient);
+			out.writeInt(data.length);
+			out.write(data);
+			out.flush();
+			fos.getFD().sync();
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException(String.format("Failed to move spool file '%s'.", file.getAbsolutePath()));
+		}
+		return new Entry(file, from, new ArrayList<String>(recipients), data);
+	}
+
+	/** Removes a fully processed entry from the spool. */
+	public void release(Entry entry) {
+		if (!entry.file.delete() && entry.file.exists())
+			logger.error("Failed to delete spool file '{}'.", entry.file.getAbsolutePath());
+	}
+
+	/** Reads the header of a spool file into the recipient list, and returns the envelope sender. */
+	private static String readHeader(DataInputStream in, List<String> recipients) throws IOException {
+		String from = in.readUTF();
+		int count = in.readInt();
+		for (int i = 0; i < count; i++)
+			recipients.add(in.readUTF());
+		return from;
+	}
+
+	/**
+	 * Returns all complete entries left in the spool (e.g. from before a
+	 * restart), oldest first. Only the envelopes are read here: the message
+	 * data is read when first used (see {@link Entry#getData()}).
+	 */
+	public List<Entry> recover() {
+		List<Entry> entries = new ArrayList<Entry>();
+		File[] files = spoolDir.listFiles();
+		if (files == null)
+			return entries;
+		Arrays.sort(files);
+		for (File file : files) {
+			if (file.getName().endsWith(TEMP_EXT)) {
+				file.delete();  // incomplete write, never acknowledged
+				continue;
+			}
+			if (!file.getName().endsWith(SPOOL_EXT))
+				continue;
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+				List<String> recipients = new ArrayList<String>();
+				String from = readHeader(in, recipients);
+				entries.add(new Entry(file, from, recipients, null));
+			} catch (IOException e) {
+				logger.error(String.format("Failed to read spool file '%s'.", file.getAbsolutePath()), e);
+			}
+		}
+		return entries;
+	}
+}
@@ -1,25 +1,41 @@
 package itdelatrisu.mailserver;
 
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
-import java.sql.SQLException;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.mail.MessagingException;
-import javax.mail.Multipart;
-import javax.mail.Part;
-import javax.mail.internet.MimeMessage;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Storage handler for incoming mail.
+ * <p>
+ * Messages are appended to a {@link SegmentStore}, and the resulting message
+ * ID ({@code segment:offset:length}) is recorded in each recipient's inbox
+ * entry in place of a file name. Message bodies are deduplicated across
+ * messages by a {@link ContentStore}. Messages are stored compressed, and
+ * segments older than the archive age are periodically re-packed into the
+ * archive tier; {@link #read(String)} reads from either tier. Writes are
+ * group-committed in batches by a {@link StorageWriter}.
+ * <p>
+ * A preset compression dictionary tuned on the mail corpus can be placed in
+ * {@code {root_mail_dir}/dictionary}; otherwise a built-in one is used.
+ * Every dictionary used for writing is also saved in
+ * {@code {root_mail_dir}/dictionaries/} under its checksum, and all saved
+ * dictionaries are loaded on startup, so records stay readable after the
+ * dictionary is replaced.
  */
 public class MailStorage {
 	private static final Logger logger = LoggerFactory.getLogger(MailStorage.class);
@@ -27,11 +43,33 @@ public class MailStorage {
 	/** Default root mail directory. */
 	private static final File DEFAULT_MAIL_DIR = new File("mail");
 
-	/** The database instance. */
-	private final MailDB db;
+	/** Default minimum age (in ms) of segments to move to the archive tier. */
+	public static final long DEFAULT_ARCHIVE_AGE = TimeUnit.DAYS.toMillis(30);
 
-	/** The root mail directory. */
-	private final File mailDir;
+	/** Interval (in ms) between archiving passes. */
+	private static final long ARCHIVE_INTERVAL = TimeUnit.HOURS.toMillis(1);
+
+	/** Replacement for stripped parts (formatted with the MIME type and encoded body size). */
+	private static final String ATTACHMENT_PLACEHOLDER =
+		"Content-Type: text/plain; charset=us-ascii\r\n\r\n[Attachment removed: %s, %d bytes]";
+
+	/** File name of the preset compression dictionary in the root mail directory. */
+	private static final String DICTIONARY_FILE = "dictionary";
+
+	/** Directory of all dictionaries used so far, in the root mail directory. */
+	private static final String DICTIONARY_DIR = "dictionaries";
+
+	/** The message store. */
+	private final SegmentStore segments;
+
+	/** The deduplicating store on top of the message store. */
+	private final ContentStore content;
+
+	/** The group-commit writer. */
+	private final StorageWriter writer;
+
+	/** The scheduler for archiving old segments. */
+	private final ScheduledExecutorService archiver;
 
 	/** Initializes the storage module. */
 	public MailStorage(MailDB db) {
@@ -40,88 +78,141 @@ public class MailStorage {
 
 	/** Initializes the storage module. */
 	public MailStorage(MailDB db, File rootDir) {
-		this.db = db;
-		this.mailDir = rootDir;
-		if (!mailDir.isDirectory() && !mailDir.mkdirs())
-			logger.error("Failed to create root mail directory '{}'.", mailDir.getAbsolutePath());
+		this(db, rootDir, DEFAULT_ARCHIVE_AGE);
 	}
 
-	/** Stores the message. */
-	public void store(String from, MailDB.MailUser user, String data) {
-		// {root_mail_dir}/{email}/{timestamp}.eml
-		File dir = new File(mailDir, Utils.cleanFileName(user.getEmail(), '_'));
-		if (!dir.isDirectory() && !dir.mkdirs()) {
-			logger.error("Failed to create mail directory '{}'.", dir.getAbsolutePath());
-			dir = mailDir;
-		}
-		String filename = String.format("%d.eml", System.currentTimeMillis());
-		File file = new File(dir, filename);
-
-		// write contents to file
-		try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
-			writer.write(stripAttachments(data));
+	/**
+	 * Initializes the storage module.
+	 * @param db the database instance
+	 * @param rootDir the root mail directory
+	 * @param archiveAge the minimum age (in ms) of segments to move to the archive tier
+	 * @throws UncheckedIOException if the message store could not be opened
+	 */
+	public MailStorage(MailDB db, File rootDir, long archiveAge) {
+		try {
+			if (!rootDir.isDirectory() && !rootDir.mkdirs())
+				throw new IOException("Failed to create root mail directory.");
+			File dictionaryFile = new File(rootDir, DICTIONARY_FILE), dictionaryDir = new File(rootDir, DICTIONARY_DIR);
+			byte[] dictionary = dictionaryFile.isFile() ?
+				Files.readAllBytes(dictionaryFile.toPath()) : MessageCodec.DEFAULT_DICTIONARY;
+			MessageCodec.saveDictionary(dictionaryDir, dictionary);  // before any record uses it
+			MessageCodec codec = new MessageCodec(dictionary);
+			codec.loadDictionaries(dictionaryDir);
+			this.segments = new SegmentStore(rootDir, SegmentStore.DEFAULT_MAX_SEGMENT_SIZE, codec);
+			this.content = new ContentStore(segments, rootDir);
 		} catch (IOException e) {
-			logger.error("Failed to write email to disk.", e);
+			throw new UncheckedIOException(String.format("Failed to open message store '%s'.", rootDir.getAbsolutePath()), e);
 		}
+		this.writer = new StorageWriter(db, content);
+		this.archiver = Executors.newSingleThreadScheduledExecutor();
+		archiver.scheduleWithFixedDelay(() -> segments.archive(archiveAge), ARCHIVE_INTERVAL, ARCHIVE_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stores the message for each of the given recipients.
+	 * Attachments are stripped once, and the result is written once and
+	 * referenced from every recipient's inbox entry.
+	 * @return a future completed once the message and its inbox entries have
+	 *         been durably committed (as part of a batch)
+	 */
+	public CompletableFuture<String> store(String from, List<MailDB.MailUser> users, ParsedMessage message) {
+		byte[] stripped = stripAttachments(message.getData());
 
-		// write mail entry into database
+		// get mail metadata
 		String subject = null;
 		Date sentDate = null;
 		try {
-			MimeMessage message = Utils.toMimeMessage(data);
 			subject = message.getSubject();
 			sentDate = message.getSentDate();
 		} catch (MessagingException e) {
 			logger.error("Failed to parse message.", e);
 		}
-		try {
-			db.addMailEntry(user.getEmail(), from, sentDate, subject, file.getName());
-		} catch (SQLException e) {
-			logger.error("Failed to log message to database.", e);
-		}
+
+		// queue for the next batch
+		List<String> recipients = new ArrayList<String>(users.size());
+		for (MailDB.MailUser user : users)
+			recipients.add(user.getEmail());
+		return writer.write(from, recipients, stripped, subject, sentDate);
+	}
+
+	/** Returns the number of messages waiting to be written. */
+	public int getWriteQueueDepth() { return writer.getQueueDepth(); }
+
+	/**
+	 * Reads a stored message, from whichever tier it is in.
+	 * @param id the message ID, as recorded in the inbox entry
+	 * @throws IOException if the message could not be read
+	 * @throws IllegalArgumentException if the message ID is invalid
+	 */
+	public byte[] read(String id) throws IOException {
+		return content.get(SegmentStore.MessageId.parse(id));
 	}
 
-	/** Strips attachments in the given message. */
-	private String stripAttachments(String data) {
+	/**
+	 * Opens a stored message for streaming, from whichever tier it is in.
+	 * @param id the message ID, as recorded in the inbox entry
+	 * @throws IOException if the message could not be read
+	 * @throws IllegalArgumentException if the message ID is invalid
+	 */
+	public ContentStore.MessageContent open(String id) throws IOException {
+		return content.open(SegmentStore.MessageId.parse(id));
+	}
+
+	/** Writes all queued messages, then closes the message store. */
+	public void close() {
+		writer.close();
+		archiver.shutdownNow();
 		try {
-			// parse MIME message
-			MimeMessage message = Utils.toMimeMessage(data);
-			Object content = message.getContent();
-			if (!(content instanceof Multipart))
-				return data;  // not a multipart message
-
-			// strip attachments
-			Multipart multipart = (Multipart) content;
-			if (stripAttachments(multipart)) {
-				message.setContent(multipart);
-				message.saveChanges();
-				return Utils.messageToString(message);
-			} else
-				return data;  // content unmodified
-		} catch (MessagingException | IOException e) {
-			logger.error("Error while stripping attachments.", e);
-			return data;
+			archiver.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
+		content.close();
+		segments.close();
 	}
 
 	/**
-	 * Recursively strips attachments from a multipart message,
-	 * and returns whether the message was modified.
+	 * Strips attachments in the given message.
+	 * The message structure is scanned once at the byte level: text parts
+	 * (and all headers and boundaries) are copied through unchanged, and
+	 * every other part is replaced with a short placeholder, without ever
+	 * decoding it.
 	 */
-	private boolean stripAttachments(Multipart multipart) throws MessagingException, IOException {
-		boolean modified = false;
-		for (int i = multipart.getCount() - 1; i >= 0; i--) {
-			Part part = multipart.getBodyPart(i);
-			String contentType = part.getContentType();
-			if (contentType.startsWith("multipart/")) {
-				if (stripAttachments((Multipart) part.getContent()))
-					modified = true;
-			} else if (discardMimeType(contentType)) {
-				modified = true;
-				multipart.removeBodyPart(i);
-			}
+	private byte[] stripAttachments(byte[] data) {
+		MimeScanner.Part root = MimeScanner.scan(data);
+		if (!root.isMultipart())
+			return data;  // not a multipart message
+
+		List<MimeScanner.Part> discarded = new ArrayList<MimeScanner.Part>();
+		List<MimeScanner.Part> leaves = new ArrayList<MimeScanner.Part>();
+		root.collectLeaves(leaves);
+		for (MimeScanner.Part leaf : leaves) {
+			if (leaf != root && discardMimeType(leaf.getContentType()))
+				discarded.add(leaf);
 		}
-		return modified;
+		if (discarded.isEmpty())
+			return data;  // nothing to strip
+
+		// copy everything between the discarded parts
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length - sumLengths(discarded) + discarded.size() * 128);
+		int pos = 0;
+		for (MimeScanner.Part part : discarded) {
+			out.write(data, pos, part.getStart() - pos);
+			byte[] placeholder = String.format(ATTACHMENT_PLACEHOLDER,
+				part.getContentType(), part.getEnd() - part.getBodyStart()).getBytes(StandardCharsets.US_ASCII);
+			out.write(placeholder, 0, placeholder.length);
+			pos = part.getEnd();
+		}
+		out.write(data, pos, data.length - pos);
+		return out.toByteArray();
+	}
+
+	/** Returns the total length of the given parts. */
+	private static int sumLengths(List<MimeScanner.Part> parts) {
+		int sum = 0;
+		for (MimeScanner.Part part : parts)
+			sum += part.getEnd() - part.getStart();
+		return sum;
 	}
 
 	/** Returns whether to discard content with this MIME type. */
@@ -0,0 +1,324 @@
+package itdelatrisu.mailserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes messages into compressed records for the message store.
+ * <p>
+ * Each record starts with a codec byte: {@link #RAW} records hold the
+ * message as-is, and {@link #DEFLATE} records hold the original length
+ * followed by a zlib stream compressed with a preset dictionary. Records
+ * that would not shrink are stored raw.
+ * <p>
+ * The dictionary used by a record is identified by its checksum in the
+ * zlib header, so records remain readable after the write dictionary
+ * changes as long as the old dictionary is still registered. Dictionaries
+ * can be saved in a directory under their checksums (see
+ * {@link #saveDictionary(File, byte[])}) to be registered on startup.
+ */
+public class MessageCodec {
+	/** Codec for uncompressed records. */
+	public static final byte RAW = 0;
+
+	/** Codec for deflate-compressed records. */
+	public static final byte DEFLATE = 1;
+
+	/** Header size of a deflate record (codec byte and original length). */
+	private static final int DEFLATE_HEADER_SIZE = 5;
+
+	/** Maximum original length (in bytes) of a record. */
+	private static final int MAX_DECODED_LENGTH = 256 * 1024 * 1024;
+
+	/** Maximum deflate expansion ratio (each 2-bit code can emit at most 258 bytes). */
+	private static final int MAX_DEFLATE_RATIO = 1032;
+
+	/** Buffer size (in bytes) for decoding a range of a record. */
+	private static final int DECODE_BUFFER_SIZE = 16 * 1024;
+
+	/** File extension for saved dictionaries. */
+	private static final String DICTIONARY_EXT = ".dict";
+
+	/**
+	 * Default preset dictionary: boilerplate common to newsletter mail.
+	 * Deflate favors matches near the end of the dictionary, so the most
+	 * common strings come last.
+	 */
+	public static final byte[] DEFAULT_DICTIONARY = (
+		"If you no longer wish to receive these emails, you can unsubscribe here. View this email in your browser. " +
+		"Update your preferences. Privacy Policy. Terms of Service. All rights reserved. Copyright " +
+		"Content-Transfer-Encoding: base64\r\nContent-Transfer-Encoding: 7bit\r\n" +
+		"Content-Transfer-Encoding: quoted-printable\r\nContent-Disposition: inline\r\n" +
+		"Content-Type: multipart/alternative; boundary=\"\r\nContent-Type: multipart/mixed; boundary=\"\r\n" +
+		"Content-Type: text/plain; charset=\"UTF-8\"\r\nContent-Type: text/plain; charset=UTF-8\r\n" +
+		"Content-Type: text/html; charset=\"UTF-8\"\r\nContent-Type: text/html; charset=UTF-8\r\n" +
+		"MIME-Version: 1.0\r\nMessage-ID: <\r\nList-Unsubscribe: <mailto:\r\nReply-To: \r\nX-Mailer: \r\n" +
+		"Received: from \r\nReturn-Path: <\r\nDate: \r\nFrom: \r\nTo: \r\nSubject: \r\n" +
+		"<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Transitional//EN\" " +
+		"\"http://www.w3.org/TR/xhtml1/DTD/xhtml1-transitional.dtd\">" +
+		"<html xmlns=\"http://www.w3.org/1999/xhtml\"><head>" +
+		"<meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\" />" +
+		"<meta name=\"viewport\" content=\"width=device-width, initial-scale=1.0\" />" +
+		"<style type=\"text/css\"></style></head><body style=\"margin: 0; padding: 0;\">" +
+		"font-family: Arial, Helvetica, sans-serif; font-size: 14px; line-height: 20px; color: #333333; " +
+		"text-decoration: none; font-weight: bold; text-align: center; background-color: #ffffff; " +
+		"<img src=\"https://\" width=\"1\" height=\"1\" border=\"0\" alt=\"\" style=\"display: block;\" />" +
+		"<a href=\"https://\" target=\"_blank\" style=\"color: #\">" +
+		"<td align=\"center\" valign=\"top\" style=\"padding: 0px;\">" +
+		"<table width=\"100%\" border=\"0\" cellspacing=\"0\" cellpadding=\"0\" role=\"presentation\">" +
+		"</a></td></tr></table></td></tr></table></div></span></p></body></html>"
+	).getBytes(StandardCharsets.US_ASCII);
+
+	/** The dictionary for new records. */
+	private final byte[] dictionary;
+
+	/** Known dictionaries, by Adler-32 checksum. */
+	private final Map<Integer, byte[]> dictionaries = new ConcurrentHashMap<Integer, byte[]>();
+
+	/** Per-thread compressors (fast and best compression) and decompressors. */
+	private final ThreadLocal<Deflater> fastDeflater = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+	private final ThreadLocal<Deflater> bestDeflater = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_COMPRESSION));
+	private final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(Inflater::new);
+
+	/** Creates a codec using the default dictionary. */
+	public MessageCodec() {
+		this(DEFAULT_DICTIONARY);
+	}
+
+	/**
+	 * Creates a codec.
+	 * @param dictionary the preset dictionary for new records (the default
+	 *        dictionary remains registered for reading older records)
+	 */
+	public MessageCodec(byte[] dictionary) {
+		this.dictionary = dictionary;
+		addDictionary(DEFAULT_DICTIONARY);
+		addDictionary(dictionary);
+	}
+
+	/** Registers a dictionary for reading records. */
+	public void addDictionary(byte[] dictionary) {
+		dictionaries.put(checksum(dictionary), dictionary);
+	}
+
+	/** Returns the Adler-32 checksum of a dictionary (as in the zlib header of records using it). */
+	private static int checksum(byte[] dictionary) {
+		Adler32 adler = new Adler32();
+		adler.update(dictionary, 0, dictionary.length);
+		return (int) adler.getValue();
+	}
+
+	/** Returns the file for a dictionary saved in a directory. */
+	private static File dictionaryFile(File dir, int checksum) {
+		return new File(dir, String.format("%08x%s", checksum, DICTIONARY_EXT));
+	}
+
+	/**
+	 * Saves a dictionary in a directory (if not already saved), named by its
+	 * checksum, and syncs it to disk.
+	 */
+	public static void saveDictionary(File dir, byte[] dictionary) throws IOException {
+		File file = dictionaryFile(dir, checksum(dictionary));
+		if (file.isFile())
+			return;
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException(String.format("Failed to create dictionary directory '%s'.", dir.getAbsolutePath()));
+		File temp = new File(dir, file.getName() + ".tmp");
+		Files.write(temp.toPath(), dictionary);
+		try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+			channel.force(true);
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Registers all dictionaries saved in a directory.
+	 * @return the number of dictionaries registered
+	 */
+	public int loadDictionaries(File dir) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return 0;
+		int count = 0;
+		for (File file : files) {
+			if (!file.getName().endsWith(DICTIONARY_EXT))
+				continue;
+			addDictionary(Files.readAllBytes(file.toPath()));
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Encodes a message into a record.
+	 * @param data the message data
+	 * @param bestCompression whether to use the best (slowest) compression
+	 *        level, rather than the fastest
+	 */
+	public byte[] encode(byte[] data, boolean bestCompression) {
+		Deflater deflater = (bestCompression ? bestDeflater : fastDeflater).get();
+		deflater.reset();
+		deflater.setDictionary(dictionary);
+		deflater.setInput(data);
+		deflater.finish();
+
+		// only keep the result if it is smaller than the raw record (and can be decoded)
+		byte[] buf = new byte[data.length];
+		int len = DEFLATE_HEADER_SIZE;
+		while (!deflater.finished() && len < buf.length && data.length <= MAX_DECODED_LENGTH)
+			len += deflater.deflate(buf, len, buf.length - len);
+		if (!deflater.finished()) {
+			byte[] record = new byte[data.length + 1];
+			record[0] = RAW;
+			System.arraycopy(data, 0, record, 1, data.length);
+			return record;
+		}
+		buf[0] = DEFLATE;
+		buf[1] = (byte) (data.length >>> 24);
+		buf[2] = (byte) (data.length >>> 16);
+		buf[3] = (byte) (data.length >>> 8);
+		buf[4] = (byte) data.length;
+		byte[] record = new byte[len];
+		System.arraycopy(buf, 0, record, 0, len);
+		return record;
+	}
+
+	/**
+	 * Decodes a record into the original message.
+	 * @throws IOException if the record is corrupt or uses an unknown dictionary
+	 */
+	public byte[] decode(byte[] record) throws IOException {
+		if (record.length == 0)
+			throw new IOException("Empty record.");
+		switch (record[0]) {
+		case RAW:
+			byte[] data = new byte[record.length - 1];
+			System.arraycopy(record, 1, data, 0, data.length);
+			return data;
+		case DEFLATE:
+			if (record.length < DEFLATE_HEADER_SIZE)
+				throw new IOException("Truncated record.");
+			return inflate(record);
+		default:
+			throw new IOException(String.format("Unknown record codec %d.", record[0]));
+		}
+	}
+
+	/**
+	 * Returns the length of the original message of a record, from its header.
+	 * @throws IOException if the record is corrupt
+	 */
+	public int getDecodedLength(byte[] record) throws IOException {
+		if (record.length == 0)
+			throw new IOException("Empty record.");
+		switch (record[0]) {
+		case RAW:
+			return record.length - 1;
+		case DEFLATE:
+			if (record.length < DEFLATE_HEADER_SIZE)
+				throw new IOException("Truncated record.");
+			int length = ((record[1] & 0xFF) << 24) | ((record[2] & 0xFF) << 16) | ((record[3] & 0xFF) << 8) | (record[4] & 0xFF);
+			if (length < 0 || length > MAX_DECODED_LENGTH || length > (long) (record.length - DEFLATE_HEADER_SIZE) * MAX_DEFLATE_RATIO)
+				throw new IOException(String.format("Corrupt record (invalid length %d).", length));
+			return length;
+		default:
+			throw new IOException(String.format("Unknown record codec %d.", record[0]));
+		}
+	}
+
+	/**
+	 * Writes a range of the original message of a record to a channel.
+	 * Deflate records are inflated through a small buffer, and only up to
+	 * the end of the range, so the message is never held in memory in full.
+	 * @param record the record
+	 * @param start the start offset in the original message
+	 * @param count the number of bytes to write
+	 * @param target the target channel
+	 * @throws IOException if the record is corrupt or uses an unknown dictionary
+	 */
+	public void decodeTo(byte[] record, long start, long count, WritableByteChannel target) throws IOException {
+		int length = getDecodedLength(record);
+		if (start < 0 || count < 0 || start + count > length)
+			throw new IndexOutOfBoundsException();
+		if (record[0] == RAW) {
+			ByteBuffer buf = ByteBuffer.wrap(record, 1 + (int) start, (int) count);
+			while (buf.hasRemaining())
+				target.write(buf);
+			return;
+		}
+
+		Inflater inflater = startInflate(record);
+		byte[] buf = new byte[(int) Math.min(DECODE_BUFFER_SIZE, start + count)];
+		long pos = 0, end = start + count;
+		while (pos < end) {
+			int n = inflate(inflater, buf, 0, (int) Math.min(buf.length, end - pos));
+			if (n == 0)
+				throw new IOException("Truncated or corrupt record.");
+			if (pos + n > start) {
+				int from = (int) Math.max(start - pos, 0);
+				ByteBuffer out = ByteBuffer.wrap(buf, from, n - from);
+				while (out.hasRemaining())
+					target.write(out);
+			}
+			pos += n;
+		}
+	}
+
+	/** Decompresses a deflate record. */
+	private byte[] inflate(byte[] record) throws IOException {
+		int length = getDecodedLength(record);
+		byte[] data = new byte[length];
+		Inflater inflater = startInflate(record);
+		int len = 0;
+		while (!inflater.finished()) {
+			int n = inflate(inflater, data, len, data.length - len);
+			len += n;
+			if (n == 0 && (inflater.needsInput() || len == data.length))
+				break;
+		}
+		if (!inflater.finished() || len != length)
+			throw new IOException("Truncated or corrupt record.");
+		return data;
+	}
+
+	/** Returns this thread's decompressor, reset to read a deflate record. */
+	private Inflater startInflate(byte[] record) {
+		Inflater inflater = this.inflater.get();
+		inflater.reset();
+		inflater.setInput(record, DEFLATE_HEADER_SIZE, record.length - DEFLATE_HEADER_SIZE);
+		return inflater;
+	}
+
+	/**
+	 * Inflates into the buffer, setting the preset dictionary when asked for,
+	 * and returns the number of bytes written.
+	 */
+	private int inflate(Inflater inflater, byte[] buf, int off, int len) throws IOException {
+		try {
+			while (true) {
+				int n = inflater.inflate(buf, off, len);
+				if (n > 0 || !inflater.needsDictionary())
+					return n;
+				byte[] dict = dictionaries.get(inflater.getAdler());
+				if (dict == null)
+					throw new IOException(String.format("Record uses an unknown dictionary (%08x).", inflater.getAdler()));
+				inflater.setDictionary(dict);
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt record.", e);
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package itdelatrisu.mailserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Byte-level scanner for the MIME structure of a raw message.
+ * <p>
+ * Unlike parsing into a {@code MimeMessage}, this only locates header and
+ * body boundaries, without decoding or copying any content, so parts can
+ * be sliced out of (or around) the original bytes exactly.
+ */
+public class MimeScanner {
+	/** Maximum multipart nesting depth to descend into. */
+	private static final int MAX_DEPTH = 16;
+
+	/** A MIME entity: a range of the message, with its headers and body. */
+	public static class Part {
+		private final int start, bodyStart, end;
+		private final String contentType, boundary;
+		private final List<Part> children;
+
+		/** Constructor. */
+		private Part(int start, int bodyStart, int end, String contentType, String boundary, List<Part> children) {
+			this.start = start;
+			this.bodyStart = bodyStart;
+			this.end = end;
+			this.contentType = contentType;
+			this.boundary = boundary;
+			this.children = children;
+		}
+
+		/** Returns the start offset of the part (i.e. of its headers). */
+		public int getStart() { return start; }
+
+		/** Returns the start offset of the part body. */
+		public int getBodyStart() { return bodyStart; }
+
+		/** Returns the end offset (exclusive) of the part. */
+		public int getEnd() { return end; }
+
+		/** Returns the lowercase MIME type, without parameters (defaults to "text/plain"). */
+		public String getContentType() { return contentType; }
+
+		/** Returns the multipart boundary, or null if this is not a multipart entity. */
+		public String getBoundary() { return boundary; }
+
+		/** Returns whether this is a multipart entity. */
+		public boolean isMultipart() { return boundary != null; }
+
+		/** Returns the child parts of a multipart entity, in order (empty otherwise). */
+		public List<Part> getChildren() { return children; }
+
+		/** Adds all leaf (non-multipart) parts under this one to the given list, in order. */
+		public void collectLeaves(List<Part> leaves) {
+			if (!isMultipart())
+				leaves.add(this);
+			else {
+				for (Part child : children)
+					child.collectLeaves(leaves);
+			}
+		}
+	}
+
+	private MimeScanner() {}
+
+	/** Scans the MIME structure of a raw message. */
+	public static Part scan(byte[] data) {
+		return scan(data, 0, data.length, 0);
+	}
+
+	/** Scans the MIME entity in the given range. */
+	private static Part scan(byte[] data, int start, int end, int depth) {
+		int bodyStart = findBodyStart(data, start, end);
+		String contentType = null;
+		String header = getHeader(data, start, bodyStart, "content-type");
+		if (header != null) {
+			int i = header.indexOf(';');
+			contentType = ((i == -1) ? header : header.substring(0, i)).trim().toLowerCase(Locale.ROOT);
+		}
+		if (contentType == null || contentType.isEmpty())
+			contentType = "text/plain";
+
+		// split multipart bodies
+		String boundary = null;
+		List<Part> children = Collections.emptyList();
+		if (contentType.startsWith("multipart/") && depth < MAX_DEPTH)
+			boundary = getParameter(header, "boundary");
+		if (boundary != null) {
+			children = new ArrayList<Part>();
+			byte[] delimiter = ("--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+			int partStart = -1, pos = bodyStart;
+			while (pos < end) {
+				int lineEnd = findLineEnd(data, pos, end);
+				if (startsWith(data, pos, lineEnd, delimiter)) {
+					int rest = pos + delimiter.length;
+					boolean last = startsWith(data, rest, lineEnd, new byte[] { '-', '-' });
+					if (!isBlank(data, last ? rest + 2 : rest, lineEnd)) {
+						pos = skipLineBreak(data, lineEnd, end);
+						continue;  // longer boundary sharing this prefix
+					}
+					if (partStart != -1)
+						children.add(scan(data, partStart, trimLineBreak(data, partStart, pos), depth + 1));
+					if (last)
+						break;
+					partStart = skipLineBreak(data, lineEnd, end);
+				}
+				pos = skipLineBreak(data, lineEnd, end);
+			}
+			if (children.isEmpty())
+				boundary = null;  // malformed, treat as a leaf
+		}
+		return new Part(start, bodyStart, end, contentType, boundary, children);
+	}
+
+	/** Returns the offset of the body (after the blank line ending the headers), or the end if there is none. */
+	private static int findBodyStart(byte[] data, int start, int end) {
+		int pos = start;
+		while (pos < end) {
+			int lineEnd = findLineEnd(data, pos, end);
+			int next = skipLineBreak(data, lineEnd, end);
+			if (lineEnd == pos)
+				return next;  // blank line
+			pos = next;
+		}
+		return end;
+	}
+
+	/** Returns the unfolded value of the first header with the given (lowercase) name, or null if none. */
+	private static String getHeader(byte[] data, int start, int end, String name) {
+		int pos = start;
+		while (pos < end) {
+			int lineEnd = findLineEnd(data, pos, end);
+			if (lineEnd == pos)
+				break;
+			if (lineEnd - pos > name.length() && data[pos + name.length()] == ':' &&
+			    new String(data, pos, name.length(), StandardCharsets.ISO_8859_1).toLowerCase(Locale.ROOT).equals(name)) {
+				StringBuilder sb = new StringBuilder();
+				sb.append(new String(data, pos + name.length() + 1, lineEnd - pos - name.length() - 1, StandardCharsets.ISO_8859_1));
+				pos = skipLineBreak(data, lineEnd, end);
+
+				// continuation lines
+				while (pos < end && (data[pos] == ' ' || data[pos] == '\t')) {
+					lineEnd = findLineEnd(data, pos, end);
+					sb.append(new String(data, pos, lineEnd - pos, StandardCharsets.ISO_8859_1));
+					pos = skipLineBreak(data, lineEnd, end);
+				}
+				return sb.toString().trim();
+			}
+			pos = skipLineBreak(data, lineEnd, end);
+		}
+		return null;
+	}
+
+	/** Returns the value of a parameter in a header value, or null if none. */
+	private static String getParameter(String header, String name) {
+		String[] params = header.split(";");
+		for (int i = 1; i < params.length; i++) {
+			String param = params[i].trim();
+			int eq = param.indexOf('=');
+			if (eq == -1 || !param.substring(0, eq).trim().equalsIgnoreCase(name))
+				continue;
+			String value = param.substring(eq + 1).trim();
+			if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\""))
+				value = value.substring(1, value.length() - 1);
+			return value.isEmpty() ? null : value;
+		}
+		return null;
+	}
+
+	/** Returns the offset of the line break ending the line starting at {@code pos} (or the end). */
+	private static int findLineEnd(byte[] data, int pos, int end) {
+		while (pos < end && data[pos] != '\r' && data[pos] != '\n')
+			pos++;
+		return pos;
+	}
+
+	/** Returns the offset after the line break at {@code pos}. */
+	private static int skipLineBreak(byte[] data, int pos, int end) {
+		if (pos < end && data[pos] == '\r')
+			pos++;
+		if (pos < end && data[pos] == '\n')
+			pos++;
+		return pos;
+	}
+
+	/** Returns the end offset of a range, excluding the line break before {@code end} (part of the next delimiter). */
+	private static int trimLineBreak(byte[] data, int start, int end) {
+		if (end > start && data[end - 1] == '\n')
+			end--;
+		if (end > start && data[end - 1] == '\r')
+			end--;
+		return end;
+	}
+
+	/** Returns whether the range contains only whitespace. */
+	private static boolean isBlank(byte[] data, int pos, int end) {
+		for (int i = pos; i < end; i++) {
+			if (data[i] != ' ' && data[i] != '\t')
+				return false;
+		}
+		return true;
+	}
+
+	/** Returns whether the range starts with the given bytes. */
+	private static boolean startsWith(byte[] data, int pos, int end, byte[] prefix) {
+		if (end - pos < prefix.length)
+			return false;
+		for (int i = 0; i < prefix.length; i++) {
+			if (data[pos + i] != prefix[i])
+				return false;
+		}
+		return true;
+	}
+}
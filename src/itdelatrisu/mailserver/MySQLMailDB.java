@@ -0,0 +1,797 @@
+package itdelatrisu.mailserver;
+
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Mail database backed by a MySQL server.
+ */
+public class MySQLMailDB implements MailDB {
+	private static final Logger logger = LoggerFactory.getLogger(MySQLMailDB.class);
+
+	/** Delimiter for URLs. */
+	private static final char URL_DELIMITER = '\r';
+
+	/** Maximum allowed length of a URL. */
+	private static final int MAX_URL_LENGTH = 2048;
+
+	/** Maximum allowed length of a domain name. */
+	private static final int MAX_DOMAIN_LENGTH = 255;
+
+	/** Maximum number of users held in the user cache. */
+	private static final int USER_CACHE_SIZE = 10000;
+
+	/** The data source. */
+	private final BasicDataSource dataSource;
+
+	/** The write-behind writer for analysis results. */
+	private final WriteBehindWriter writer;
+
+	/** The aggregator for user counter increments. */
+	private final CounterAggregator counters;
+
+	/** The domain dictionary for the leak tables. */
+	private final DomainDictionary domains;
+
+	/** In-memory index of all user email addresses (lowercase). */
+	private final Set<String> recipientIndex = ConcurrentHashMap.newKeySet();
+
+	/** Whether the recipient index has been fully loaded. */
+	private volatile boolean recipientIndexLoaded = false;
+
+	/** Work queue of link groups to visit. */
+	private final LinkGroupQueue linkGroupQueue = new LinkGroupQueue();
+
+	/** Whether the link group queue has been fully loaded. */
+	private volatile boolean linkGroupQueueLoaded = false;
+
+	/**
+	 * User caches, keyed by lowercase email address and by ID.
+	 * The ID cache is bounded and holds the canonical MailUser instance of
+	 * each cached user (the one whose counts are kept up to date); the email
+	 * cache only maps to instances in the ID cache, and loses its entry when
+	 * the instance is evicted from the ID cache.
+	 */
+	private final Cache<String, MailUser> usersByEmail = CacheBuilder.newBuilder()
+		.recordStats()
+		.build();
+	private final Cache<Integer, MailUser> usersById = CacheBuilder.newBuilder()
+		.maximumSize(USER_CACHE_SIZE)
+		.recordStats()
+		.<Integer, MailUser>removalListener(n -> {
+			if (n.wasEvicted())
+				usersByEmail.asMap().remove(n.getValue().getEmail().toLowerCase(), n.getValue());
+		})
+		.build();
+
+	/** Initializes the connection pool. */
+	public MySQLMailDB(String driver, String url, String username, String password) {
+		this.dataSource = new BasicDataSource();
+		dataSource.setDriverClassName(driver);
+		dataSource.setUrl(url);
+		dataSource.setUsername(username);
+		dataSource.setPassword(password);
+
+		this.domains = new DomainDictionary(dataSource, new OrganizationDomains());
+		this.writer = new WriteBehindWriter(dataSource);
+		this.counters = new CounterAggregator(dataSource);
+	}
+
+	/**
+	 * Adds a user loaded from the database to both caches, and returns the
+	 * cached instance (which may be an existing instance for the same user,
+	 * e.g. if it was loaded concurrently).
+	 */
+	private MailUser cacheUser(MailUser user) {
+		MailUser cached = usersById.asMap().putIfAbsent(user.getId(), user);
+		if (cached == null)
+			cached = user;
+		String email = cached.getEmail().toLowerCase();
+		usersByEmail.put(email, cached);
+		if (usersById.getIfPresent(cached.getId()) != cached)
+			usersByEmail.asMap().remove(email, cached);  // evicted in the meantime
+		return cached;
+	}
+
+	/** Returns a database connection. */
+	private Connection getConnection() throws SQLException {
+		return dataSource.getConnection();
+	}
+
+	/** Truncates the given URL if it is too long. */
+	private String truncateUrl(String url) {
+		if (url.length() <= MAX_URL_LENGTH)
+			return url;
+
+		String marker = "[TRUNCATED]";
+		return url.substring(0, MAX_URL_LENGTH - marker.length()) + marker;
+	}
+
+	/**
+	 * Adds mail entries to the database in a single transaction, using one
+	 * statement batch for the inbox rows.
+	 * The received counts are updated asynchronously (see {@link CounterAggregator}).
+	 */
+	@Override
+	public void addMailEntries(List<MailEntry> entries) throws SQLException {
+		if (entries.isEmpty())
+			return;
+		try (Connection connection = getConnection()) {
+			connection.setAutoCommit(false);
+			try {
+				insertMailEntries(connection, entries);
+				connection.commit();
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(true);
+			}
+		}
+
+		for (MailEntry entry : entries)
+			countReceivedEmail(entry.getRecipient());
+	}
+
+	/** Inserts inbox rows with one statement batch, within the caller's transaction. */
+	private void insertMailEntries(Connection connection, List<MailEntry> entries) throws SQLException {
+		try (PreparedStatement stmt = connection.prepareStatement(
+			"INSERT INTO `inbox` (`recipient`, `sender`, `sent_date`, `subject`, `filename`) VALUES(?, ?, ?, ?, ?)"
+		)) {
+			for (MailEntry entry : entries) {
+				stmt.setString(1, entry.getRecipient());
+				stmt.setString(2, entry.getSender());
+				stmt.setTimestamp(3, entry.getSentDate() == null ? null : new Timestamp(entry.getSentDate().getTime()));
+				stmt.setString(4, entry.getSubject());
+				stmt.setString(5, entry.getFilename());
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+		}
+	}
+
+	/** Increments a user's received email count. */
+	private void countReceivedEmail(String recipient) throws SQLException {
+		MailUser user = getUserInfo(recipient);
+		if (user == null)
+			return;
+		counters.addEmails(user.getId(), 1);
+		user.addReceivedEmails(1);
+	}
+
+	/**
+	 * Adds a redirect chain to the database.
+	 * The chain is written asynchronously, as one multi-row insert (see {@link WriteBehindWriter}).
+	 */
+	@Override
+	public void addRedirects(
+		Request req,
+		String senderDomain,
+		String senderAddress,
+		int recipientId
+	) throws SQLException {
+		if (req.getRedirects().isEmpty())
+			return;
+		List<String> redirectUrls = new ArrayList<String>(req.getRedirects().size());
+		for (URL redirect : req.getRedirects())
+			redirectUrls.add(redirect.toString());
+		writer.add(toRedirectChain(req.getURL().toString(), redirectUrls, senderDomain, senderAddress, recipientId));
+	}
+
+	/** Builds the {@code redirects} rows of a redirect chain. */
+	private List<WriteBehindWriter.RedirectRow> toRedirectChain(
+		String requestUrl,
+		List<String> redirectUrls,
+		String senderDomain,
+		String senderAddress,
+		int recipientId
+	) throws SQLException {
+		String truncatedRequestUrl = truncateUrl(requestUrl);
+		int senderDomainId = domains.getId(senderDomain);
+		List<WriteBehindWriter.RedirectRow> rows = new ArrayList<WriteBehindWriter.RedirectRow>(redirectUrls.size());
+		for (int i = 0; i < redirectUrls.size(); i++) {
+			String redirectUrl = redirectUrls.get(i);
+			rows.add(new WriteBehindWriter.RedirectRow(
+				senderDomainId, senderAddress, recipientId, truncatedRequestUrl, domains.getId(getUrlDomain(redirectUrl)),
+				truncateUrl(redirectUrl), i + 1
+			));
+		}
+		return rows;
+	}
+
+	/**
+	 * Adds a URL containing an email address to the database.
+	 * The row is written asynchronously (see {@link WriteBehindWriter}), and
+	 * the user's leak counts are aggregated (see {@link CounterAggregator}).
+	 */
+	@Override
+	public void addLeakedEmailAddress(
+		String url,
+		String type,
+		String encoding,
+		boolean isRedirect,
+		boolean isIntentional,
+		String senderDomain,
+		String senderAddress,
+		int recipientId
+	) throws SQLException {
+		writer.add(toLeakRow(url, type, encoding, isRedirect, isIntentional, senderDomain, senderAddress, recipientId));
+		countLeak(url, senderDomain, recipientId);
+	}
+
+	/** Builds a {@code leaked_emails} row. */
+	private WriteBehindWriter.LeakRow toLeakRow(
+		String url,
+		String type,
+		String encoding,
+		boolean isRedirect,
+		boolean isIntentional,
+		String senderDomain,
+		String senderAddress,
+		int recipientId
+	) throws SQLException {
+		return new WriteBehindWriter.LeakRow(
+			domains.getId(senderDomain), senderAddress, recipientId, encoding, truncateUrl(url),
+			domains.getId(getUrlDomain(url)), type, isRedirect, isIntentional
+		);
+	}
+
+	/** Increments a user's leak counts. */
+	private void countLeak(String url, String senderDomain, int recipientId) {
+		boolean isThirdParty = isThirdPartyLeak(url, senderDomain);
+		counters.addLeak(recipientId, isThirdParty);
+		MailUser user = usersById.getIfPresent(recipientId);
+		if (user != null)
+			user.addLeak(isThirdParty);
+	}
+
+	/** Returns whether a leaked URL belongs to a third party (not the sender's domain). */
+	private boolean isThirdPartyLeak(String url, String senderDomain) {
+		String urlDomain = getUrlDomain(url);
+		return !urlDomain.isEmpty() && !senderDomain.equals(urlDomain);
+	}
+
+	/** Returns the domain of a URL, or an empty string if invalid or too long. */
+	private String getUrlDomain(String url) {
+		try {
+			String domain = Utils.getDomainName(url);
+			return (domain.length() > MAX_DOMAIN_LENGTH) ? "" : domain;
+		} catch (Exception e) {
+			return "";
+		}
+	}
+
+	@Override
+	public Map<String, String> getStats() {
+		CacheStats userCacheStats = usersByEmail.stats().plus(usersById.stats());
+		Map<String, String> stats = new LinkedHashMap<String, String>();
+		stats.put("User cache", userCacheStats.toString());
+		stats.put("Analysis result writes", writer.toString());
+		stats.put("User counter writes", counters.toString());
+		stats.put("Link group queue", linkGroupQueue.toString());
+		return stats;
+	}
+
+	/** Writes all pending rows and counters, and closes the connection pool. */
+	@Override
+	public void close() {
+		writer.close();
+		counters.close();
+		try {
+			dataSource.close();
+		} catch (SQLException e) {
+			logger.error("Failed to close connection pool.", e);
+		}
+	}
+
+	/**
+	 * Applies pending schema migrations, then loads the in-memory indexes.
+	 * Only a failed migration is fatal: without an index, the corresponding
+	 * lookups go to the database instead.
+	 */
+	@Override
+	public void init() throws SQLException {
+		migrateSchema();
+
+		// load known recipients (so RCPT TO checks don't hit the database)
+		try {
+			loadRecipientIndex();
+		} catch (SQLException e) {
+			logger.error("Failed to load recipient index, falling back to database queries.", e);
+		}
+
+		// load known domains (and refresh their organizations)
+		try {
+			loadDomainDictionary();
+		} catch (SQLException e) {
+			logger.error("Failed to load domain dictionary, domains will be looked up as needed.", e);
+		}
+
+		// load pending link groups (so /visit doesn't pick random rows)
+		try {
+			loadLinkGroupQueue();
+		} catch (SQLException e) {
+			logger.error("Failed to load link group queue, falling back to random selection.", e);
+		}
+	}
+
+	/**
+	 * Applies pending schema migrations, and resumes copying rows into any
+	 * rebuilt tables in the background (see {@link SchemaMigrator}).
+	 * Must be called before anything is written to the database.
+	 */
+	private void migrateSchema() throws SQLException {
+		SchemaMigrator migrator = new SchemaMigrator(dataSource);
+		migrator.migrate();
+		migrator.resumeTableCopies(domains);
+	}
+
+	/** Adds a mail user to the database, and returns false if the user already existed. */
+	@Override
+	public boolean addMailUser(String email, String site, String url) throws SQLException {
+		try (
+			Connection connection = getConnection();
+			PreparedStatement stmt = connection.prepareStatement(
+				"INSERT IGNORE INTO `users` (`email`, `register_site`, `register_url`, `register_domain`) VALUES(?, ?, ?, ?)"
+			);
+		) {
+			stmt.setString(1, email);
+			stmt.setString(2, site);
+			stmt.setString(3, truncateUrl(url));
+			try {
+				stmt.setString(4, Utils.getDomainName(url));
+			} catch (Exception e) {
+				stmt.setString(4, "");
+			}
+			int rows = stmt.executeUpdate();
+			if (rows > 0)
+				recipientIndex.add(email.toLowerCase());
+			return rows > 0;
+		}
+	}
+
+	/**
+	 * Loads all user email addresses into the in-memory recipient index.
+	 * Until this succeeds, {@link #userExists(String)} queries the database.
+	 */
+	private void loadRecipientIndex() throws SQLException {
+		try (
+			Connection connection = getConnection();
+			Statement stmt = connection.createStatement();
+		) {
+			String sql = "SELECT `email` FROM `users`";
+			try (ResultSet rs = stmt.executeQuery(sql)) {
+				while (rs.next())
+					recipientIndex.add(rs.getString(1).toLowerCase());
+			}
+		}
+		recipientIndexLoaded = true;
+	}
+
+	/**
+	 * Loads all domains into the domain dictionary, and updates their
+	 * organizations from the organization domains mapping.
+	 */
+	private void loadDomainDictionary() throws SQLException {
+		domains.load();
+	}
+
+	/** Returns whether the given user exists. */
+	@Override
+	public boolean userExists(String email) throws SQLException {
+		if (recipientIndexLoaded)
+			return recipientIndex.contains(email.toLowerCase());
+
+		try (
+			Connection connection = getConnection();
+			PreparedStatement stmt = connection.prepareStatement(
+				"SELECT EXISTS(SELECT 1 FROM `users` WHERE `email` = ?)"
+			);
+		) {
+			stmt.setString(1, email);
+			try (ResultSet rs = stmt.executeQuery()) {
+				return rs.next() ? rs.getBoolean(1) : false;
+			}
+		}
+	}
+
+	/** Returns user data for the given email address, or null if it does not exist. */
+	@Override
+	public MailUser getUserInfo(String email) throws SQLException {
+		MailUser cached = usersByEmail.getIfPresent(email.toLowerCase());
+		if (cached != null)
+			return cached;
+
+		MailUser user = counters.read(() -> {
+			try (
+				Connection connection = getConnection();
+				PreparedStatement stmt = connection.prepareStatement(
+					"SELECT `id`, `register_site`, `register_url`, `register_domain`, `register_time`, `emails_received`, `leak_count`, `tp_leak_count` FROM `users` WHERE `email` = ?"
+				);
+			) {
+				stmt.setString(1, email);
+				try (ResultSet rs = stmt.executeQuery()) {
+					return (!rs.next()) ? null :
+						newMailUser(rs.getInt(1), email, rs.getString(2), rs.getString(3), rs.getString(4), rs.getTimestamp(5), rs.getInt(6), rs.getInt(7), rs.getInt(8));
+				}
+			}
+		});
+		return (user == null) ? null : cacheUser(user);
+	}
+
+	/** Returns user data for the given user ID, or null if it does not exist. */
+	@Override
+	public MailUser getUserInfo(int id) throws SQLException {
+		MailUser cached = usersById.getIfPresent(id);
+		if (cached != null)
+			return cached;
+
+		MailUser user = counters.read(() -> {
+			try (
+				Connection connection = getConnection();
+				PreparedStatement stmt = connection.prepareStatement(
+					"SELECT `email`, `register_site`, `register_url`, `register_domain`, `register_time`, `emails_received`, `leak_count`, `tp_leak_count` FROM `users` WHERE `id` = ?"
+				);
+			) {
+				stmt.setInt(1, id);
+				try (ResultSet rs = stmt.executeQuery()) {
+					return (!rs.next()) ? null :
+						newMailUser(id, rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getTimestamp(5), rs.getInt(6), rs.getInt(7), rs.getInt(8));
+				}
+			}
+		});
+		return (user == null) ? null : cacheUser(user);
+	}
+
+	/** Returns a list of all user data. */
+	@Override
+	public List<MailUser> getUsers() throws SQLException {
+		return counters.read(() -> {
+			try (
+				Connection connection = getConnection();
+				Statement stmt = connection.createStatement();
+			) {
+				String sql = "SELECT `id`, `email`, `register_site`, `register_url`, `register_domain`, `register_time`, `emails_received`, `leak_count`, `tp_leak_count` FROM `users`";
+				List<MailUser> users = new ArrayList<MailUser>();
+				try (ResultSet rs = stmt.executeQuery(sql)) {
+					while (rs.next())
+						users.add(newMailUser(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getString(5), rs.getTimestamp(6), rs.getInt(7), rs.getInt(8), rs.getInt(9)));
+				}
+				return users;
+			}
+		});
+	}
+
+	/**
+	 * Creates a user from database values, adding the counter increments
+	 * not yet flushed (must be called within {@link CounterAggregator#read}).
+	 */
+	private MailUser newMailUser(
+		int id, String email, String site, String url, String urlDomain, Date ts,
+		int emailCount, int leakCount, int tpLeakCount
+	) {
+		int[] d = counters.getPending(id);
+		return new MailUser(id, email, site, url, urlDomain, ts, emailCount + d[0], leakCount + d[1], tpLeakCount + d[2]);
+	}
+
+	/** Adds a group of links to the database. */
+	@Override
+	public void addLinkGroup(
+		List<String> urls,
+		String senderDomain,
+		String senderAddress,
+		int recipientId
+	) throws SQLException {
+		try (
+			Connection connection = getConnection();
+			PreparedStatement stmt = connection.prepareStatement(
+				"INSERT INTO `link_groups` (`sender_domain`, `sender_address`, `recipient_id`, `urls`) VALUES(?, ?, ?, ?)",
+				Statement.RETURN_GENERATED_KEYS
+			);
+		) {
+			stmt.setString(1, senderDomain);
+			stmt.setString(2, senderAddress);
+			stmt.setInt(3, recipientId);
+			stmt.setString(4, String.join(Character.toString(URL_DELIMITER), urls));
+			stmt.executeUpdate();
+			try (ResultSet rs = stmt.getGeneratedKeys()) {
+				if (rs.next())
+					linkGroupQueue.add(rs.getInt(1));
+			}
+		}
+	}
+
+	/**
+	 * Loads the IDs of all link groups into the link group queue.
+	 * Until this succeeds, {@link #getLinkGroup()} picks a random group from
+	 * the database instead.
+	 */
+	private void loadLinkGroupQueue() throws SQLException {
+		try (
+			Connection connection = getConnection();
+			Statement stmt = connection.createStatement();
+		) {
+			String sql = "SELECT `id` FROM `link_groups` ORDER BY `id`";
+			try (ResultSet rs = stmt.executeQuery(sql)) {
+				while (rs.next())
+					linkGroupQueue.add(rs.getInt(1));
+			}
+		}
+		linkGroupQueueLoaded = true;
+	}
+
+	/**
+	 * Leases a group of links to visit, or returns null if none is available.
+	 * The group is not handed out again until its lease expires, unless it
+	 * is removed first (see {@link #removeLinkGroup(int)}).
+	 */
+	@Override
+	public LinkGroup getLinkGroup() throws SQLException {
+		if (!linkGroupQueueLoaded)
+			return getRandomLinkGroup();
+
+		for (int id; (id = linkGroupQueue.lease()) != -1; ) {
+			LinkGroup group = getLinkGroup(id);
+			if (group != null)
+				return group;
+			linkGroupQueue.complete(id);  // already removed
+		}
+		return null;
+	}
+
+	/** Retrieves a random group of links from the database, or null if none exists. */
+	private LinkGroup getRandomLinkGroup() throws SQLException {
+		try (
+			Connection connection = getConnection();
+			Statement stmt = connection.createStatement();
+		) {
+			String sql = "SELECT `id`, `sender_domain`, `sender_address`, `recipient_id`, `urls` FROM `link_groups` ORDER BY RAND() LIMIT 1";
+			try (ResultSet rs = stmt.executeQuery(sql)) {
+				if (!rs.next())
+					return null;
+				String[] urls = rs.getString(5).split(Character.toString(URL_DELIMITER));
+				return new LinkGroup(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getInt(4), urls);
+			}
+		}
+	}
+
+	/** Retrieves link group data for the given ID from the database, or null if it does not exist. */
+	@Override
+	public LinkGroup getLinkGroup(int id) throws SQLException {
+		try (
+			Connection connection = getConnection();
+			PreparedStatement stmt = connection.prepareStatement(
+				"SELECT `sender_domain`, `sender_address`, `recipient_id`, `urls` FROM `link_groups` WHERE `id` = ?"
+			);
+		) {
+			stmt.setInt(1, id);
+			try (ResultSet rs = stmt.executeQuery()) {
+				if (!rs.next())
+					return null;
+				String[] urls = rs.getString(4).split(Character.toString(URL_DELIMITER));
+				return new LinkGroup(id, rs.getString(1), rs.getString(2), rs.getInt(3), urls);
+			}
+		}
+	}
+
+	/** Removes link group data for the given ID from the database and the link group queue. */
+	@Override
+	public void removeLinkGroup(int id) throws SQLException {
+		try (
+			Connection connection = getConnection();
+			PreparedStatement stmt = connection.prepareStatement(
+				"DELETE FROM `link_groups` WHERE `id` = ?"
+			);
+		) {
+			stmt.setInt(1, id);
+			stmt.executeUpdate();
+		}
+		linkGroupQueue.complete(id);
+	}
+
+	/**
+	 * Mutations replayed from a journal (see {@link JournaledMailDB}), to be
+	 * applied in a single transaction by {@link #apply(JournalBatch, long)},
+	 * together with the user counter increments they imply.
+	 * Methods mirror those of {@link MailDB}.
+	 */
+	public class JournalBatch {
+		private final boolean countsOnly;
+		private final List<MailEntry> entries = new ArrayList<MailEntry>();
+		private final List<WriteBehindWriter.LeakRow> leaks = new ArrayList<WriteBehindWriter.LeakRow>();
+		private final List<List<WriteBehindWriter.RedirectRow>> redirects = new ArrayList<List<WriteBehindWriter.RedirectRow>>();
+		private final List<LinkGroup> linkGroups = new ArrayList<LinkGroup>();
+		private final List<Integer> removedLinkGroups = new ArrayList<Integer>();
+
+		/** Counter increments, as {received emails, leaks, third-party leaks} per user ID. */
+		private final Map<Integer, long[]> counts = new LinkedHashMap<Integer, long[]>();
+
+		/** Creates a batch. */
+		public JournalBatch() { this(false); }
+
+		/**
+		 * Creates a batch.
+		 * @param countsOnly whether to only collect the counter increments
+		 *        (see {@link MySQLMailDB#addJournaledCounts(JournalBatch, boolean)})
+		 */
+		public JournalBatch(boolean countsOnly) { this.countsOnly = countsOnly; }
+
+		/** Adds a counter increment. */
+		private void count(int userId, int emails, int leaks, int tpLeaks) {
+			long[] v = counts.computeIfAbsent(userId, k -> new long[3]);
+			v[0] += emails;
+			v[1] += leaks;
+			v[2] += tpLeaks;
+		}
+
+		/** Adds mail entries. */
+		public void addMailEntries(List<MailEntry> entries) throws SQLException {
+			if (!countsOnly)
+				this.entries.addAll(entries);
+			for (MailEntry entry : entries) {
+				MailUser user = getUserInfo(entry.getRecipient());
+				if (user != null)
+					count(user.getId(), 1, 0, 0);
+			}
+		}
+
+		/** Adds a redirect chain. */
+		public void addRedirects(
+			String requestUrl,
+			List<String> redirectUrls,
+			String senderDomain,
+			String senderAddress,
+			int recipientId
+		) throws SQLException {
+			if (!countsOnly && !redirectUrls.isEmpty())
+				redirects.add(toRedirectChain(requestUrl, redirectUrls, senderDomain, senderAddress, recipientId));
+		}
+
+		/** Adds a URL containing an email address. */
+		public void addLeakedEmailAddress(
+			String url,
+			String type,
+			String encoding,
+			boolean isRedirect,
+			boolean isIntentional,
+			String senderDomain,
+			String senderAddress,
+			int recipientId
+		) throws SQLException {
+			if (!countsOnly)
+				leaks.add(toLeakRow(url, type, encoding, isRedirect, isIntentional, senderDomain, senderAddress, recipientId));
+			count(recipientId, 0, 1, isThirdPartyLeak(url, senderDomain) ? 1 : 0);
+		}
+
+		/** Adds a group of links. */
+		public void addLinkGroup(List<String> urls, String senderDomain, String senderAddress, int recipientId) {
+			if (!countsOnly)
+				linkGroups.add(new LinkGroup(0, senderDomain, senderAddress, recipientId, urls.toArray(new String[urls.size()])));
+		}
+
+		/** Removes a link group. */
+		public void removeLinkGroup(int id) {
+			if (!countsOnly)
+				removedLinkGroups.add(id);
+		}
+	}
+
+	/**
+	 * Adds (or removes) the counter increments of journaled records, as soon
+	 * as they are journaled: they are visible to reads right away (through
+	 * the cached users and {@link CounterAggregator#getPending(int)}), and
+	 * written to the database when the records are applied.
+	 */
+	public void addJournaledCounts(JournalBatch batch, boolean remove) {
+		for (Map.Entry<Integer, long[]> e : batch.counts.entrySet()) {
+			long[] v = e.getValue();
+			int sign = remove ? -1 : 1;
+			counters.addJournaled(e.getKey(), new long[] { sign * v[0], sign * v[1], sign * v[2] });
+			MailUser user = usersById.getIfPresent(e.getKey());
+			if (user != null) {
+				user.addReceivedEmails((int) (sign * v[0]));
+				user.addLeaks((int) (sign * v[1]), (int) (sign * v[2]));
+			}
+		}
+	}
+
+	/**
+	 * Returns the sequence number of the last journal record applied by
+	 * {@link #apply(JournalBatch, long)}, or 0 if none.
+	 */
+	public long getJournalSequence() throws SQLException {
+		try (
+			Connection connection = getConnection();
+			Statement stmt = connection.createStatement();
+			ResultSet rs = stmt.executeQuery("SELECT `sequence` FROM `journal_checkpoint` WHERE `id` = 1");
+		) {
+			return rs.next() ? rs.getLong(1) : 0;
+		}
+	}
+
+	/**
+	 * Applies replayed journal records in a single transaction, recording the
+	 * sequence number of the last one and writing their user counter
+	 * increments in the same transaction (so neither is applied twice, or
+	 * lost). The link group queue is updated once the transaction commits.
+	 */
+	public void apply(JournalBatch batch, long sequence) throws SQLException {
+		List<Integer> linkGroupIds = new ArrayList<Integer>(batch.linkGroups.size());
+		try (Connection connection = getConnection()) {
+			connection.setAutoCommit(false);
+			try {
+				if (!batch.entries.isEmpty())
+					insertMailEntries(connection, batch.entries);
+				writer.write(connection, batch.leaks, batch.redirects);
+				if (!batch.linkGroups.isEmpty()) {
+					try (PreparedStatement stmt = connection.prepareStatement(
+						"INSERT INTO `link_groups` (`sender_domain`, `sender_address`, `recipient_id`, `urls`) VALUES(?, ?, ?, ?)",
+						Statement.RETURN_GENERATED_KEYS
+					)) {
+						for (LinkGroup group : batch.linkGroups) {
+							stmt.setString(1, group.getSenderDomain());
+							stmt.setString(2, group.getSenderAddress());
+							stmt.setInt(3, group.getRecipientId());
+							stmt.setString(4, String.join(Character.toString(URL_DELIMITER), group.getUrls()));
+							stmt.addBatch();
+						}
+						stmt.executeBatch();
+						try (ResultSet rs = stmt.getGeneratedKeys()) {
+							while (rs.next())
+								linkGroupIds.add(rs.getInt(1));
+						}
+					}
+				}
+				if (!batch.removedLinkGroups.isEmpty()) {
+					try (PreparedStatement stmt = connection.prepareStatement(
+						"DELETE FROM `link_groups` WHERE `id` = ?"
+					)) {
+						for (int id : batch.removedLinkGroups) {
+							stmt.setInt(1, id);
+							stmt.addBatch();
+						}
+						stmt.executeBatch();
+					}
+				}
+				try (PreparedStatement stmt = connection.prepareStatement(
+					"INSERT INTO `journal_checkpoint` (`id`, `sequence`) VALUES(1, ?) ON DUPLICATE KEY UPDATE `sequence` = VALUES(`sequence`)"
+				)) {
+					stmt.setLong(1, sequence);
+					stmt.executeUpdate();
+				}
+				counters.updateJournaled(connection, batch.counts);
+				counters.commitJournaled(batch.counts, connection::commit);
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(true);
+			}
+		}
+
+		for (int id : linkGroupIds)
+			linkGroupQueue.add(id);
+		for (int id : batch.removedLinkGroups)
+			linkGroupQueue.complete(id);
+	}
+}
@@ -0,0 +1,115 @@
+package itdelatrisu.mailserver;
+
+import java.io.IOException;
+import java.util.Date;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.jsoup.nodes.Document;
+
+/**
+ * Parsed view of a single incoming message, shared by the storage and
+ * analyzer modules so that each message is only parsed once.
+ * <p>
+ * Everything is computed lazily on first access and cached afterwards,
+ * including MIME parse failures.
+ */
+public class ParsedMessage {
+	/** The raw message data. */
+	private final byte[] data;
+
+	/** The parsed MIME message (or null if not parsed yet). */
+	private MimeMessage message;
+
+	/** The decoded HTML and plain-text sections (or null if none). */
+	private String html, text;
+
+	/** The link extractor for the HTML section (or null if none). */
+	private LinkExtractor extractor;
+
+	/** Whether each lazy value has been computed. */
+	private boolean parsedHtml, parsedText, parsedLinks;
+
+	/** The exception raised while parsing the MIME message, if any. */
+	private MessagingException messageError;
+
+	/**
+	 * Creates a new parsed message.
+	 * @param data the raw message data (must not be modified afterwards)
+	 */
+	public ParsedMessage(byte[] data) {
+		this.data = data;
+	}
+
+	/** Returns the raw message data. */
+	public byte[] getData() { return data; }
+
+	/**
+	 * Returns the parsed MIME message.
+	 * The returned message is shared and must not be modified.
+	 */
+	public synchronized MimeMessage getMessage() throws MessagingException {
+		if (messageError != null)
+			throw messageError;
+		if (message == null) {
+			try {
+				message = Utils.toMimeMessage(data);
+			} catch (MessagingException e) {
+				messageError = e;
+				throw e;
+			}
+		}
+		return message;
+	}
+
+	/** Returns the message subject, or null if none. */
+	public String getSubject() throws MessagingException {
+		return getMessage().getSubject();
+	}
+
+	/** Returns the message sent date, or null if none. */
+	public Date getSentDate() throws MessagingException {
+		return getMessage().getSentDate();
+	}
+
+	/** Returns the given header field (joined with commas), or null if none. */
+	public String getHeader(String name) throws MessagingException {
+		return getMessage().getHeader(name, ",");
+	}
+
+	/** Returns the decoded HTML section of the message, or null if not found. */
+	public synchronized String getHtml() throws MessagingException, IOException {
+		if (!parsedHtml) {
+			html = Utils.getHtmlFromMessage(getMessage());
+			parsedHtml = true;
+		}
+		return html;
+	}
+
+	/** Returns the decoded plain-text section of the message, or null if not found. */
+	public synchronized String getText() throws MessagingException, IOException {
+		if (!parsedText) {
+			text = Utils.getTextFromMessage(getMessage());
+			parsedText = true;
+		}
+		return text;
+	}
+
+	/** Returns the link extractor for the HTML section, or null if there is no HTML. */
+	public synchronized LinkExtractor getLinkExtractor() throws MessagingException, IOException {
+		if (!parsedLinks) {
+			String html = getHtml();
+			if (html != null)
+				extractor = new LinkExtractor(html);
+			parsedLinks = true;
+		}
+		return extractor;
+	}
+
+	/** Returns the parsed HTML document, or null if there is no HTML. */
+	public Document getDocument() throws MessagingException, IOException {
+		LinkExtractor extractor = getLinkExtractor();
+		return (extractor == null) ? null : extractor.getDocument();
+	}
+}
@@ -0,0 +1,385 @@
+package itdelatrisu.mailserver;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Versioned database schema migrations.
+ * <p>
+ * Migrations are SQL scripts under {@code migrations/} on the classpath,
+ * applied in order on startup; applied versions are recorded in the
+ * {@code schema_version} table. Since MySQL commits DDL implicitly, a
+ * migration is not atomic: a script interrupted part-way has to be
+ * finished by hand before the server can start.
+ * <p>
+ * Key-less tables that need a surrogate key are rebuilt without locking
+ * them for the duration of the copy: the migration creates the new table
+ * as {@code <table>_v2}, which is swapped in for the old table (renamed to
+ * {@code <table>_legacy}) so new rows go to the new table right away. The
+ * old rows are then copied in the background, in chunks, into an ID range
+ * reserved below the new rows (see {@link #resumeTableCopies(DomainDictionary)}).
+ * Rows are converted as they are copied: a {@code <x>_domain} column is
+ * replaced with its {@code <x>_domain_id} in the {@code domains} table, and
+ * columns the new table lacks are dropped. Each chunk also updates the
+ * summary tables (once they exist), so later migrations do not wait for the
+ * copy; they must not change the columns of a table being copied.
+ */
+public class SchemaMigrator {
+	private static final Logger logger = LoggerFactory.getLogger(SchemaMigrator.class);
+
+	/** A migration script. */
+	private static class Migration {
+		private final int version;
+		private final String description, resource;
+		private final String[] rebuiltTables;
+
+		/** Constructor. */
+		private Migration(int version, String description, String resource, String... rebuiltTables) {
+			this.version = version;
+			this.description = description;
+			this.resource = resource;
+			this.rebuiltTables = rebuiltTables;
+		}
+	}
+
+	/** All migrations, in order. */
+	private static final Migration[] MIGRATIONS = {
+		new Migration(1, "Initial schema", "migrations/V1__baseline.sql"),
+		new Migration(2, "InnoDB, surrogate keys, indexes and domain dictionary", "migrations/V2__innodb.sql", "redirects", "leaked_emails", "inbox"),
+		new Migration(3, "Domain name views", "migrations/V3__domains.sql"),
+		new Migration(4, "Leak and redirect rollups", "migrations/V4__rollups.sql"),
+		new Migration(5, "Journal checkpoint", "migrations/V5__journal.sql"),
+	};
+
+	/** Suffix of a table's replacement, created by a migration. */
+	private static final String NEW_SUFFIX = "_v2";
+
+	/** Suffix of a replaced table, until its rows are copied. */
+	private static final String LEGACY_SUFFIX = "_legacy";
+
+	/** Suffix of a column holding a domain ID, replacing a column with the domain name. */
+	private static final String DOMAIN_ID_SUFFIX = "_id";
+
+	/** Number of rows copied per transaction. */
+	private static final int COPY_CHUNK_SIZE = 5000;
+
+	/** Number of copied rows between progress messages. */
+	private static final int COPY_PROGRESS_INTERVAL = 100000;
+
+	/** Name of the lock held while migrating (against concurrent instances). */
+	private static final String LOCK_NAME = "mail.schema_migration";
+
+	/** The data source. */
+	private final DataSource dataSource;
+
+	/** Constructor. */
+	public SchemaMigrator(DataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+
+	/** Returns the latest schema version. */
+	public static int getLatestVersion() { return MIGRATIONS[MIGRATIONS.length - 1].version; }
+
+	/** Applies all pending migrations. */
+	public void migrate() throws SQLException {
+		try (
+			Connection connection = dataSource.getConnection();
+			Statement stmt = connection.createStatement();
+		) {
+			try (ResultSet rs = stmt.executeQuery("SELECT GET_LOCK('" + LOCK_NAME + "', 60)")) {
+				if (!rs.next() || rs.getInt(1) != 1)
+					throw new SQLException("Timed out waiting for the schema migration lock.");
+			}
+			try {
+				stmt.executeUpdate(
+					"CREATE TABLE IF NOT EXISTS `schema_version` (" +
+					"`version` INT(11) UNSIGNED NOT NULL COMMENT 'migration version', " +
+					"`description` VARCHAR(255) NOT NULL COMMENT 'migration description', " +
+					"`installed_time` TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT 'time applied', " +
+					"PRIMARY KEY (`version`)" +
+					") ENGINE=InnoDB"
+				);
+				int current = 0;
+				try (ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(`version`), 0) FROM `schema_version`")) {
+					if (rs.next())
+						current = rs.getInt(1);
+				}
+				if (current > getLatestVersion())
+					throw new SQLException(String.format(
+						"Database schema version %d is newer than this server (%d).", current, getLatestVersion()));
+
+				for (Migration m : MIGRATIONS) {
+					if (m.version <= current)
+						continue;
+					logger.info("Applying schema migration {} ({})...", m.version, m.description);
+					for (String sql : loadStatements(m.resource))
+						stmt.execute(sql);
+					for (String table : m.rebuiltTables)
+						swapTable(connection, table);
+					try (PreparedStatement ps = connection.prepareStatement(
+						"INSERT INTO `schema_version` (`version`, `description`) VALUES(?, ?)"
+					)) {
+						ps.setInt(1, m.version);
+						ps.setString(2, m.description);
+						ps.executeUpdate();
+					}
+				}
+			} finally {
+				stmt.executeQuery("SELECT RELEASE_LOCK('" + LOCK_NAME + "')").close();
+			}
+		}
+	}
+
+	/** Loads the statements of a migration script (separated by ';' at the end of a line). */
+	private static List<String> loadStatements(String resource) {
+		String script;
+		try {
+			script = Utils.resourceToString(resource, StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		List<String> statements = new ArrayList<String>();
+		StringBuilder sb = new StringBuilder();
+		for (String line : script.split("\r?\n")) {
+			if (line.trim().startsWith("--"))
+				continue;
+			sb.append(line).append('\n');
+			if (line.trim().endsWith(";")) {
+				String sql = sb.toString().trim();
+				statements.add(sql.substring(0, sql.length() - 1));
+				sb.setLength(0);
+			}
+		}
+		if (!sb.toString().trim().isEmpty())
+			statements.add(sb.toString().trim());
+		return statements;
+	}
+
+	/**
+	 * Swaps a table's replacement (created by a migration) in for the table,
+	 * reserving IDs for the old rows below those of any new rows.
+	 */
+	private void swapTable(Connection connection, String table) throws SQLException {
+		String newTable = table + NEW_SUFFIX, legacy = table + LEGACY_SUFFIX;
+		try (Statement stmt = connection.createStatement()) {
+			if (tableExists(connection, legacy)) {
+				// already swapped (interrupted before the version was recorded)
+				stmt.executeUpdate("DROP TABLE IF EXISTS `" + newTable + "`");
+				return;
+			}
+			long rows = queryLong(connection, "SELECT COUNT(*) FROM `" + table + "`");
+			stmt.executeUpdate("ALTER TABLE `" + newTable + "` AUTO_INCREMENT = " + (rows + 1));
+			stmt.executeUpdate("RENAME TABLE `" + table + "` TO `" + legacy + "`, `" + newTable + "` TO `" + table + "`");
+			logger.info("Replaced table `{}` ({} rows to copy).", table, rows);
+		}
+	}
+
+	/**
+	 * Starts copying the rows of all replaced tables into their replacements
+	 * in the background, resuming any copy interrupted by a restart.
+	 * Must be called before new rows are written to those tables.
+	 * @param domains the domain dictionary, for converting domain names to IDs
+	 */
+	public void resumeTableCopies(DomainDictionary domains) throws SQLException {
+		List<String> tables;
+		try (Connection connection = dataSource.getConnection()) {
+			tables = reservePendingCopies(connection);
+		}
+		if (tables.isEmpty())
+			return;
+
+		Thread thread = new Thread(() -> {
+			for (String table : tables) {
+				try {
+					copyRows(table, domains);
+				} catch (SQLException e) {
+					logger.error(String.format("Failed to copy rows into table `%s`, will resume on restart.", table), e);
+				}
+			}
+		}, "schema-copy");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Returns the replaced tables whose rows have not all been copied yet,
+	 * after reserving their ID ranges again (InnoDB may reset the counter on
+	 * restart).
+	 */
+	private List<String> reservePendingCopies(Connection connection) throws SQLException {
+		List<String> tables = new ArrayList<String>();
+		try (Statement stmt = connection.createStatement()) {
+			for (Migration m : MIGRATIONS) {
+				for (String table : m.rebuiltTables) {
+					String legacy = table + LEGACY_SUFFIX;
+					if (!tableExists(connection, legacy))
+						continue;
+					long rows = queryLong(connection, "SELECT COUNT(*) FROM `" + legacy + "`");
+					stmt.executeUpdate("ALTER TABLE `" + table + "` AUTO_INCREMENT = " + (rows + 1));
+					tables.add(table);
+				}
+			}
+		}
+		return tables;
+	}
+
+	/**
+	 * Copies the rows of a replaced table into its replacement (converting
+	 * them to its columns), then drops it.
+	 * The old table no longer changes, so its scan order is stable: the i-th
+	 * row gets ID i, and a resumed copy skips the rows already copied. Each
+	 * chunk is committed together with its summary table updates.
+	 */
+	private void copyRows(String table, DomainDictionary domains) throws SQLException {
+		String legacy = table + LEGACY_SUFFIX;
+		long total, copied;
+		try (Connection connection = dataSource.getConnection()) {
+			total = queryLong(connection, "SELECT COUNT(*) FROM `" + legacy + "`");
+			copied = queryLong(connection, "SELECT COALESCE(MAX(`id`), 0) FROM `" + table + "` WHERE `id` <= " + total);
+		}
+		logger.info("Copying rows into table `{}` ({} of {} done)...", table, copied, total);
+
+		try (
+			Connection src = dataSource.getConnection();
+			Connection dst = dataSource.getConnection();
+			Statement read = src.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		) {
+			// map each column of the new table to a column of the old table
+			List<String> columns = new ArrayList<String>();
+			try (
+				Statement stmt = dst.createStatement();
+				ResultSet rs = stmt.executeQuery("SELECT * FROM `" + table + "` LIMIT 0");
+			) {
+				ResultSetMetaData md = rs.getMetaData();
+				for (int i = 1; i <= md.getColumnCount(); i++) {
+					if (!md.getColumnName(i).equals("id"))
+						columns.add(md.getColumnName(i));
+				}
+			}
+			String rollupTable = WriteBehindWriter.getRollupTable(table);
+			boolean rollup = rollupTable != null && tableExists(dst, rollupTable);
+
+			read.setFetchSize(Integer.MIN_VALUE);  // stream rows instead of buffering the table
+			try (ResultSet rs = read.executeQuery(
+				"SELECT * FROM `" + legacy + "` LIMIT " + copied + ", 18446744073709551615"
+			)) {
+				int[] sources = new int[columns.size()];
+				boolean[] domainNames = new boolean[columns.size()];
+				for (int i = 0; i < columns.size(); i++) {
+					String column = columns.get(i);
+					sources[i] = findColumn(rs.getMetaData(), column);
+					if (sources[i] == 0 && column.endsWith(DOMAIN_ID_SUFFIX)) {
+						sources[i] = findColumn(rs.getMetaData(), column.substring(0, column.length() - DOMAIN_ID_SUFFIX.length()));
+						domainNames[i] = true;
+					}
+					if (sources[i] == 0)
+						throw new SQLException(String.format("No column in `%s` to copy into `%s`.`%s`.", legacy, table, column));
+				}
+				StringBuilder sql = new StringBuilder("INSERT INTO `").append(table).append("` (`id`");
+				for (String column : columns)
+					sql.append(", `").append(column).append('`');
+				sql.append(") VALUES(?");
+				for (int i = 0; i < columns.size(); i++)
+					sql.append(", ?");
+				sql.append(')');
+
+				dst.setAutoCommit(false);
+				try (PreparedStatement insert = dst.prepareStatement(sql.toString())) {
+					long id = copied;
+					List<Map<String, Object>> chunk = new ArrayList<Map<String, Object>>(COPY_CHUNK_SIZE);
+					while (rs.next()) {
+						Map<String, Object> row = new HashMap<String, Object>();
+						insert.setLong(1, ++id);
+						for (int i = 0; i < columns.size(); i++) {
+							Object value = rs.getObject(sources[i]);
+							if (domainNames[i])
+								value = domains.getId((String) value);
+							insert.setObject(i + 2, value);
+							row.put(columns.get(i), value);
+						}
+						insert.addBatch();
+						chunk.add(row);
+						if (chunk.size() == COPY_CHUNK_SIZE) {
+							commitChunk(dst, insert, table, chunk, rollup);
+							chunk.clear();
+							if (id % COPY_PROGRESS_INTERVAL == 0)
+								logger.info("Copied {} of {} rows into table `{}`.", id, total, table);
+						}
+					}
+					if (!chunk.isEmpty())
+						commitChunk(dst, insert, table, chunk, rollup);
+				} catch (SQLException e) {
+					dst.rollback();
+					throw e;
+				} finally {
+					dst.setAutoCommit(true);
+				}
+			}
+		}
+
+		try (
+			Connection connection = dataSource.getConnection();
+			Statement stmt = connection.createStatement();
+		) {
+			stmt.executeUpdate("DROP TABLE `" + legacy + "`");
+		}
+		logger.info("Finished copying rows into table `{}`.", table);
+	}
+
+	/** Inserts a chunk of copied rows and updates the summary tables (if any), in one transaction. */
+	private static void commitChunk(
+		Connection connection, PreparedStatement insert, String table, List<Map<String, Object>> rows, boolean rollup
+	) throws SQLException {
+		insert.executeBatch();
+		if (rollup)
+			WriteBehindWriter.writeCopiedRollup(connection, table, rows);
+		connection.commit();
+	}
+
+	/** Returns the index of a column in a result set, or 0 if none. */
+	private static int findColumn(ResultSetMetaData md, String column) throws SQLException {
+		for (int i = 1; i <= md.getColumnCount(); i++) {
+			if (md.getColumnName(i).equalsIgnoreCase(column))
+				return i;
+		}
+		return 0;
+	}
+
+	/** Returns whether a table exists in the current database. */
+	private static boolean tableExists(Connection connection, String table) throws SQLException {
+		try (PreparedStatement stmt = connection.prepareStatement(
+			"SELECT COUNT(*) FROM `information_schema`.`tables` WHERE `table_schema` = DATABASE() AND `table_name` = ?"
+		)) {
+			stmt.setString(1, table);
+			try (ResultSet rs = stmt.executeQuery()) {
+				return rs.next() && rs.getInt(1) > 0;
+			}
+		}
+	}
+
+	/** Runs a query returning a single number. */
+	private static long queryLong(Connection connection, String sql) throws SQLException {
+		try (
+			Statement stmt = connection.createStatement();
+			ResultSet rs = stmt.executeQuery(sql);
+		) {
+			return rs.next() ? rs.getLong(1) : 0;
+		}
+	}
+}
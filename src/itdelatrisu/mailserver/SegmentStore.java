@@ -0,0 +1,688 @@
+package itdelatrisu.mailserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only message store.
+ * <p>
+ * Messages are appended to large rolling segment files ({@code NNNNNN.seg}),
+ * and each record is identified by a stable message ID of the form
+ * {@code segment:offset:length}. Every segment has an index file
+ * ({@code NNNNNN.idx}) listing the offset and length of each record, which
+ * is used to discard partially written records after a crash. Only IDs of
+ * records listed in the index (or the archive map) can be read.
+ * <p>
+ * Records are compressed by a {@link MessageCodec}. Segments are written
+ * with fast compression, and sealed segments older than a given age can be
+ * re-packed with the best compression into the archive tier
+ * ({@code archive/NNNNNN.seg}), along with a map ({@code archive/NNNNNN.map})
+ * from the original record offsets to their archived locations. Message
+ * IDs stay the same, and {@link #read(MessageId)} reads from either tier.
+ * <p>
+ * Segments written before records were encoded (which hold the messages
+ * as-is) are still read as such: the first segment holding encoded records
+ * is recorded in the {@code format} file, and those older segments are
+ * encoded when they are archived.
+ */
+public class SegmentStore {
+	private static final Logger logger = LoggerFactory.getLogger(SegmentStore.class);
+
+	/** Default maximum segment size (in bytes) before rolling over to a new segment. */
+	public static final long DEFAULT_MAX_SEGMENT_SIZE = 256L * 1024 * 1024;
+
+	/** File extension for segment files. */
+	private static final String SEGMENT_EXT = ".seg";
+
+	/** File extension for segment index files. */
+	private static final String INDEX_EXT = ".idx";
+
+	/** File extension for archive map files. */
+	private static final String MAP_EXT = ".map";
+
+	/** File extension for archive files still being written. */
+	private static final String TEMP_EXT = ".tmp";
+
+	/** File holding the number of the first segment with encoded records. */
+	private static final String FORMAT_FILE = "format";
+
+	/** Size of an index entry (offset and length). */
+	private static final int INDEX_ENTRY_SIZE = 12;
+
+	/** Size of an archive map entry (offset, length, archived offset, and archived length). */
+	private static final int MAP_ENTRY_SIZE = 24;
+
+	/** The store and archive directories. */
+	private final File dir, archiveDir;
+
+	/** The record codec. */
+	private final MessageCodec codec;
+
+	/** The maximum segment size. */
+	private final long maxSegmentSize;
+
+	/** The first segment with encoded records (earlier segments in the store directory hold raw messages). */
+	private final int firstEncodedSegment;
+
+	/** The segment currently being appended to. */
+	private int segment;
+
+	/** The channels for the current segment and its index. */
+	private FileChannel segmentChannel, indexChannel;
+
+	/** The current segment size. */
+	private long segmentSize;
+
+	/** Open segment readers, by segment number. */
+	private final Map<Integer, SegmentReader> readers = new ConcurrentHashMap<Integer, SegmentReader>();
+
+	/** Reads records from a segment in either tier. */
+	private interface SegmentReader {
+		/** Reads the record with the given offset and length in the original segment. */
+		byte[] read(long offset, int length) throws IOException;
+
+		/** Returns the file region holding the record with the given offset and length in the original segment. */
+		Region locate(long offset, int length) throws IOException;
+
+		/** Returns whether the records are raw messages, rather than encoded by the codec. */
+		boolean isRaw();
+
+		/** Closes the reader. */
+		void close();
+	}
+
+	/** Reads records from a segment in the store directory, by looking up their offsets in the index. */
+	private static class HotSegmentReader implements SegmentReader {
+		private final FileChannel channel, index;
+		private final boolean raw;
+		public HotSegmentReader(FileChannel channel, FileChannel index, boolean raw) {
+			this.channel = channel;
+			this.index = index;
+			this.raw = raw;
+		}
+
+		/** Throws an exception unless the index lists a record with the given offset and length. */
+		private void checkRecord(long offset, int length) throws IOException {
+			long low = 0, high = index.size() / INDEX_ENTRY_SIZE - 1;
+			while (low <= high) {
+				long mid = (low + high) >>> 1;
+				ByteBuffer entry = ByteBuffer.wrap(readFully(index, mid * INDEX_ENTRY_SIZE, INDEX_ENTRY_SIZE));
+				long entryOffset = entry.getLong();
+				if (entryOffset < offset)
+					low = mid + 1;
+				else if (entryOffset > offset)
+					high = mid - 1;
+				else if (entry.getInt() == length && offset + length <= channel.size())
+					return;
+				else
+					break;
+			}
+			throw new IOException("No such record in the segment.");
+		}
+
+		@Override
+		public byte[] read(long offset, int length) throws IOException {
+			checkRecord(offset, length);
+			return readFully(channel, offset, length);
+		}
+
+		@Override
+		public Region locate(long offset, int length) throws IOException {
+			checkRecord(offset, length);
+			return new Region(channel, offset, length);
+		}
+
+		@Override
+		public boolean isRaw() { return raw; }
+
+		@Override
+		public void close() {
+			try {
+				channel.close();
+				index.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	/** Reads records from an archived segment, by looking up their original offsets in the map. */
+	private static class ArchiveSegmentReader implements SegmentReader {
+		private final FileChannel channel;
+		private final long[] offsets, archiveOffsets;
+		private final int[] lengths, archiveLengths;
+
+		/** Loads the archive map and opens the archived segment. */
+		public ArchiveSegmentReader(File segmentFile, File mapFile) throws IOException {
+			byte[] map = Files.readAllBytes(mapFile.toPath());
+			int count = map.length / MAP_ENTRY_SIZE;
+			this.offsets = new long[count];
+			this.lengths = new int[count];
+			this.archiveOffsets = new long[count];
+			this.archiveLengths = new int[count];
+			ByteBuffer buf = ByteBuffer.wrap(map);
+			for (int i = 0; i < count; i++) {
+				offsets[i] = buf.getLong();
+				lengths[i] = buf.getInt();
+				archiveOffsets[i] = buf.getLong();
+				archiveLengths[i] = buf.getInt();
+			}
+			this.channel = FileChannel.open(segmentFile.toPath(), StandardOpenOption.READ);
+		}
+
+		@Override
+		public byte[] read(long offset, int length) throws IOException {
+			int i = Arrays.binarySearch(offsets, offset);
+			if (i < 0 || lengths[i] != length)
+				throw new IOException("No such record in the archived segment.");
+			return readFully(channel, archiveOffsets[i], archiveLengths[i]);
+		}
+
+		@Override
+		public Region locate(long offset, int length) throws IOException {
+			int i = Arrays.binarySearch(offsets, offset);
+			if (i < 0 || lengths[i] != length)
+				throw new IOException("No such record in the archived segment.");
+			return new Region(channel, archiveOffsets[i], archiveLengths[i]);
+		}
+
+		@Override
+		public boolean isRaw() { return false; }
+
+		@Override
+		public void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	/** A region of a segment file. */
+	public static class Region {
+		private final FileChannel channel;
+		private final long position, length;
+
+		/** Constructor. */
+		private Region(FileChannel channel, long position, long length) {
+			this.channel = channel;
+			this.position = position;
+			this.length = length;
+		}
+
+		/** Returns the region length. */
+		public long getLength() { return length; }
+
+		/** Reads bytes from the region at the given offset. */
+		public byte[] read(long offset, int count) throws IOException {
+			return readFully(channel, position + offset, count);
+		}
+
+		/**
+		 * Transfers bytes from the region directly to the target channel,
+		 * without copying them into the heap where the platform allows.
+		 * @param offset the offset in the region
+		 * @param count the number of bytes to transfer
+		 * @param target the target channel
+		 */
+		public void transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+			if (offset < 0 || count < 0 || offset + count > length)
+				throw new IndexOutOfBoundsException();
+			long pos = position + offset, end = pos + count;
+			while (pos < end) {
+				long n = channel.transferTo(pos, end - pos, target);
+				if (n <= 0 && pos >= channel.size())
+					throw new IOException("Unexpected end of segment.");
+				pos += n;
+			}
+		}
+	}
+
+	/** A record read into memory, decoded as it is transferred. */
+	public static class Record {
+		private final byte[] data;
+		private final MessageCodec codec;
+		private final long length;
+
+		/** Constructor (the codec is null for raw messages). */
+		private Record(byte[] data, MessageCodec codec) throws IOException {
+			this.data = data;
+			this.codec = codec;
+			this.length = (codec == null) ? data.length : codec.getDecodedLength(data);
+		}
+
+		/** Returns the message length. */
+		public long getLength() { return length; }
+
+		/** Reads bytes of the message at the given offset. */
+		public byte[] read(long offset, int count) throws IOException {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(count);
+			transferTo(offset, count, Channels.newChannel(out));
+			return out.toByteArray();
+		}
+
+		/** Returns the whole message. */
+		public byte[] decode() throws IOException {
+			return (codec == null) ? data : codec.decode(data);
+		}
+
+		/**
+		 * Writes bytes of the message to the target channel, decoding only
+		 * as far as the end of the range.
+		 * @param offset the offset in the message
+		 * @param count the number of bytes to write
+		 * @param target the target channel
+		 */
+		public void transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+			if (offset < 0 || count < 0 || offset + count > length)
+				throw new IndexOutOfBoundsException();
+			if (codec != null) {
+				codec.decodeTo(data, offset, count, target);
+				return;
+			}
+			ByteBuffer buf = ByteBuffer.wrap(data, (int) offset, (int) count);
+			while (buf.hasRemaining())
+				target.write(buf);
+		}
+	}
+
+	/** Represents a stored message location. */
+	public static class MessageId {
+		private final int segment;
+		private final long offset;
+		private final int length;
+
+		/** Constructor. */
+		public MessageId(int segment, long offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/**
+		 * Parses a message ID string.
+		 * @throws IllegalArgumentException if the string is not a valid message ID
+		 */
+		public static MessageId parse(String s) {
+			String[] fields = s.split(":");
+			if (fields.length != 3)
+				throw new IllegalArgumentException(String.format("Invalid message ID '%s'.", s));
+			try {
+				return new MessageId(Integer.parseInt(fields[0]), Long.parseLong(fields[1]), Integer.parseInt(fields[2]));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(String.format("Invalid message ID '%s'.", s), e);
+			}
+		}
+
+		/** Returns the segment number. */
+		public int getSegment() { return segment; }
+
+		/** Returns the offset of the record in the segment. */
+		public long getOffset() { return offset; }
+
+		/** Returns the record length. */
+		public int getLength() { return length; }
+
+		@Override
+		public String toString() { return String.format("%d:%d:%d", segment, offset, length); }
+	}
+
+	/**
+	 * Opens the store, creating the directory if needed.
+	 * @param dir the store directory
+	 * @param maxSegmentSize the maximum segment size (in bytes)
+	 * @param codec the record codec
+	 * @throws IOException if the current segment could not be opened
+	 */
+	public SegmentStore(File dir, long maxSegmentSize, MessageCodec codec) throws IOException {
+		this.dir = dir;
+		this.archiveDir = new File(dir, "archive");
+		this.maxSegmentSize = maxSegmentSize;
+		this.codec = codec;
+		boolean hadArchiveDir = archiveDir.isDirectory();
+		if (!hadArchiveDir && !archiveDir.mkdirs())
+			throw new IOException(String.format("Failed to create store directory '%s'.", archiveDir.getAbsolutePath()));
+
+		// resume after the last segment in either tier
+		int last = 0;
+		for (int n : listSegments(dir, SEGMENT_EXT))
+			last = Math.max(last, n);
+		for (int n : listSegments(archiveDir, MAP_EXT))
+			last = Math.max(last, n + 1);
+		this.firstEncodedSegment = loadFormat(hadArchiveDir ? 1 : last + 1);
+		openSegment(Math.max(Math.max(last, firstEncodedSegment), 1));
+	}
+
+	/**
+	 * Returns the first segment with encoded records, recording the given
+	 * one if not recorded yet. Stores without a format file that have an
+	 * archive directory were created with encoded records; stores without
+	 * either hold only raw records, so new records start a new segment.
+	 */
+	private int loadFormat(int first) throws IOException {
+		File file = new File(dir, FORMAT_FILE);
+		if (file.isFile()) {
+			try {
+				return Integer.parseInt(new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII).trim());
+			} catch (NumberFormatException e) {
+				throw new IOException(String.format("Invalid store format file '%s'.", file.getAbsolutePath()), e);
+			}
+		}
+		if (first > 1)
+			logger.info("Segments 1 to {} hold uncompressed records, and will be compressed when archived.", first - 1);
+		File temp = new File(dir, FORMAT_FILE + TEMP_EXT);
+		try (FileChannel channel = FileChannel.open(temp.toPath(),
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buf = ByteBuffer.wrap(Integer.toString(first).getBytes(StandardCharsets.US_ASCII));
+			while (buf.hasRemaining())
+				channel.write(buf);
+			channel.force(true);
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return first;
+	}
+
+	/** Returns the numbers of all segments in a directory with files of the given extension. */
+	private static List<Integer> listSegments(File dir, String ext) {
+		List<Integer> segments = new ArrayList<Integer>();
+		File[] files = dir.listFiles();
+		if (files == null)
+			return segments;
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.endsWith(ext))
+				continue;
+			try {
+				segments.add(Integer.parseInt(name.substring(0, name.length() - ext.length())));
+			} catch (NumberFormatException e) {}
+		}
+		return segments;
+	}
+
+	/** Returns the segment file for a segment number. */
+	private File segmentFile(int segment) { return new File(dir, String.format("%06d%s", segment, SEGMENT_EXT)); }
+
+	/** Returns the index file for a segment number. */
+	private File indexFile(int segment) { return new File(dir, String.format("%06d%s", segment, INDEX_EXT)); }
+
+	/** Returns the archived segment file for a segment number. */
+	private File archiveFile(int segment) { return new File(archiveDir, String.format("%06d%s", segment, SEGMENT_EXT)); }
+
+	/** Returns the archive map file for a segment number. */
+	private File mapFile(int segment) { return new File(archiveDir, String.format("%06d%s", segment, MAP_EXT)); }
+
+	/**
+	 * Opens a segment for appending, discarding any records that were not
+	 * completely written (i.e. past the last complete index entry).
+	 */
+	private void openSegment(int segment) throws IOException {
+		FileChannel seg = FileChannel.open(segmentFile(segment).toPath(),
+			StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		FileChannel idx = FileChannel.open(indexFile(segment).toPath(),
+			StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		// find the end of the last complete record
+		long entries = idx.size() / INDEX_ENTRY_SIZE, end = 0;
+		ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+		while (entries > 0) {
+			entry.clear();
+			idx.read(entry, (entries - 1) * INDEX_ENTRY_SIZE);
+			entry.flip();
+			end = entry.getLong() + entry.getInt();
+			if (end <= seg.size())
+				break;
+			end = 0;
+			entries--;  // index entry written, record was not
+		}
+		if (idx.size() != entries * INDEX_ENTRY_SIZE || seg.size() != end) {
+			logger.warn("Discarding incomplete records at the end of segment {}.", segment);
+			idx.truncate(entries * INDEX_ENTRY_SIZE);
+			seg.truncate(end);
+		}
+		seg.position(end);
+		idx.position(entries * INDEX_ENTRY_SIZE);
+
+		this.segment = segment;
+		this.segmentChannel = seg;
+		this.indexChannel = idx;
+		this.segmentSize = end;
+	}
+
+	/**
+	 * Appends a message to the store.
+	 * @param data the message data
+	 * @return the message ID
+	 * @throws IOException if the message could not be written
+	 */
+	public MessageId append(byte[] data) throws IOException {
+		return appendRecord(codec.encode(data, false));
+	}
+
+	/** Appends an encoded record to the current segment. */
+	private synchronized MessageId appendRecord(byte[] data) throws IOException {
+		if (segmentSize > 0 && segmentSize + data.length > maxSegmentSize) {
+			segmentChannel.close();
+			indexChannel.close();
+			openSegment(segment + 1);
+		}
+
+		// write the record, then its index entry
+		long offset = segmentSize;
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		while (buf.hasRemaining())
+			segmentChannel.write(buf);
+		ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+		entry.putLong(offset).putInt(data.length).flip();
+		while (entry.hasRemaining())
+			indexChannel.write(entry);
+		segmentSize += data.length;
+		return new MessageId(segment, offset, data.length);
+	}
+
+	/** Forces all appended messages to disk. */
+	public synchronized void sync() throws IOException {
+		segmentChannel.force(false);
+		indexChannel.force(false);
+	}
+
+	/**
+	 * Reads a message from the store.
+	 * @param id the message ID
+	 * @return the message data
+	 * @throws IOException if the message could not be read
+	 */
+	public byte[] read(MessageId id) throws IOException {
+		return readRecord(id).decode();
+	}
+
+	/**
+	 * Reads a message's record from the store, without decoding it.
+	 * @param id the message ID
+	 * @throws IOException if the message could not be read
+	 */
+	public Record readRecord(MessageId id) throws IOException {
+		SegmentReader reader = getReader(id.getSegment());
+		byte[] record;
+		try {
+			record = reader.read(id.getOffset(), id.getLength());
+		} catch (ClosedChannelException e) {
+			// segment was archived concurrently, so read from the archive
+			reader = getReader(id.getSegment());
+			record = reader.read(id.getOffset(), id.getLength());
+		} catch (IOException e) {
+			throw new IOException(String.format("Failed to read message %s.", id), e);
+		}
+		return new Record(record, reader.isRaw() ? null : codec);
+	}
+
+	/**
+	 * Returns the file region holding a message if its record is stored
+	 * uncompressed (so it can be sent without being read into the heap),
+	 * or null if the record is compressed.
+	 * @param id the message ID
+	 * @throws IOException if the message could not be located
+	 */
+	public Region getUncompressedRegion(MessageId id) throws IOException {
+		SegmentReader reader = getReader(id.getSegment());
+		Region record;
+		try {
+			record = reader.locate(id.getOffset(), id.getLength());
+		} catch (ClosedChannelException e) {
+			reader = getReader(id.getSegment());
+			record = reader.locate(id.getOffset(), id.getLength());
+		}
+		if (reader.isRaw())
+			return record;
+		if (record.getLength() < 1 || record.read(0, 1)[0] != MessageCodec.RAW)
+			return null;
+		return new Region(record.channel, record.position + 1, record.length - 1);
+	}
+
+	/** Reads bytes from a channel at the given position. */
+	private static byte[] readFully(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, position + buf.position()) == -1)
+				throw new IOException("Unexpected end of segment.");
+		}
+		return buf.array();
+	}
+
+	/** Returns a reader for a segment, opening it if needed. */
+	private SegmentReader getReader(int segment) throws IOException {
+		SegmentReader reader = readers.get(segment);
+		if (reader != null)
+			return reader;
+		if (mapFile(segment).isFile())
+			reader = new ArchiveSegmentReader(archiveFile(segment), mapFile(segment));
+		else if (segmentFile(segment).isFile())
+			reader = new HotSegmentReader(
+				FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.READ),
+				FileChannel.open(indexFile(segment).toPath(), StandardOpenOption.READ),
+				segment < firstEncodedSegment
+			);
+		else
+			throw new IOException(String.format("Segment %d does not exist.", segment));
+		SegmentReader existing = readers.putIfAbsent(segment, reader);
+		if (existing != null) {
+			reader.close();
+			return existing;
+		}
+		return reader;
+	}
+
+	/**
+	 * Re-packs all sealed segments last written to at least the given time
+	 * ago into the archive tier.
+	 * @param maxAge the minimum age (in ms) of segments to archive
+	 * @return the number of segments archived
+	 */
+	public int archive(long maxAge) {
+		int current;
+		synchronized (this) {
+			current = segment;
+		}
+		List<Integer> segments = listSegments(dir, SEGMENT_EXT);
+		segments.sort(null);
+		long now = System.currentTimeMillis();
+		int archived = 0;
+		for (int n : segments) {
+			if (n >= current || now - segmentFile(n).lastModified() < maxAge)
+				continue;
+			try {
+				archiveSegment(n);
+				archived++;
+			} catch (IOException e) {
+				logger.error(String.format("Failed to archive segment %d.", n), e);
+			}
+		}
+		return archived;
+	}
+
+	/** Re-packs a sealed segment into the archive tier, then removes it from the store directory. */
+	private void archiveSegment(int segment) throws IOException {
+		if (!mapFile(segment).isFile()) {
+			File archiveTemp = new File(archiveDir, archiveFile(segment).getName() + TEMP_EXT);
+			File mapTemp = new File(archiveDir, mapFile(segment).getName() + TEMP_EXT);
+			long hotSize = 0, archiveSize = 0;
+			try (
+				FileChannel seg = FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.READ);
+				FileChannel archive = FileChannel.open(archiveTemp.toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				FileChannel map = FileChannel.open(mapTemp.toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			) {
+				ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(indexFile(segment).toPath()));
+				ByteBuffer entry = ByteBuffer.allocate(MAP_ENTRY_SIZE);
+				while (index.remaining() >= INDEX_ENTRY_SIZE) {
+					long offset = index.getLong();
+					int length = index.getInt();
+					byte[] record = readFully(seg, offset, length), packed;
+					try {
+						if (segment < firstEncodedSegment)
+							packed = codec.encode(record, true);  // raw message
+						else {
+							packed = codec.encode(codec.decode(record), true);
+							if (packed.length > record.length)
+								packed = record;
+						}
+					} catch (IOException e) {
+						logger.warn("Copying unreadable record {}:{}:{} to the archive as-is.", segment, offset, length);
+						packed = record;
+					}
+					ByteBuffer buf = ByteBuffer.wrap(packed);
+					while (buf.hasRemaining())
+						archive.write(buf);
+					entry.clear();
+					entry.putLong(offset).putInt(length).putLong(archiveSize).putInt(packed.length).flip();
+					while (entry.hasRemaining())
+						map.write(entry);
+					hotSize += length;
+					archiveSize += packed.length;
+				}
+				archive.force(false);
+				map.force(false);
+			}
+
+			// the map file marks the archived segment as complete
+			Files.move(archiveTemp.toPath(), archiveFile(segment).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			Files.move(mapTemp.toPath(), mapFile(segment).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			logger.info("Archived segment {} ({} bytes -> {} bytes).", segment, hotSize, archiveSize);
+		}
+
+		// switch readers to the archive and remove the hot segment
+		SegmentReader reader = readers.remove(segment);
+		if (reader != null)
+			reader.close();
+		Files.deleteIfExists(segmentFile(segment).toPath());
+		Files.deleteIfExists(indexFile(segment).toPath());
+	}
+
+	/** Closes the store. */
+	public synchronized void close() {
+		try {
+			segmentChannel.close();
+			indexChannel.close();
+		} catch (IOException e) {
+			logger.error("Failed to close segment.", e);
+		}
+		for (SegmentReader reader : readers.values())
+			reader.close();
+		readers.clear();
+	}
+}
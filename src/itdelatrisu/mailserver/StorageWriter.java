@@ -0,0 +1,233 @@
+package itdelatrisu.mailserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Group-commit writer for stored mail.
+ * <p>
+ * Messages are queued and written by a single thread in batches: every
+ * message in a batch is appended to the content store, the store is synced
+ * to disk once, and the inbox rows for all recipients are inserted in one
+ * database transaction. Each message's future completes only once its
+ * batch has been committed.
+ * <p>
+ * Messages in a batch that fails to commit are retried on their own with
+ * exponential backoff, so a message that cannot be committed does not hold
+ * up the others. A retry reuses the content already stored for the message.
+ * Messages still not committed when the writer is closed are failed.
+ */
+public class StorageWriter {
+	private static final Logger logger = LoggerFactory.getLogger(StorageWriter.class);
+
+	/** Maximum number of messages in a batch. */
+	private static final int MAX_BATCH_MESSAGES = 256;
+
+	/** Maximum total size (in bytes) of the messages in a batch. */
+	private static final int MAX_BATCH_BYTES = 16 * 1024 * 1024;
+
+	/** Delay (in ms) before the first retry of a message, doubled for each later retry. */
+	private static final long RETRY_INITIAL_DELAY = 1000;
+
+	/** Maximum delay (in ms) between retries of a message. */
+	private static final long RETRY_MAX_DELAY = 60000;
+
+	/** The database instance. */
+	private final MailDB db;
+
+	/** The content store. */
+	private final ContentStore content;
+
+	/** The queue of messages to write. */
+	private final BlockingQueue<Write> queue = new LinkedBlockingQueue<Write>();
+
+	/** Messages waiting to be retried (accessed by the writer thread only). */
+	private final List<Write> retries = new ArrayList<Write>();
+
+	/** The writer thread. */
+	private final Thread thread;
+
+	/** Whether the writer is shutting down. */
+	private volatile boolean closed = false;
+
+	/** Statistics. */
+	private final AtomicLong batches = new AtomicLong(), messages = new AtomicLong();
+
+	/** A queued message. */
+	private static class Write {
+		public final String from;
+		public final List<String> recipients;
+		public final byte[] data;
+		public final String subject;
+		public final Date sentDate;
+		public final CompletableFuture<String> future = new CompletableFuture<String>();
+
+		/** The stored message ID, once the message has been written to the content store. */
+		public String id;
+
+		/** Whether the stored message has been synced to disk. */
+		public boolean synced;
+
+		/** The number of failed attempts to commit the message. */
+		public int attempts;
+
+		/** The time of the next attempt, if the message is waiting to be retried. */
+		public long retryTime;
+
+		/** Constructor. */
+		public Write(String from, List<String> recipients, byte[] data, String subject, Date sentDate) {
+			this.from = from;
+			this.recipients = recipients;
+			this.data = data;
+			this.subject = subject;
+			this.sentDate = sentDate;
+		}
+	}
+
+	/** Creates and starts the writer. */
+	public StorageWriter(MailDB db, ContentStore content) {
+		this.db = db;
+		this.content = content;
+		this.thread = new Thread(this::run, "storage-writer");
+		thread.start();
+	}
+
+	/**
+	 * Queues a message to be stored for the given recipients.
+	 * @return a future completed with the message ID once the message and
+	 *         its inbox rows have been committed
+	 */
+	public CompletableFuture<String> write(String from, List<String> recipients, byte[] data, String subject, Date sentDate) {
+		Write write = new Write(from, recipients, data, subject, sentDate);
+		if (closed)
+			write.future.completeExceptionally(new IllegalStateException("Storage writer is closed."));
+		else
+			queue.add(write);
+		return write.future;
+	}
+
+	/** Returns the number of messages waiting to be written. */
+	public int getQueueDepth() { return queue.size(); }
+
+	/** Returns the number of batches committed. */
+	public long getBatchCount() { return batches.get(); }
+
+	/** Returns the number of messages committed. */
+	public long getMessageCount() { return messages.get(); }
+
+	/** Writes batches until closed and drained. */
+	private void run() {
+		List<Write> batch = new ArrayList<Write>(MAX_BATCH_MESSAGES);
+		while (!closed || !queue.isEmpty()) {
+			Write retry = pollRetry();
+			if (retry != null) {
+				commit(Collections.singletonList(retry));
+				continue;
+			}
+			try {
+				Write first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null)
+					continue;
+				batch.add(first);
+				int bytes = first.data.length;
+				while (batch.size() < MAX_BATCH_MESSAGES && bytes < MAX_BATCH_BYTES) {
+					Write next = queue.poll();
+					if (next == null)
+						break;
+					batch.add(next);
+					bytes += next.data.length;
+				}
+			} catch (InterruptedException e) {
+				continue;
+			}
+			commit(batch);
+			batch.clear();
+		}
+
+		// keep the remaining messages spooled for the next restart
+		for (Write write : retries)
+			write.future.completeExceptionally(new IllegalStateException("Storage writer closed before the message was committed."));
+		retries.clear();
+	}
+
+	/** Returns the next message due to be retried, or null if none. */
+	private Write pollRetry() {
+		long now = System.currentTimeMillis();
+		for (Iterator<Write> iter = retries.iterator(); iter.hasNext();) {
+			Write write = iter.next();
+			if (write.retryTime <= now) {
+				iter.remove();
+				return write;
+			}
+		}
+		return null;
+	}
+
+	/** Schedules another attempt to commit a message, after a delay growing with the number of attempts. */
+	private void retry(Write write) {
+		long delay = Math.min(RETRY_INITIAL_DELAY << Math.min(write.attempts, 16), RETRY_MAX_DELAY);
+		write.attempts++;
+		write.retryTime = System.currentTimeMillis() + delay;
+		retries.add(write);
+	}
+
+	/**
+	 * Writes and commits a batch, then completes its futures.
+	 * The messages are retried if the batch fails.
+	 */
+	private void commit(List<Write> batch) {
+		try {
+			// store the messages not stored by an earlier attempt (recording
+			// each ID right away, so a failed attempt never stores one twice),
+			// then sync any not synced yet
+			boolean sync = false;
+			for (Write write : batch) {
+				if (write.id == null)
+					write.id = content.put(write.data).toString();
+				sync |= !write.synced;
+			}
+			if (sync) {
+				content.sync();
+				for (Write write : batch)
+					write.synced = true;
+			}
+
+			List<MailDB.MailEntry> entries = new ArrayList<MailDB.MailEntry>();
+			for (Write write : batch) {
+				for (String recipient : write.recipients)
+					entries.add(new MailDB.MailEntry(recipient, write.from, write.sentDate, write.subject, write.id));
+			}
+			db.addMailEntries(entries);
+		} catch (Exception e) {
+			logger.error(String.format("Failed to commit a batch of %d messages, retrying.", batch.size()), e);
+			for (Write write : batch)
+				retry(write);
+			return;
+		}
+		batches.incrementAndGet();
+		messages.addAndGet(batch.size());
+		for (Write write : batch)
+			write.future.complete(write.id);
+	}
+
+	/** Stops the writer after writing all queued messages. */
+	public void close() {
+		closed = true;  // not interrupted: that would close the store's file channels
+		try {
+			thread.join(TimeUnit.MINUTES.toMillis(1));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -7,13 +7,17 @@ import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
 import java.util.Scanner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.stream.Collectors;
 import java.util.zip.GZIPInputStream;
 
@@ -22,6 +26,7 @@ import javax.mail.Multipart;
 import javax.mail.Part;
 import javax.mail.Session;
 import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
 
 import com.google.common.io.Resources;
 import com.google.common.net.InternetDomainName;
@@ -41,6 +46,18 @@ public class Utils {
 	};
 	static { Arrays.sort(illegalChars); }
 
+	/** Size of a pooled message read buffer. */
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	/** Maximum number of pooled message read buffers. */
+	private static final int READ_BUFFER_POOL_SIZE = 64;
+
+	/**
+	 * Reusable buffers for reading message data. A shared pool rather than a
+	 * ThreadLocal, since SMTP sessions may each run on a new virtual thread.
+	 */
+	private static final BlockingQueue<byte[]> readBuffers = new ArrayBlockingQueue<byte[]>(READ_BUFFER_POOL_SIZE);
+
 	/**
 	 * Cleans a file name.
 	 * @param badFileName the original name string
@@ -68,29 +85,69 @@ public class Utils {
 		}
 	}
 
+	/**
+	 * Reads the input stream and returns the raw bytes.
+	 * Data is read into a pooled buffer, so only one exactly-sized copy is
+	 * allocated per call for data that fits in it. Larger data is read into a
+	 * growing private copy, which is not pooled (pooled buffers never grow).
+	 */
+	public static byte[] streamToBytes(InputStream is) throws IOException {
+		byte[] pooled = readBuffers.poll();
+		if (pooled == null)
+			pooled = new byte[READ_BUFFER_SIZE];
+		try {
+			byte[] buf = pooled;
+			int len = 0, n;
+			while ((n = is.read(buf, len, buf.length - len)) != -1) {
+				len += n;
+				if (len == buf.length)
+					buf = Arrays.copyOf(buf, buf.length * 2);
+			}
+			return Arrays.copyOf(buf, len);
+		} finally {
+			readBuffers.offer(pooled);
+		}
+	}
+
 	/** Reads the file and returns the data as a string. */
 	public static String fileToString(String path, Charset encoding) throws IOException {
 		return new String(Files.readAllBytes(Paths.get(path)), encoding);
 	}
 
+	/**
+	 * Returns whether a database error is likely transient (e.g. a lost
+	 * connection, a timeout, or a deadlock), rather than caused by the
+	 * statement or its data, so that retrying it unchanged may succeed.
+	 */
+	public static boolean isTransient(SQLException e) {
+		if (e instanceof SQLTransientException || e instanceof SQLRecoverableException)
+			return true;
+		String state = e.getSQLState();
+		return state == null || state.startsWith("08") || state.startsWith("40");
+	}
+
 	/** Reads the resource and returns the data as a string. */
 	public static String resourceToString(String res, Charset encoding) throws IOException {
 		return Resources.toString(Resources.getResource(res), encoding);
 	}
 
-	/** Parses mail data into a MimeMessage. */
-	public static MimeMessage toMimeMessage(String content) throws MessagingException {
+	/**
+	 * Parses raw mail data into a MimeMessage.
+	 * The message shares the given array rather than copying it, so the
+	 * array must not be modified afterwards.
+	 */
+	public static MimeMessage toMimeMessage(byte[] content) throws MessagingException {
 		Session s = Session.getDefaultInstance(new Properties());
-		InputStream is = new ByteArrayInputStream(content.getBytes());
+		InputStream is = new SharedByteArrayInputStream(content);
 		return new MimeMessage(s, is);
 	}
 
-	/** Returns a string representation of the MIME message. */
-	public static String messageToString(MimeMessage message)
+	/** Returns the raw bytes of the MIME message. */
+	public static byte[] messageToBytes(MimeMessage message)
 		throws IOException, MessagingException {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		message.writeTo(baos);
-		return baos.toString(StandardCharsets.UTF_8.name());
+		return baos.toByteArray();
 	}
 
 	/** Returns the HTML section of a MIME message, or null if not found. */
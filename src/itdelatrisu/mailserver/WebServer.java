@@ -5,7 +5,12 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
@@ -32,6 +37,9 @@ public class WebServer {
 	/** The database instance. */
 	private final MailDB db;
 
+	/** The mail storage module (or null if messages cannot be retrieved). */
+	private final MailStorage storage;
+
 	/** The email address generator. */
 	private final EmailAddressGenerator generator;
 
@@ -41,25 +49,45 @@ public class WebServer {
 	/** The port. */
 	private final int port;
 
+	/** The bearer token required to fetch stored messages (if null, the endpoint is disabled). */
+	private String messageToken;
+
 	/** Initializes the web server. */
 	public WebServer(MailDB db, String domain) {
-		this(db, domain, DEFAULT_PORT);
+		this(db, null, domain, DEFAULT_PORT);
+	}
+
+	/** Initializes the web server. */
+	public WebServer(MailDB db, MailStorage storage, String domain) {
+		this(db, storage, domain, DEFAULT_PORT);
 	}
 
 	/** Initializes the web server. */
-	public WebServer(MailDB db, String domain, int port) {
+	public WebServer(MailDB db, MailStorage storage, String domain, int port) {
 		this.db = db;
+		this.storage = storage;
 		this.generator = new EmailAddressGenerator();
 		this.domain = domain;
 		this.port = port;
 		Spark.port(port);
 	}
 
+	/** Sets the bearer token required to fetch stored messages (call before {@link #start()}). */
+	public void setMessageToken(String token) {
+		this.messageToken = (token == null || token.isEmpty()) ? null : token;
+	}
+
 	/** Starts the server. */
 	public void start() {
 		Spark.post("/register", this::register);
 		Spark.get("/visit", this::visit);
 		Spark.post("/results", this::results);
+		if (storage != null) {
+			if (messageToken != null)
+				Spark.get("/message", this::message);
+			else
+				logger.info("Message endpoint disabled (no access token set).");
+		}
 	}
 
 	/** Stops the server. */
@@ -99,11 +127,11 @@ public class WebServer {
 	}
 
 	/**
-	 * Retrieves a group of URLs to visit.
+	 * Retrieves a group of URLs to visit (leased until its results are submitted, or it times out).
 	 * GET /visit -> {id: int, links: [string...]}
 	 */
 	private String visit(spark.Request request, spark.Response response) {
-		// get a random link group
+		// lease the next link group
 		MailDB.LinkGroup linkGroup;
 		try {
 			linkGroup = db.getLinkGroup();
@@ -190,7 +218,7 @@ public class WebServer {
 
 		// check for leaked email address in URLs
 		Set<String> baseUrls = new HashSet<String>(Arrays.asList(linkGroup.getUrls()));
-		List<HashChecker.NamedValue<String>> encodings = HashChecker.getEncodings(user.getEmail());
+		EncodingMatcher matcher = EncodingMatcher.forEmail(user.getEmail());
 		for (String[] container : urls) {
 			String url = container[0], topLevelUrl = container[1], referrer = container[2], postBody = container[3];
 			if (baseUrls.contains(url))
@@ -198,7 +226,7 @@ public class WebServer {
 			try {
 				findLeakedEmailAddress(
 					url, topLevelUrl, referrer, postBody,
-					encodings, linkGroup.getRecipientId(), linkGroup.getSenderDomain(), linkGroup.getSenderAddress()
+					matcher, linkGroup.getRecipientId(), linkGroup.getSenderDomain(), linkGroup.getSenderAddress()
 				);
 			} catch (Exception e) {
 				return internalServerError(response);
@@ -215,45 +243,65 @@ public class WebServer {
 		return "";
 	}
 
-	/** Finds leaked email addresses in the given data. */
+	/** Finds leaked email addresses in the given data (scanning each field once). */
 	private void findLeakedEmailAddress(
 		String url,
 		String topLevelUrl,
 		String referrer,
 		String postBody,
-		List<HashChecker.NamedValue<String>> encodings,
+		EncodingMatcher matcher,
 		int recipientId,
 		String senderDomain,
 		String senderAddress
 	) throws SQLException {
-		for (HashChecker.NamedValue<String> enc : encodings) {
+		List<HashChecker.NamedValue<String>> inPostBody = matcher.findEncodings(postBody);
+		List<EncodingMatcher.Match> inUrl = matcher.findAll(url);
+		List<HashChecker.NamedValue<String>> inReferrer = matcher.findEncodings(referrer);
+		if (inPostBody.isEmpty() && inUrl.isEmpty() && inReferrer.isEmpty())
+			return;
+
+		for (HashChecker.NamedValue<String> enc : matcher.getEncodings()) {
+			List<EncodingMatcher.Match> urlMatches = new ArrayList<EncodingMatcher.Match>();
+			for (EncodingMatcher.Match m : inUrl) {
+				if (m.getEncoding() == enc)
+					urlMatches.add(m);
+			}
+
 			String type;
 			boolean isIntentional;
-			if (postBody != null && postBody.contains(enc.getValue())) {
+			if (inPostBody.contains(enc)) {
 				// in POST data:
 				// > accidental if top-level URL leaks and occurs at least once,
 				//   but intentional if the leaked email address occurs more
 				//   frequently than the top-level URL (x number of occurrences)
 				type = "link-post";
-				if (!urlContainsString(topLevelUrl, enc.getValue()))
+				if (!urlContainsEncoding(topLevelUrl, matcher, enc))
 					isIntentional = true;
 				else
-					isIntentional = isValueMoreFrequentThanUrlsInString(enc.getValue(), topLevelUrl, postBody);
-			} else if (url.contains(enc.getValue())) {
+					isIntentional = isEncodingMoreFrequentThanUrlsInString(matcher, enc, topLevelUrl, postBody);
+			} else if (!urlMatches.isEmpty()) {
 				// in request URL:
 				// > intentional if the leak is NOT in the query parameters
 				// > accidental if top level URL leaks and occurs at least once,
 				//   but intentional if the leaked email address occurs more
 				//   frequently than the top-level URL
 				type = "link-request";
-				if (!urlContainsString(topLevelUrl, enc.getValue()))
+				if (!urlContainsEncoding(topLevelUrl, matcher, enc))
 					isIntentional = true;
 				else {
 					try {
 						URL u = new URL(url);
+						int queryStart = url.indexOf('?') + 1;
+						int queryEnd = url.indexOf('#', queryStart);
+						if (queryEnd == -1)
+							queryEnd = url.length();
+						boolean outsideQuery = false;
+						for (EncodingMatcher.Match m : urlMatches) {
+							if (m.getStart() < queryStart || m.getEnd() > queryEnd)
+								outsideQuery = true;
+						}
 						if (u.getQuery() == null ||  // no query params
-						    !u.getQuery().contains(enc.getValue()) ||  // not in query params
-						    url.replace(u.getQuery(), "").contains(enc.getValue()))  // in non-query section
+						    outsideQuery)            // not (only) in query params
 							isIntentional = true;
 						else {
 							// NOTE:
@@ -261,13 +309,13 @@ public class WebServer {
 							// because many scripts just embed the page URL as a query parameter
 							// without URL encoding it (so we can't tell which parameters
 							// belong to which URL)
-							isIntentional = isValueMoreFrequentThanUrlsInString(enc.getValue(), topLevelUrl, u.getQuery());
+							isIntentional = isEncodingMoreFrequentThanUrlsInString(matcher, enc, topLevelUrl, u.getQuery());
 						}
 					} catch (MalformedURLException e) {
 						isIntentional = true;  // invalid URL?
 					}
 				}
-			} else if (referrer != null && referrer.contains(enc.getValue())) {
+			} else if (inReferrer.contains(enc)) {
 				// in Referer header:
 				// > assume accidental (we can't ever infer this was intentional)
 				type = "link-referrer";
@@ -282,25 +330,27 @@ public class WebServer {
 		}
 	}
 
-	/** Returns whether the URL contains the given string. */
-	private boolean urlContainsString(String url, String s) {
+	/** Returns whether the URL contains the given encoding. */
+	private boolean urlContainsEncoding(String url, EncodingMatcher matcher, HashChecker.NamedValue<String> enc) {
 		if (url == null || url.isEmpty())
 			return false;
 
-		if (url.contains(s))
+		if (matcher.contains(url, enc))
 			return true;
 		try {
 			// try URL encoding/decoding on the URL
-			if (URLEncoder.encode(url, "UTF-8").contains(s) ||
-			    URLDecoder.decode(url, "UTF-8").contains(s))
+			if (matcher.contains(URLEncoder.encode(url, "UTF-8"), enc) ||
+			    matcher.contains(URLDecoder.decode(url, "UTF-8"), enc))
 				return true;
 		} catch (Exception e) {}
 
 		return false;
 	}
 
-	/** Returns whether the value is present in the given string more frequently than the URL. */
-	private boolean isValueMoreFrequentThanUrlsInString(String value, String url, String s) {
+	/** Returns whether the encoding is present in the given string more frequently than the URL. */
+	private boolean isEncodingMoreFrequentThanUrlsInString(
+		EncodingMatcher matcher, HashChecker.NamedValue<String> enc, String url, String s
+	) {
 		if (url == null || url.isEmpty())
 			return true;
 
@@ -311,7 +361,85 @@ public class WebServer {
 			replaced = replaced.replace(urlEncoded, "");
 		} catch (Exception e) {}
 
-		return replaced.contains(value);
+		return matcher.contains(replaced, enc);
+	}
+
+	/**
+	 * Streams a stored message (as stored, i.e. with attachments stripped).
+	 * Supports single byte-range requests. Messages (or shared bodies) stored
+	 * uncompressed are transferred straight from disk; compressed ones, which
+	 * are the common case, are inflated while sent, up to the end of the range.
+	 * Requires the message token, as an {@code Authorization: Bearer} header.
+	 * GET /message : id -> message/rfc822
+	 */
+	private String message(spark.Request request, spark.Response response) {
+		String auth = request.headers("Authorization");
+		if (auth == null || !auth.startsWith("Bearer ") || !MessageDigest.isEqual(
+			auth.substring("Bearer ".length()).trim().getBytes(StandardCharsets.UTF_8),
+			messageToken.getBytes(StandardCharsets.UTF_8)
+		)) {
+			response.status(401);
+			response.header("WWW-Authenticate", "Bearer");
+			return "<html><body><h2>401 Unauthorized</h2></body></html>";
+		}
+
+		String id = request.queryParams("id");
+		if (id == null)
+			return badRequest(response);
+
+		ContentStore.MessageContent content;
+		try {
+			content = storage.open(id);
+		} catch (IllegalArgumentException e) {
+			return badRequest(response);
+		} catch (IOException e) {
+			logger.warn("Failed to open message {}: {}", id, e.getMessage());
+			response.status(404);
+			return "<html><body><h2>404 Not Found</h2></body></html>";
+		}
+
+		// parse range
+		long length = content.getLength(), start = 0, end = length - 1;
+		String range = request.headers("Range");
+		boolean partial = false;
+		if (range != null && range.startsWith("bytes=") && range.indexOf(',') == -1) {
+			String spec = range.substring("bytes=".length()).trim();
+			int dash = spec.indexOf('-');
+			try {
+				if (dash == 0) {  // suffix
+					start = Math.max(length - Long.parseLong(spec.substring(1)), 0);
+				} else if (dash > 0) {
+					start = Long.parseLong(spec.substring(0, dash));
+					if (dash < spec.length() - 1)
+						end = Math.min(Long.parseLong(spec.substring(dash + 1)), length - 1);
+				}
+				partial = (dash != -1);
+			} catch (NumberFormatException e) {
+				return badRequest(response);
+			}
+			if (partial && (start >= length || start > end)) {
+				response.status(416);
+				response.header("Content-Range", "bytes */" + length);
+				return "";
+			}
+		}
+
+		// stream the message
+		response.type("message/rfc822");
+		response.header("Accept-Ranges", "bytes");
+		if (partial) {
+			response.status(206);
+			response.header("Content-Range", String.format("bytes %d-%d/%d", start, end, length));
+		}
+		response.header("Content-Length", Long.toString(end - start + 1));
+		try {
+			WritableByteChannel out = Channels.newChannel(response.raw().getOutputStream());
+			content.transferTo(start, end - start + 1, out);
+			response.raw().flushBuffer();
+		} catch (IOException e) {
+			logger.error(String.format("Failed to send message %s.", id), e);
+		}
+		return "";
 	}
 
 	/** Returns a 400 Bad Request response. */
@@ -0,0 +1,543 @@
+package itdelatrisu.mailserver;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write-behind buffer for analysis results ({@code leaked_emails} and
+ * {@code redirects} rows).
+ * <p>
+ * Rows are queued in memory and flushed by a single background thread,
+ * either every {@link #FLUSH_INTERVAL} ms or as soon as {@link #FLUSH_SIZE}
+ * rows are pending. Each flush inserts all rows with one statement batch per
+ * table (the users' leak counts are maintained by {@link CounterAggregator}).
+ * A redirect chain is queued as a unit and written as one multi-row insert,
+ * so it is never split across flushes; rows within a chain are ordered by
+ * their {@code redirect_index}.
+ * The summary tables ({@code leak_rollup}, {@code redirect_rollup}) are
+ * updated in the same transaction, with one upsert per summary key.
+ * If a flush fails transiently (e.g. the database is unavailable), its
+ * unwritten rows are retried on the next flush. Any other failure splits the
+ * batch in halves until the rows (or redirect chains) that cannot be written
+ * are isolated, and those are logged and dropped, so they do not block the
+ * rows behind them. If the backlog exceeds {@link #MAX_BACKLOG} rows, new
+ * rows are dropped.
+ * <p>
+ * The flush thread is only started once the first row is queued: behind a
+ * {@link JournaledMailDB}, rows are written by
+ * {@link #write(Connection, List, List)} instead, in the transaction
+ * applying the journal records, and this queue stays unused.
+ */
+public class WriteBehindWriter {
+	private static final Logger logger = LoggerFactory.getLogger(WriteBehindWriter.class);
+
+	/** Number of pending rows that triggers a flush. */
+	private static final int FLUSH_SIZE = 500;
+
+	/** Interval (in ms) between flushes. */
+	private static final int FLUSH_INTERVAL = 1000;
+
+	/** Maximum number of pending rows; further rows are dropped. */
+	private static final int MAX_BACKLOG = 100000;
+
+	/** The data source. */
+	private final DataSource dataSource;
+
+	/** Pending rows. */
+	private final ConcurrentLinkedQueue<LeakRow> leaks = new ConcurrentLinkedQueue<LeakRow>();
+	private final ConcurrentLinkedQueue<List<RedirectRow>> redirects = new ConcurrentLinkedQueue<List<RedirectRow>>();
+
+	/** The number of pending rows. */
+	private final AtomicInteger backlog = new AtomicInteger();
+
+	/** Whether the periodic flush has been scheduled. */
+	private final AtomicBoolean started = new AtomicBoolean();
+
+	/** Whether a size-triggered flush has been requested. */
+	private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+	/** The flush thread. */
+	private final ScheduledExecutorService flusher;
+
+	/** Statistics. */
+	private final AtomicLong flushes = new AtomicLong(), rowsWritten = new AtomicLong(), rowsDropped = new AtomicLong(), rowsFailed = new AtomicLong();
+	private final AtomicLong totalFlushNanos = new AtomicLong(), maxFlushNanos = new AtomicLong();
+
+	/** A pending {@code leaked_emails} row (domains are {@link DomainDictionary} IDs). */
+	public static class LeakRow {
+		private final String senderAddress, encoding, url, type;
+		private final int senderDomainId, recipientId, urlDomainId;
+		private final boolean isRedirect, isIntentional;
+
+		/** Constructor. */
+		public LeakRow(
+			int senderDomainId, String senderAddress, int recipientId, String encoding,
+			String url, int urlDomainId, String type,
+			boolean isRedirect, boolean isIntentional
+		) {
+			this.senderDomainId = senderDomainId;
+			this.senderAddress = senderAddress;
+			this.recipientId = recipientId;
+			this.encoding = encoding;
+			this.url = url;
+			this.urlDomainId = urlDomainId;
+			this.type = type;
+			this.isRedirect = isRedirect;
+			this.isIntentional = isIntentional;
+		}
+	}
+
+	/** A pending {@code redirects} row (domains are {@link DomainDictionary} IDs). */
+	public static class RedirectRow {
+		private final String senderAddress, requestUrl, redirectUrl;
+		private final int senderDomainId, recipientId, redirectDomainId, redirectIndex;
+
+		/** Constructor. */
+		public RedirectRow(
+			int senderDomainId, String senderAddress, int recipientId, String requestUrl,
+			int redirectDomainId, String redirectUrl, int redirectIndex
+		) {
+			this.senderDomainId = senderDomainId;
+			this.senderAddress = senderAddress;
+			this.recipientId = recipientId;
+			this.requestUrl = requestUrl;
+			this.redirectDomainId = redirectDomainId;
+			this.redirectUrl = redirectUrl;
+			this.redirectIndex = redirectIndex;
+		}
+	}
+
+	/** A batch of rows written in one transaction. */
+	private static class Batch {
+		public final List<LeakRow> leaks;
+		public final List<List<RedirectRow>> chains;
+
+		/** Constructor. */
+		public Batch(List<LeakRow> leaks, List<List<RedirectRow>> chains) {
+			this.leaks = leaks;
+			this.chains = chains;
+		}
+
+		/** Returns the number of rows. */
+		public int getRowCount() {
+			int rows = leaks.size();
+			for (List<RedirectRow> chain : chains)
+				rows += chain.size();
+			return rows;
+		}
+
+		/** Returns the first half of the batch (the leak rows, if it has both kinds of rows). */
+		public Batch firstHalf() {
+			if (!leaks.isEmpty() && !chains.isEmpty())
+				return new Batch(leaks, Collections.<List<RedirectRow>>emptyList());
+			return new Batch(leaks.subList(0, leaks.size() / 2), chains.subList(0, chains.size() / 2));
+		}
+
+		/** Returns the second half of the batch (the redirect chains, if it has both kinds of rows). */
+		public Batch secondHalf() {
+			if (!leaks.isEmpty() && !chains.isEmpty())
+				return new Batch(Collections.<LeakRow>emptyList(), chains);
+			return new Batch(leaks.subList(leaks.size() / 2, leaks.size()), chains.subList(chains.size() / 2, chains.size()));
+		}
+	}
+
+	/** Creates the writer (the flush thread starts with the first queued row). */
+	public WriteBehindWriter(DataSource dataSource) {
+		this.dataSource = dataSource;
+		this.flusher = Executors.newSingleThreadScheduledExecutor();
+	}
+
+	/** Queues a {@code leaked_emails} row. */
+	public void add(LeakRow row) {
+		if (reserve(1))
+			leaks.add(row);
+	}
+
+	/** Queues the {@code redirects} rows of a redirect chain. */
+	public void add(List<RedirectRow> chain) {
+		if (!chain.isEmpty() && reserve(chain.size()))
+			redirects.add(chain);
+	}
+
+	/** Reserves space for new rows, and requests a flush if enough rows are pending. */
+	private boolean reserve(int rows) {
+		if (!started.get() && started.compareAndSet(false, true)) {
+			try {
+				flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {}  // shutting down
+		}
+		int pending = backlog.addAndGet(rows);
+		if (pending > MAX_BACKLOG) {
+			backlog.addAndGet(-rows);
+			if (rowsDropped.getAndAdd(rows) == 0)
+				logger.error("Write-behind backlog is full, dropping rows.");
+			return false;
+		}
+		if (pending >= FLUSH_SIZE && flushRequested.compareAndSet(false, true)) {
+			try {
+				flusher.execute(this::flush);
+			} catch (RejectedExecutionException e) {}  // shutting down
+		}
+		return true;
+	}
+
+	/** Writes all pending rows. */
+	private void flush() {
+		flushRequested.set(false);
+		List<LeakRow> leakBatch = new ArrayList<LeakRow>();
+		List<List<RedirectRow>> redirectBatch = new ArrayList<List<RedirectRow>>();
+		for (LeakRow row; (row = leaks.poll()) != null; )
+			leakBatch.add(row);
+		for (List<RedirectRow> chain; (chain = redirects.poll()) != null; )
+			redirectBatch.add(chain);
+		if (leakBatch.isEmpty() && redirectBatch.isEmpty())
+			return;
+
+		long start = System.nanoTime();
+		int written = write(leakBatch, redirectBatch);
+		long elapsed = System.nanoTime() - start;
+		rowsWritten.addAndGet(written);
+		flushes.incrementAndGet();
+		totalFlushNanos.addAndGet(elapsed);
+		maxFlushNanos.accumulateAndGet(elapsed, Math::max);
+	}
+
+	/**
+	 * Writes rows, one transaction per batch, splitting batches that fail
+	 * and dropping single rows (or chains) that fail. After a transient
+	 * failure, the rows not yet written are queued for the next flush.
+	 * @return the number of rows written
+	 */
+	private int write(List<LeakRow> leakBatch, List<List<RedirectRow>> redirectBatch) {
+		Deque<Batch> batches = new ArrayDeque<Batch>();
+		batches.push(new Batch(leakBatch, redirectBatch));
+		int written = 0;
+		try (Connection connection = dataSource.getConnection()) {
+			while (!batches.isEmpty()) {
+				Batch batch = batches.peek();
+				try {
+					write(connection, batch);
+					batches.pop();
+					written += batch.getRowCount();
+				} catch (SQLException e) {
+					if (Utils.isTransient(e))
+						throw e;
+					batches.pop();
+					if (batch.leaks.size() + batch.chains.size() == 1) {
+						logger.error(String.format("Dropping a %s row that cannot be written.", batch.leaks.isEmpty() ? "redirect" : "leak"), e);
+						backlog.addAndGet(-batch.getRowCount());
+						rowsFailed.addAndGet(batch.getRowCount());
+					} else {
+						batches.push(batch.secondHalf());
+						batches.push(batch.firstHalf());
+					}
+				}
+			}
+		} catch (SQLException e) {
+			// keep the remaining rows for the next flush
+			int rows = 0;
+			for (Batch batch : batches) {
+				leaks.addAll(batch.leaks);
+				redirects.addAll(batch.chains);
+				rows += batch.getRowCount();
+			}
+			logger.error(String.format("Failed to flush %d rows, will retry.", rows), e);
+		}
+		backlog.addAndGet(-written);
+		return written;
+	}
+
+	/** Writes a batch in a single transaction. */
+	private void write(Connection connection, Batch batch) throws SQLException {
+		connection.setAutoCommit(false);
+		try {
+			write(connection, batch.leaks, batch.chains);
+			connection.commit();
+		} catch (SQLException e) {
+			connection.rollback();
+			throw e;
+		} finally {
+			connection.setAutoCommit(true);
+		}
+	}
+
+	/**
+	 * Writes rows and updates the summary tables, within the caller's
+	 * transaction (used directly for rows replayed from a journal).
+	 */
+	void write(Connection connection, List<LeakRow> leakBatch, List<List<RedirectRow>> redirectBatch) throws SQLException {
+		if (!leakBatch.isEmpty()) {
+			writeLeaks(connection, leakBatch);
+			writeLeakRollup(connection, leakBatch);
+		}
+		if (!redirectBatch.isEmpty()) {
+			writeRedirects(connection, redirectBatch);
+			writeRedirectRollup(connection, redirectBatch);
+		}
+	}
+
+	/** Inserts leak rows. */
+	private void writeLeaks(Connection connection, List<LeakRow> rows) throws SQLException {
+		try (
+			PreparedStatement stmt = connection.prepareStatement(
+				"INSERT INTO `leaked_emails` (`sender_domain_id`, `sender_address`, `recipient_id`, `encoding`, `url`, `url_domain_id`, `url_type`, `is_redirect`, `is_intentional`) " +
+				"VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?)"
+			);
+		) {
+			for (LeakRow row : rows) {
+				stmt.setInt(1, row.senderDomainId);
+				stmt.setString(2, row.senderAddress);
+				stmt.setInt(3, row.recipientId);
+				stmt.setString(4, row.encoding);
+				stmt.setString(5, row.url);
+				stmt.setInt(6, row.urlDomainId);
+				stmt.setString(7, row.type);
+				stmt.setBoolean(8, row.isRedirect);
+				stmt.setBoolean(9, row.isIntentional);
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+		}
+	}
+
+	/**
+	 * Inserts redirect chains, one multi-row insert per chain.
+	 * Chains of the same length share a statement batch.
+	 */
+	private void writeRedirects(Connection connection, List<List<RedirectRow>> chains) throws SQLException {
+		Map<Integer, List<List<RedirectRow>>> byLength = new TreeMap<Integer, List<List<RedirectRow>>>();
+		for (List<RedirectRow> chain : chains)
+			byLength.computeIfAbsent(chain.size(), k -> new ArrayList<List<RedirectRow>>()).add(chain);
+
+		for (Map.Entry<Integer, List<List<RedirectRow>>> e : byLength.entrySet()) {
+			StringBuilder sql = new StringBuilder(
+				"INSERT INTO `redirects` (`sender_domain_id`, `sender_address`, `recipient_id`, `request_url`, " +
+				"`redirect_domain_id`, `redirect_url`, `redirect_index`) VALUES"
+			);
+			for (int i = 0; i < e.getKey(); i++)
+				sql.append((i == 0) ? "" : ",").append("(?, ?, ?, ?, ?, ?, ?)");
+			try (PreparedStatement stmt = connection.prepareStatement(sql.toString())) {
+				for (List<RedirectRow> chain : e.getValue()) {
+					int i = 0;
+					for (RedirectRow row : chain) {
+						stmt.setInt(++i, row.senderDomainId);
+						stmt.setString(++i, row.senderAddress);
+						stmt.setInt(++i, row.recipientId);
+						stmt.setString(++i, row.requestUrl);
+						stmt.setInt(++i, row.redirectDomainId);
+						stmt.setString(++i, row.redirectUrl);
+						stmt.setInt(++i, row.redirectIndex);
+					}
+					stmt.addBatch();
+				}
+				stmt.executeBatch();
+			}
+		}
+	}
+
+	/**
+	 * Updates the leak summaries: the row count per (sender domain, URL
+	 * domain, URL type, encoding), and the distinct recipients behind it.
+	 */
+	private static void writeLeakRollup(Connection connection, List<LeakRow> rows) throws SQLException {
+		Map<List<Object>, int[]> counts = new LinkedHashMap<List<Object>, int[]>();
+		Set<List<Object>> recipients = new LinkedHashSet<List<Object>>();
+		for (LeakRow row : rows) {
+			counts.computeIfAbsent(Arrays.asList(row.senderDomainId, row.urlDomainId, row.type, row.encoding), k -> new int[1])[0]++;
+			recipients.add(Arrays.asList(row.senderDomainId, row.urlDomainId, row.type, row.encoding, row.recipientId));
+		}
+		writeRollup(
+			connection, counts, recipients,
+			"INSERT IGNORE INTO `leak_rollup_recipients` SELECT ?, ?, ?, ?, ? FROM DUAL",
+			"INSERT INTO `leak_rollup` VALUES(?, ?, ?, ?, ?, ?) " +
+				"ON DUPLICATE KEY UPDATE `leak_count` = `leak_count` + VALUES(`leak_count`), `recipient_count` = `recipient_count` + VALUES(`recipient_count`)",
+			"UPDATE `leak_rollup` SET `recipient_count` = (" +
+				"SELECT COUNT(*) FROM `leak_rollup_recipients` " +
+				"WHERE `sender_domain_id` = ? AND `url_domain_id` = ? AND `url_type` = ? AND `encoding` = ?" +
+			") WHERE `sender_domain_id` = ? AND `url_domain_id` = ? AND `url_type` = ? AND `encoding` = ?"
+		);
+	}
+
+	/**
+	 * Updates the redirect summaries: the row count per (sender domain,
+	 * redirect domain), and the distinct recipients behind it.
+	 */
+	private static void writeRedirectRollup(Connection connection, List<List<RedirectRow>> chains) throws SQLException {
+		Map<List<Object>, int[]> counts = new LinkedHashMap<List<Object>, int[]>();
+		Set<List<Object>> recipients = new LinkedHashSet<List<Object>>();
+		for (List<RedirectRow> chain : chains) {
+			for (RedirectRow row : chain) {
+				counts.computeIfAbsent(Arrays.asList(row.senderDomainId, row.redirectDomainId), k -> new int[1])[0]++;
+				recipients.add(Arrays.asList(row.senderDomainId, row.redirectDomainId, row.recipientId));
+			}
+		}
+		writeRollup(
+			connection, counts, recipients,
+			"INSERT IGNORE INTO `redirect_rollup_recipients` SELECT ?, ?, ? FROM DUAL",
+			"INSERT INTO `redirect_rollup` VALUES(?, ?, ?, ?) " +
+				"ON DUPLICATE KEY UPDATE `redirect_count` = `redirect_count` + VALUES(`redirect_count`), `recipient_count` = `recipient_count` + VALUES(`recipient_count`)",
+			"UPDATE `redirect_rollup` SET `recipient_count` = (" +
+				"SELECT COUNT(*) FROM `redirect_rollup_recipients` WHERE `sender_domain_id` = ? AND `redirect_domain_id` = ?" +
+			") WHERE `sender_domain_id` = ? AND `redirect_domain_id` = ?"
+		);
+	}
+
+	/**
+	 * Adds recipient rows (key columns, then recipient ID), then upserts the
+	 * summary rows (key columns, row count, new recipient count).
+	 * <p>
+	 * The recipient count is incremented by the rows the {@code INSERT IGNORE}
+	 * batch actually inserted; the {@code SELECT ... FROM DUAL} form keeps the
+	 * driver from rewriting the batch into one multi-row statement, which would
+	 * only report {@link Statement#SUCCESS_NO_INFO}. If a count is unknown
+	 * anyway, that summary row is recounted from the recipient table.
+	 */
+	private static void writeRollup(
+		Connection connection, Map<List<Object>, int[]> counts, Set<List<Object>> recipients,
+		String recipientSql, String summarySql, String recountSql
+	) throws SQLException {
+		Set<List<Object>> recount = new LinkedHashSet<List<Object>>();
+		try (
+			PreparedStatement stmtRecipients = connection.prepareStatement(recipientSql);
+			PreparedStatement stmt = connection.prepareStatement(summarySql);
+		) {
+			for (List<Object> values : recipients) {
+				for (int i = 0; i < values.size(); i++)
+					stmtRecipients.setObject(i + 1, values.get(i));
+				stmtRecipients.addBatch();
+			}
+			int[] inserted = stmtRecipients.executeBatch();
+			Map<List<Object>, int[]> added = new LinkedHashMap<List<Object>, int[]>();
+			int n = 0;
+			for (List<Object> values : recipients) {
+				List<Object> key = values.subList(0, values.size() - 1);
+				int count = inserted[n++];
+				if (count == Statement.SUCCESS_NO_INFO)
+					recount.add(key);
+				else if (count > 0)
+					added.computeIfAbsent(key, k -> new int[1])[0]++;
+			}
+
+			for (Map.Entry<List<Object>, int[]> e : counts.entrySet()) {
+				List<Object> key = e.getKey();
+				int[] newRecipients = added.get(key);
+				int i = 0;
+				for (Object value : key)
+					stmt.setObject(++i, value);
+				stmt.setInt(++i, e.getValue()[0]);
+				stmt.setInt(++i, (newRecipients == null) ? 0 : newRecipients[0]);
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+		}
+		if (recount.isEmpty())
+			return;
+		try (PreparedStatement stmt = connection.prepareStatement(recountSql)) {
+			for (List<Object> key : recount) {
+				int i = 0;
+				for (int pass = 0; pass < 2; pass++) {
+					for (Object value : key)
+						stmt.setObject(++i, value);
+				}
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+		}
+	}
+
+	/** Returns the summary table of a table with rows written by this class, or null if none. */
+	static String getRollupTable(String table) {
+		switch (table) {
+		case "leaked_emails": return "leak_rollup";
+		case "redirects": return "redirect_rollup";
+		default: return null;
+		}
+	}
+
+	/**
+	 * Updates the summary tables for rows copied into a table by a schema
+	 * migration (see {@link SchemaMigrator}), given as values by column name,
+	 * within the caller's transaction.
+	 */
+	static void writeCopiedRollup(Connection connection, String table, List<Map<String, Object>> rows) throws SQLException {
+		// only the summarized columns are needed
+		if (table.equals("leaked_emails")) {
+			List<LeakRow> leakRows = new ArrayList<LeakRow>(rows.size());
+			for (Map<String, Object> row : rows) {
+				leakRows.add(new LeakRow(
+					((Number) row.get("sender_domain_id")).intValue(), null, ((Number) row.get("recipient_id")).intValue(),
+					(String) row.get("encoding"), null, ((Number) row.get("url_domain_id")).intValue(), (String) row.get("url_type"),
+					false, false
+				));
+			}
+			writeLeakRollup(connection, leakRows);
+		} else if (table.equals("redirects")) {
+			List<RedirectRow> redirectRows = new ArrayList<RedirectRow>(rows.size());
+			for (Map<String, Object> row : rows) {
+				redirectRows.add(new RedirectRow(
+					((Number) row.get("sender_domain_id")).intValue(), null, ((Number) row.get("recipient_id")).intValue(),
+					null, ((Number) row.get("redirect_domain_id")).intValue(), null, 0
+				));
+			}
+			writeRedirectRollup(connection, Collections.singletonList(redirectRows));
+		}
+	}
+
+	/** Returns the number of rows waiting to be written. */
+	public int getBacklog() { return backlog.get(); }
+
+	/** Returns the number of rows dropped because the backlog was full. */
+	public long getDroppedCount() { return rowsDropped.get(); }
+
+	/** Returns the number of rows dropped because they could not be written. */
+	public long getFailedCount() { return rowsFailed.get(); }
+
+	@Override
+	public String toString() {
+		long n = flushes.get();
+		return String.format(
+			"backlog=%d, flushes=%d, rowsWritten=%d, rowsDropped=%d, rowsFailed=%d, avgFlushMs=%.1f, maxFlushMs=%.1f",
+			backlog.get(), n, rowsWritten.get(), rowsDropped.get(), rowsFailed.get(),
+			(n == 0) ? 0 : totalFlushNanos.get() / 1e6 / n, maxFlushNanos.get() / 1e6
+		);
+	}
+
+	/** Flushes all pending rows, then stops the writer. */
+	public void close() {
+		flusher.shutdown();
+		try {
+			flusher.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+		if (backlog.get() > 0)
+			logger.error("{} rows could not be written before shutdown.", backlog.get());
+	}
+}
@@ -1,3 +1,7 @@
+--
+-- Migration 1: initial schema (formerly sql-files/main.sql).
+--
+
 --
 -- Table structure for table `users`
 --
@@ -22,7 +26,7 @@ CREATE TABLE IF NOT EXISTS `inbox` (
 	`sender` VARCHAR(254) NOT NULL COMMENT 'mail sender',
 	`sent_date` DATETIME COMMENT 'mail sent date',
 	`subject` TEXT COMMENT 'mail subject',
-	`filename` VARCHAR(255) NOT NULL COMMENT 'file location',
+	`filename` VARCHAR(255) NOT NULL COMMENT 'message ID in the message store (segment:offset:length)',
 	PRIMARY KEY (`recipient`, `filename`)
 ) ENGINE=MyISAM;
 
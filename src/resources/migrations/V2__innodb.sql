@@ -0,0 +1,86 @@
+--
+-- Migration 2: move all tables to InnoDB, add surrogate keys and secondary
+-- indexes to the analysis tables, and dictionary-encode their domains (with
+-- the organization stored once per domain).
+--
+-- `leaked_emails`, `redirects` and `inbox` (which grow with every message)
+-- are rebuilt into the `*_v2` tables below, which SchemaMigrator swaps into
+-- place and back-fills in chunks, instead of being altered under a full
+-- table lock. The copy converts each `<x>_domain` column to `<x>_domain_id`;
+-- the `*_organization` columns are dropped (see the `domains` table). The
+-- inbox gets a surrogate key (used to resume the copy), and its old primary
+-- key becomes a unique key.
+--
+-- `users` (one row per registration) and `link_groups` (only the link groups
+-- not visited yet) stay small, and are converted in place: this copies them
+-- while blocking writes, in about a second per 100k rows.
+--
+
+ALTER TABLE `users` ENGINE=InnoDB ROW_FORMAT=DYNAMIC;
+ALTER TABLE `link_groups` ENGINE=InnoDB ROW_FORMAT=DYNAMIC;
+
+--
+-- Table structure for table `inbox`
+--
+CREATE TABLE IF NOT EXISTS `inbox_v2` (
+	`id` BIGINT(20) UNSIGNED NOT NULL AUTO_INCREMENT COMMENT 'unique auto-incrementing ID',
+	`recipient` VARCHAR(254) NOT NULL COMMENT 'mail recipient',
+	`sender` VARCHAR(254) NOT NULL COMMENT 'mail sender',
+	`sent_date` DATETIME COMMENT 'mail sent date',
+	`subject` TEXT COMMENT 'mail subject',
+	`filename` VARCHAR(255) NOT NULL COMMENT 'message ID in the message store (segment:offset:length)',
+	PRIMARY KEY (`id`),
+	UNIQUE KEY `recipient` (`recipient`, `filename`)
+) ENGINE=InnoDB ROW_FORMAT=DYNAMIC;
+
+--
+-- Table structure for table `domains`
+--
+CREATE TABLE IF NOT EXISTS `domains` (
+	`id` INT(11) UNSIGNED NOT NULL AUTO_INCREMENT COMMENT 'unique auto-incrementing ID',
+	`name` VARCHAR(255) NOT NULL COMMENT 'domain name',
+	`organization` VARCHAR(255) COMMENT 'organization of the domain',
+	PRIMARY KEY (`id`),
+	UNIQUE KEY `name` (`name`),
+	KEY `organization` (`organization`)
+) ENGINE=InnoDB ROW_FORMAT=DYNAMIC;
+
+--
+-- Table structure for table `redirects`
+--
+CREATE TABLE IF NOT EXISTS `redirects_v2` (
+	`id` BIGINT(20) UNSIGNED NOT NULL AUTO_INCREMENT COMMENT 'unique auto-incrementing ID',
+	`sender_domain_id` INT(11) UNSIGNED NOT NULL COMMENT 'domain of mail sender',
+	`sender_address` VARCHAR(254) NOT NULL COMMENT 'mail sender',
+	`recipient_id` INT(11) UNSIGNED NOT NULL COMMENT 'mail recipient ID',
+	`request_url` VARCHAR(2048) NOT NULL COMMENT 'URL of the original request',
+	`redirect_domain_id` INT(11) UNSIGNED NOT NULL COMMENT 'domain of the redirected site',
+	`redirect_url` VARCHAR(2048) NOT NULL COMMENT 'URL of the redirected site',
+	`redirect_index` INT(11) UNSIGNED NOT NULL COMMENT 'index in the redirect chain',
+	PRIMARY KEY (`id`),
+	KEY `sender_domain` (`sender_domain_id`, `redirect_domain_id`),
+	KEY `redirect_domain` (`redirect_domain_id`, `sender_domain_id`),
+	KEY `recipient_id` (`recipient_id`)
+) ENGINE=InnoDB ROW_FORMAT=DYNAMIC;
+
+--
+-- Table structure for table `leaked_emails`
+--
+CREATE TABLE IF NOT EXISTS `leaked_emails_v2` (
+	`id` BIGINT(20) UNSIGNED NOT NULL AUTO_INCREMENT COMMENT 'unique auto-incrementing ID',
+	`sender_domain_id` INT(11) UNSIGNED NOT NULL COMMENT 'domain of mail sender',
+	`sender_address` VARCHAR(254) NOT NULL COMMENT 'mail sender',
+	`recipient_id` INT(11) UNSIGNED NOT NULL COMMENT 'mail recipient ID',
+	`encoding` VARCHAR(64) NOT NULL COMMENT 'recipient address encoding',
+	`url` VARCHAR(2048) NOT NULL COMMENT 'URL containing the recipient address',
+	`url_domain_id` INT(11) UNSIGNED NOT NULL COMMENT 'domain of the URL',
+	`url_type` VARCHAR(24) NOT NULL COMMENT 'type of URL',
+	`is_redirect` TINYINT(1) NOT NULL COMMENT 'whether or not the URL was a redirect',
+	`is_intentional` TINYINT(1) NOT NULL COMMENT 'whether or not the leak was probably intentional',
+	PRIMARY KEY (`id`),
+	KEY `sender_domain` (`sender_domain_id`, `url_domain_id`),
+	KEY `url_domain` (`url_domain_id`, `sender_domain_id`),
+	KEY `url_type` (`url_type`, `encoding`),
+	KEY `encoding` (`encoding`),
+	KEY `recipient_id` (`recipient_id`)
+) ENGINE=InnoDB ROW_FORMAT=DYNAMIC;
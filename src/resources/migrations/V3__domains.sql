@@ -0,0 +1,19 @@
+--
+-- Migration 3: views of `leaked_emails` and `redirects` with the domain
+-- names and organizations resolved (for analysis queries).
+--
+
+CREATE OR REPLACE VIEW `leaked_emails_named` AS
+	SELECT `le`.`id`, `ds`.`name` AS `sender_domain`, `le`.`sender_address`, `le`.`recipient_id`,
+		`le`.`encoding`, `le`.`url`, `du`.`name` AS `url_domain`, `du`.`organization` AS `url_organization`,
+		`le`.`url_type`, `le`.`is_redirect`, `le`.`is_intentional`
+	FROM `leaked_emails` `le`
+	JOIN `domains` `ds` ON `ds`.`id` = `le`.`sender_domain_id`
+	JOIN `domains` `du` ON `du`.`id` = `le`.`url_domain_id`;
+CREATE OR REPLACE VIEW `redirects_named` AS
+	SELECT `r`.`id`, `ds`.`name` AS `sender_domain`, `r`.`sender_address`, `r`.`recipient_id`,
+		`r`.`request_url`, `dr`.`name` AS `redirect_domain`, `dr`.`organization` AS `redirect_organization`,
+		`r`.`redirect_url`, `r`.`redirect_index`
+	FROM `redirects` `r`
+	JOIN `domains` `ds` ON `ds`.`id` = `r`.`sender_domain_id`
+	JOIN `domains` `dr` ON `dr`.`id` = `r`.`redirect_domain_id`;
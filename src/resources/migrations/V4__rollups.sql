@@ -0,0 +1,68 @@
+--
+-- Migration 4: summary tables for the analysis queries, kept up to date as
+-- leak and redirect rows are written (by WriteBehindWriter).
+--
+-- Third-party rows are those with different sender and URL domain IDs.
+--
+
+--
+-- Table structure for table `leak_rollup`
+--
+CREATE TABLE IF NOT EXISTS `leak_rollup` (
+	`sender_domain_id` INT(11) UNSIGNED NOT NULL COMMENT 'domain of mail sender',
+	`url_domain_id` INT(11) UNSIGNED NOT NULL COMMENT 'domain of the URL',
+	`url_type` VARCHAR(24) NOT NULL COMMENT 'type of URL',
+	`encoding` VARCHAR(64) NOT NULL COMMENT 'recipient address encoding',
+	`leak_count` INT(11) UNSIGNED NOT NULL COMMENT 'number of leaked_emails rows',
+	`recipient_count` INT(11) UNSIGNED NOT NULL COMMENT 'number of distinct recipients',
+	PRIMARY KEY (`sender_domain_id`, `url_domain_id`, `url_type`, `encoding`),
+	KEY `url_domain` (`url_domain_id`, `sender_domain_id`)
+) ENGINE=InnoDB ROW_FORMAT=DYNAMIC;
+
+--
+-- Table structure for table `leak_rollup_recipients`
+--
+CREATE TABLE IF NOT EXISTS `leak_rollup_recipients` (
+	`sender_domain_id` INT(11) UNSIGNED NOT NULL COMMENT 'domain of mail sender',
+	`url_domain_id` INT(11) UNSIGNED NOT NULL COMMENT 'domain of the URL',
+	`url_type` VARCHAR(24) NOT NULL COMMENT 'type of URL',
+	`encoding` VARCHAR(64) NOT NULL COMMENT 'recipient address encoding',
+	`recipient_id` INT(11) UNSIGNED NOT NULL COMMENT 'mail recipient ID',
+	PRIMARY KEY (`sender_domain_id`, `url_domain_id`, `url_type`, `encoding`, `recipient_id`)
+) ENGINE=InnoDB ROW_FORMAT=DYNAMIC;
+
+--
+-- Table structure for table `redirect_rollup`
+--
+CREATE TABLE IF NOT EXISTS `redirect_rollup` (
+	`sender_domain_id` INT(11) UNSIGNED NOT NULL COMMENT 'domain of mail sender',
+	`redirect_domain_id` INT(11) UNSIGNED NOT NULL COMMENT 'domain of the redirected site',
+	`redirect_count` INT(11) UNSIGNED NOT NULL COMMENT 'number of redirects rows',
+	`recipient_count` INT(11) UNSIGNED NOT NULL COMMENT 'number of distinct recipients',
+	PRIMARY KEY (`sender_domain_id`, `redirect_domain_id`),
+	KEY `redirect_domain` (`redirect_domain_id`, `sender_domain_id`)
+) ENGINE=InnoDB ROW_FORMAT=DYNAMIC;
+
+--
+-- Table structure for table `redirect_rollup_recipients`
+--
+CREATE TABLE IF NOT EXISTS `redirect_rollup_recipients` (
+	`sender_domain_id` INT(11) UNSIGNED NOT NULL COMMENT 'domain of mail sender',
+	`redirect_domain_id` INT(11) UNSIGNED NOT NULL COMMENT 'domain of the redirected site',
+	`recipient_id` INT(11) UNSIGNED NOT NULL COMMENT 'mail recipient ID',
+	PRIMARY KEY (`sender_domain_id`, `redirect_domain_id`, `recipient_id`)
+) ENGINE=InnoDB ROW_FORMAT=DYNAMIC;
+
+--
+-- Build the summaries from the existing rows
+--
+INSERT INTO `leak_rollup_recipients`
+	SELECT DISTINCT `sender_domain_id`, `url_domain_id`, `url_type`, `encoding`, `recipient_id` FROM `leaked_emails`;
+INSERT INTO `leak_rollup`
+	SELECT `sender_domain_id`, `url_domain_id`, `url_type`, `encoding`, COUNT(*), COUNT(DISTINCT `recipient_id`)
+	FROM `leaked_emails` GROUP BY `sender_domain_id`, `url_domain_id`, `url_type`, `encoding`;
+INSERT INTO `redirect_rollup_recipients`
+	SELECT DISTINCT `sender_domain_id`, `redirect_domain_id`, `recipient_id` FROM `redirects`;
+INSERT INTO `redirect_rollup`
+	SELECT `sender_domain_id`, `redirect_domain_id`, COUNT(*), COUNT(DISTINCT `recipient_id`)
+	FROM `redirects` GROUP BY `sender_domain_id`, `redirect_domain_id`;
@@ -0,0 +1,14 @@
+--
+-- Migration 5: replay position of the local write-ahead journal
+-- (JournaledMailDB), updated in the same transaction as the replayed rows.
+--
+
+--
+-- Table structure for table `journal_checkpoint`
+--
+CREATE TABLE IF NOT EXISTS `journal_checkpoint` (
+	`id` TINYINT(3) UNSIGNED NOT NULL COMMENT 'always 1',
+	`sequence` BIGINT(20) UNSIGNED NOT NULL COMMENT 'sequence number of the last applied journal record',
+	`updated_time` TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT 'time of last update',
+	PRIMARY KEY (`id`)
+) ENGINE=InnoDB;